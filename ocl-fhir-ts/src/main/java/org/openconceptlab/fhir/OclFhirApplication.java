@@ -1,8 +1,12 @@
 package org.openconceptlab.fhir;
 
+import org.openconceptlab.fhir.cache.CompressedResponseCache;
 import org.openconceptlab.fhir.config.Config;
 import org.openconceptlab.fhir.controller.OclFhirController;
 import org.openconceptlab.fhir.converter.CodeSystemConverter;
+import org.openconceptlab.fhir.export.BulkExportService;
+import org.openconceptlab.fhir.index.ConceptPrefixIndex;
+import org.openconceptlab.fhir.index.ConceptSearchIndex;
 import org.openconceptlab.fhir.interceptor.OclFhirLoggingInterceptor;
 import org.openconceptlab.fhir.model.BaseOclEntity;
 import org.openconceptlab.fhir.model.UserProfile;
@@ -39,6 +43,10 @@ import java.util.List;
         CodeSystemResourceProvider.class,
         OclFhirRestfulServer.class,
         CodeSystemConverter.class,
+        BulkExportService.class,
+        CompressedResponseCache.class,
+        ConceptSearchIndex.class,
+        ConceptPrefixIndex.class,
         OclFhirUtil.class
 })
 @EnableJpaRepositories(basePackageClasses = {ConceptRepository.class})
@@ -1,53 +1,88 @@
 package org.openconceptlab.fhir;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
 import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy;
 import ca.uhn.fhir.rest.server.RestfulServer;
 import ca.uhn.fhir.rest.server.interceptor.ResponseHighlighterInterceptor;
+import org.openconceptlab.fhir.config.Config;
 import org.openconceptlab.fhir.interceptor.OclFhirAuthorizationInterceptor;
 import org.openconceptlab.fhir.interceptor.OclFhirLoggingInterceptor;
 import org.openconceptlab.fhir.provider.CodeSystemResourceProvider;
 import org.openconceptlab.fhir.provider.OclCapabilityStatementProvider;
 import org.openconceptlab.fhir.provider.ValueSetResourceProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.PropertySource;
 import org.springframework.context.annotation.PropertySources;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.*;
+
 /**
  * The OclFhirRestfulServer.
  * @author harpatel1
  */
 @Component
-@WebServlet(urlPatterns = "/fhir/*", loadOnStartup = 1)
+@WebServlet(urlPatterns = "/fhir/*", loadOnStartup = 1, asyncSupported = true)
 public class OclFhirRestfulServer extends RestfulServer {
 
+	private static final Logger log = LoggerFactory.getLogger(OclFhirRestfulServer.class);
+
 	private CodeSystemResourceProvider codeSystemResourceProvider;
 	private ValueSetResourceProvider valueSetResourceProvider;
 	private OclCapabilityStatementProvider oclCapabilityStatementProvider;
 	private OclFhirAuthorizationInterceptor oclFhirAuthorizationInterceptor;
 	private OclFhirLoggingInterceptor oclFhirLoggingInterceptor;
+	private ThreadPoolTaskExecutor renderExecutor;
 
 	@Autowired
 	public OclFhirRestfulServer(CodeSystemResourceProvider codeSystemResourceProvider,
 								ValueSetResourceProvider valueSetResourceProvider,
 								OclCapabilityStatementProvider oclCapabilityStatementProvider,
 								OclFhirAuthorizationInterceptor oclFhirAuthorizationInterceptor,
-								OclFhirLoggingInterceptor oclFhirLoggingInterceptor) {
+								OclFhirLoggingInterceptor oclFhirLoggingInterceptor,
+								@Qualifier(Config.RENDER_EXECUTOR) ThreadPoolTaskExecutor renderExecutor) {
 		this.codeSystemResourceProvider = codeSystemResourceProvider;
 		this.valueSetResourceProvider = valueSetResourceProvider;
 		this.oclCapabilityStatementProvider = oclCapabilityStatementProvider;
 		this.oclFhirAuthorizationInterceptor = oclFhirAuthorizationInterceptor;
 		this.oclFhirLoggingInterceptor = oclFhirLoggingInterceptor;
+		this.renderExecutor = renderExecutor;
 	}
 
 	@Value("${ocl.servlet.baseurl}")
 	private String baseUrl;
 
+	@Value("${ocl.async.timeout}")
+	private long asyncTimeout;
+
 	@Override
 	protected void initialize() throws ServletException {
 		// Create a context for the appropriate version
@@ -68,4 +103,530 @@ public class OclFhirRestfulServer extends RestfulServer {
 		registerInterceptor(oclFhirLoggingInterceptor);
 	}
 
+	/**
+	 * CodeSystem and ValueSet reads may render every concept of a repository version, these are handed off to the
+	 * render executor so that the container threads remain available for the terminology operations. A read which
+	 * times out is answered with 503 by the container thread, the render task then stops writing and leaves the
+	 * recycled request and response alone. The task reads a copy of the request taken on the container thread.
+	 */
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!isRenderRequest(request)) {
+			super.doGet(request, response);
+			return;
+		}
+		AsyncContext asyncContext = request.startAsync();
+		asyncContext.setTimeout(asyncTimeout);
+		RenderRequest renderRequest = new RenderRequest(request);
+		RenderResponse renderResponse = new RenderResponse((HttpServletResponse) asyncContext.getResponse());
+		String uri = request.getRequestURI();
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (renderResponse.finish()) {
+					log.warn("Rendering {} timed out after {} ms", uri, asyncTimeout);
+					if (!response.isCommitted()) response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+					asyncContext.complete();
+				}
+			}
+
+			@Override
+			public void onError(AsyncEvent event) {
+				renderResponse.finish();
+			}
+
+			@Override
+			public void onComplete(AsyncEvent event) {
+				renderResponse.finish();
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+			}
+		});
+		try {
+			renderExecutor.execute(() -> {
+				try {
+					if (!renderResponse.isFinished()) super.doGet(renderRequest, renderResponse);
+				} catch (Exception e) {
+					if (!renderResponse.isFinished()) log.error("Could not render {}", uri, e);
+				} finally {
+					if (renderResponse.finishRendering()) asyncContext.complete();
+				}
+			});
+		} catch (TaskRejectedException e) {
+			if (renderResponse.finish()) {
+				response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+				asyncContext.complete();
+			}
+		}
+	}
+
+	private boolean isRenderRequest(HttpServletRequest request) {
+		String path = request.getPathInfo();
+		return path != null && !path.contains("$")
+				&& (path.startsWith("/" + CODESYSTEM) || path.startsWith("/" + VALUESET));
+	}
+
+	/**
+	 * The request of an asynchronous read. The parts of the request which are read while rendering are copied when
+	 * the read is handed off, since the container recycles the request once the read has timed out.
+	 */
+	private static class RenderRequest extends HttpServletRequestWrapper {
+
+		private final String method;
+		private final String requestUri;
+		private final String requestUrl;
+		private final String queryString;
+		private final String pathInfo;
+		private final String servletPath;
+		private final String contextPath;
+		private final String scheme;
+		private final String serverName;
+		private final int serverPort;
+		private final String remoteAddr;
+		private final String contentType;
+		private final String characterEncoding;
+		private final Map<String, String[]> parameters;
+		private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+		private final Map<String, Object> attributes = new HashMap<>();
+
+		RenderRequest(HttpServletRequest request) {
+			super(request);
+			method = request.getMethod();
+			requestUri = request.getRequestURI();
+			requestUrl = request.getRequestURL().toString();
+			queryString = request.getQueryString();
+			pathInfo = request.getPathInfo();
+			servletPath = request.getServletPath();
+			contextPath = request.getContextPath();
+			scheme = request.getScheme();
+			serverName = request.getServerName();
+			serverPort = request.getServerPort();
+			remoteAddr = request.getRemoteAddr();
+			contentType = request.getContentType();
+			characterEncoding = request.getCharacterEncoding();
+			Map<String, String[]> copy = new LinkedHashMap<>();
+			request.getParameterMap().forEach((name, values) -> copy.put(name, values.clone()));
+			parameters = Collections.unmodifiableMap(copy);
+			for (String name : Collections.list(request.getHeaderNames()))
+				headers.put(name, Collections.list(request.getHeaders(name)));
+			for (String name : Collections.list(request.getAttributeNames()))
+				attributes.put(name, request.getAttribute(name));
+		}
+
+		@Override
+		public String getMethod() {
+			return method;
+		}
+
+		@Override
+		public String getRequestURI() {
+			return requestUri;
+		}
+
+		@Override
+		public StringBuffer getRequestURL() {
+			return new StringBuffer(requestUrl);
+		}
+
+		@Override
+		public String getQueryString() {
+			return queryString;
+		}
+
+		@Override
+		public String getPathInfo() {
+			return pathInfo;
+		}
+
+		@Override
+		public String getServletPath() {
+			return servletPath;
+		}
+
+		@Override
+		public String getContextPath() {
+			return contextPath;
+		}
+
+		@Override
+		public String getScheme() {
+			return scheme;
+		}
+
+		@Override
+		public String getServerName() {
+			return serverName;
+		}
+
+		@Override
+		public int getServerPort() {
+			return serverPort;
+		}
+
+		@Override
+		public String getRemoteAddr() {
+			return remoteAddr;
+		}
+
+		@Override
+		public String getContentType() {
+			return contentType;
+		}
+
+		@Override
+		public String getCharacterEncoding() {
+			return characterEncoding;
+		}
+
+		@Override
+		public String getParameter(String name) {
+			String[] values = parameters.get(name);
+			return values == null || values.length == 0 ? null : values[0];
+		}
+
+		@Override
+		public Map<String, String[]> getParameterMap() {
+			return parameters;
+		}
+
+		@Override
+		public Enumeration<String> getParameterNames() {
+			return Collections.enumeration(parameters.keySet());
+		}
+
+		@Override
+		public String[] getParameterValues(String name) {
+			String[] values = parameters.get(name);
+			return values == null ? null : values.clone();
+		}
+
+		@Override
+		public String getHeader(String name) {
+			List<String> values = headers.get(name);
+			return values == null || values.isEmpty() ? null : values.get(0);
+		}
+
+		@Override
+		public Enumeration<String> getHeaders(String name) {
+			return Collections.enumeration(headers.getOrDefault(name, Collections.emptyList()));
+		}
+
+		@Override
+		public Enumeration<String> getHeaderNames() {
+			return Collections.enumeration(headers.keySet());
+		}
+
+		@Override
+		public int getIntHeader(String name) {
+			String value = getHeader(name);
+			return value == null ? -1 : Integer.parseInt(value);
+		}
+
+		@Override
+		public long getDateHeader(String name) {
+			String value = getHeader(name);
+			if (value == null) return -1;
+			try {
+				return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Not a date header: " + name, e);
+			}
+		}
+
+		@Override
+		public Object getAttribute(String name) {
+			synchronized (attributes) {
+				return attributes.get(name);
+			}
+		}
+
+		@Override
+		public Enumeration<String> getAttributeNames() {
+			synchronized (attributes) {
+				return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+			}
+		}
+
+		@Override
+		public void setAttribute(String name, Object value) {
+			synchronized (attributes) {
+				if (value == null) attributes.remove(name);
+				else attributes.put(name, value);
+			}
+		}
+
+		@Override
+		public void removeAttribute(String name) {
+			synchronized (attributes) {
+				attributes.remove(name);
+			}
+		}
+	}
+
+	/**
+	 * The response of an asynchronous read. Once finished, by the render task, a timeout or an error, neither the body
+	 * nor the status or headers of the underlying response are touched any more, it may already have been recycled by
+	 * the container.
+	 */
+	private static class RenderResponse extends HttpServletResponseWrapper {
+
+		private final Object lock = new Object();
+		private boolean finished;
+		private ServletOutputStream outputStream;
+		private PrintWriter writer;
+
+		RenderResponse(HttpServletResponse response) {
+			super(response);
+		}
+
+		/**
+		 * Marks the response finished, returns false if it already was.
+		 */
+		boolean finish() {
+			synchronized (lock) {
+				if (finished) return false;
+				finished = true;
+				return true;
+			}
+		}
+
+		/**
+		 * Flushes what the render task wrote and marks the response finished, returns false if it already was.
+		 */
+		boolean finishRendering() {
+			synchronized (lock) {
+				if (finished) return false;
+				if (writer != null) writer.flush();
+				finished = true;
+				return true;
+			}
+		}
+
+		boolean isFinished() {
+			synchronized (lock) {
+				return finished;
+			}
+		}
+
+		@Override
+		public ServletOutputStream getOutputStream() throws IOException {
+			synchronized (lock) {
+				if (outputStream == null) outputStream = new GuardedOutputStream(finished ? null : super.getOutputStream());
+				return outputStream;
+			}
+		}
+
+		@Override
+		public PrintWriter getWriter() throws IOException {
+			synchronized (lock) {
+				if (writer == null) {
+					String encoding = finished ? null : getCharacterEncoding();
+					Charset charset = encoding == null ? Charset.forName("ISO-8859-1") : Charset.forName(encoding);
+					writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), charset));
+				}
+				return writer;
+			}
+		}
+
+		@Override
+		public boolean isCommitted() {
+			synchronized (lock) {
+				return finished || super.isCommitted();
+			}
+		}
+
+		@Override
+		public void setStatus(int sc) {
+			synchronized (lock) {
+				if (!finished) super.setStatus(sc);
+			}
+		}
+
+		@Override
+		public void sendError(int sc) throws IOException {
+			synchronized (lock) {
+				if (!finished) super.sendError(sc);
+			}
+		}
+
+		@Override
+		public void sendError(int sc, String msg) throws IOException {
+			synchronized (lock) {
+				if (!finished) super.sendError(sc, msg);
+			}
+		}
+
+		@Override
+		public void sendRedirect(String location) throws IOException {
+			synchronized (lock) {
+				if (!finished) super.sendRedirect(location);
+			}
+		}
+
+		@Override
+		public void setContentType(String type) {
+			synchronized (lock) {
+				if (!finished) super.setContentType(type);
+			}
+		}
+
+		@Override
+		public void setCharacterEncoding(String charset) {
+			synchronized (lock) {
+				if (!finished) super.setCharacterEncoding(charset);
+			}
+		}
+
+		@Override
+		public void setContentLength(int len) {
+			synchronized (lock) {
+				if (!finished) super.setContentLength(len);
+			}
+		}
+
+		@Override
+		public void setContentLengthLong(long len) {
+			synchronized (lock) {
+				if (!finished) super.setContentLengthLong(len);
+			}
+		}
+
+		@Override
+		public void setLocale(Locale locale) {
+			synchronized (lock) {
+				if (!finished) super.setLocale(locale);
+			}
+		}
+
+		@Override
+		public void setHeader(String name, String value) {
+			synchronized (lock) {
+				if (!finished) super.setHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addHeader(String name, String value) {
+			synchronized (lock) {
+				if (!finished) super.addHeader(name, value);
+			}
+		}
+
+		@Override
+		public void setIntHeader(String name, int value) {
+			synchronized (lock) {
+				if (!finished) super.setIntHeader(name, value);
+			}
+		}
+
+		@Override
+		public void addIntHeader(String name, int value) {
+			synchronized (lock) {
+				if (!finished) super.addIntHeader(name, value);
+			}
+		}
+
+		@Override
+		public void setDateHeader(String name, long date) {
+			synchronized (lock) {
+				if (!finished) super.setDateHeader(name, date);
+			}
+		}
+
+		@Override
+		public void addDateHeader(String name, long date) {
+			synchronized (lock) {
+				if (!finished) super.addDateHeader(name, date);
+			}
+		}
+
+		@Override
+		public void addCookie(Cookie cookie) {
+			synchronized (lock) {
+				if (!finished) super.addCookie(cookie);
+			}
+		}
+
+		@Override
+		public void setBufferSize(int size) {
+			synchronized (lock) {
+				if (!finished) super.setBufferSize(size);
+			}
+		}
+
+		@Override
+		public void flushBuffer() throws IOException {
+			synchronized (lock) {
+				if (!finished) super.flushBuffer();
+			}
+		}
+
+		@Override
+		public void resetBuffer() {
+			synchronized (lock) {
+				if (!finished) super.resetBuffer();
+			}
+		}
+
+		@Override
+		public void reset() {
+			synchronized (lock) {
+				if (!finished) super.reset();
+			}
+		}
+
+		private class GuardedOutputStream extends ServletOutputStream {
+
+			private final ServletOutputStream delegate;
+
+			GuardedOutputStream(ServletOutputStream delegate) {
+				this.delegate = delegate;
+			}
+
+			@Override
+			public void write(int b) throws IOException {
+				synchronized (lock) {
+					if (!finished) delegate.write(b);
+				}
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized (lock) {
+					if (!finished) delegate.write(b, off, len);
+				}
+			}
+
+			@Override
+			public void flush() throws IOException {
+				synchronized (lock) {
+					if (!finished) delegate.flush();
+				}
+			}
+
+			@Override
+			public void close() throws IOException {
+				synchronized (lock) {
+					if (!finished) delegate.close();
+				}
+			}
+
+			@Override
+			public boolean isReady() {
+				synchronized (lock) {
+					return finished || delegate.isReady();
+				}
+			}
+
+			@Override
+			public void setWriteListener(WriteListener writeListener) {
+				synchronized (lock) {
+					if (!finished) delegate.setWriteListener(writeListener);
+				}
+			}
+		}
+	}
+
 }
@@ -0,0 +1,86 @@
+package org.openconceptlab.fhir.cache;
+
+import org.hibernate.Cache;
+import org.openconceptlab.fhir.index.ConceptPrefixIndex;
+import org.openconceptlab.fhir.index.ConceptSearchIndex;
+import org.openconceptlab.fhir.index.ConceptTrigramIndex;
+import org.openconceptlab.fhir.index.SourceSnapshotStore;
+import org.openconceptlab.fhir.model.Collection;
+import org.openconceptlab.fhir.model.Concept;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * The CacheInvalidator. Evicts a changed source or collection version from every cache layer of this node, starting
+ * with the second-level cache so that the layers which are rebuilt on demand see its new state. Compressed responses
+ * are left alone since they are only served after their ETag has been revalidated, concept displays are keyed by the
+ * concept version and never outdated.
+ * @author agent
+ */
+@Component
+public class CacheInvalidator {
+
+    private static final Logger log = LoggerFactory.getLogger(CacheInvalidator.class);
+
+    EntityManagerFactory entityManagerFactory;
+    ConceptRepository conceptRepository;
+    ExpansionCache expansionCache;
+    CodeFilterCache codeFilterCache;
+    ClosureCache closureCache;
+    ConceptSearchIndex conceptSearchIndex;
+    ConceptPrefixIndex conceptPrefixIndex;
+    ConceptTrigramIndex conceptTrigramIndex;
+    SourceSnapshotStore sourceSnapshotStore;
+
+    @Autowired
+    public CacheInvalidator(EntityManagerFactory entityManagerFactory, ConceptRepository conceptRepository,
+                            ExpansionCache expansionCache,
+                            CodeFilterCache codeFilterCache, ClosureCache closureCache,
+                            ConceptSearchIndex conceptSearchIndex, ConceptPrefixIndex conceptPrefixIndex,
+                            ConceptTrigramIndex conceptTrigramIndex,
+                            SourceSnapshotStore sourceSnapshotStore) {
+        this.entityManagerFactory = entityManagerFactory;
+        this.conceptRepository = conceptRepository;
+        this.expansionCache = expansionCache;
+        this.codeFilterCache = codeFilterCache;
+        this.closureCache = closureCache;
+        this.conceptSearchIndex = conceptSearchIndex;
+        this.conceptPrefixIndex = conceptPrefixIndex;
+        this.conceptTrigramIndex = conceptTrigramIndex;
+        this.sourceSnapshotStore = sourceSnapshotStore;
+    }
+
+    public void evictSource(Long sourceId) {
+        log.debug("Evicting source {}", sourceId);
+        Cache cache = getSecondLevelCache();
+        cache.evictEntityData(Source.class, sourceId);
+        cache.evictCollectionData(Source.class.getName() + ".conceptsSources", sourceId);
+        // the changed concepts are not known, the names of all concepts of the source are reloaded on demand
+        String names = Concept.class.getName() + ".conceptsNames";
+        conceptRepository.findIdsBySourceId(sourceId).forEach(id -> cache.evictCollectionData(names, id));
+        // the snapshot goes first, the tables below are rebuilt from it
+        sourceSnapshotStore.invalidate(sourceId);
+        codeFilterCache.invalidate(sourceId);
+        closureCache.invalidate(sourceId);
+        conceptSearchIndex.invalidate(sourceId);
+        conceptPrefixIndex.invalidate(sourceId);
+        conceptTrigramIndex.invalidate(sourceId);
+        expansionCache.invalidateSource(sourceId);
+    }
+
+    public void evictCollection(Long collectionId) {
+        log.debug("Evicting collection {}", collectionId);
+        getSecondLevelCache().evictEntityData(Collection.class, collectionId);
+        expansionCache.invalidateCollection(collectionId);
+    }
+
+    private Cache getSecondLevelCache() {
+        return entityManagerFactory.getCache().unwrap(Cache.class);
+    }
+}
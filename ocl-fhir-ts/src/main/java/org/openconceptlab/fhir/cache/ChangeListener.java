@@ -0,0 +1,153 @@
+package org.openconceptlab.fhir.cache;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.sql.*;
+
+/**
+ * The ChangeListener. Keeps the caches of this node in line with the changes the OCL API makes to sources and
+ * collections. It listens on a Postgres notification channel, fed by the triggers of db/cache_invalidation.sql with
+ * payloads of the form table:id, and additionally polls the updated_at columns of sources and collections, which also
+ * covers databases without the triggers and notifications missed while the connection was down. A dedicated
+ * connection to the primary is held, outside of the connection pool.
+ * @author agent
+ */
+@Component
+public class ChangeListener {
+
+    private static final Logger log = LoggerFactory.getLogger(ChangeListener.class);
+
+    private static final String SOURCES = "sources";
+    private static final String COLLECTIONS = "collections";
+    private static final String UPDATED_SINCE = "select 'sources', id, updated_at from sources where updated_at > ? " +
+            "union all select 'collections', id, updated_at from collections where updated_at > ?";
+    private static final long RECONNECT_DELAY = 10000;
+
+    CacheInvalidator cacheInvalidator;
+    DataSourceProperties dataSourceProperties;
+
+    @Value("${ocl.invalidation.enabled}")
+    private boolean enabled;
+
+    @Value("${ocl.invalidation.channel}")
+    private String channel;
+
+    @Value("${ocl.invalidation.poll-interval}")
+    private long pollInterval;
+
+    private volatile boolean running;
+    private Thread thread;
+    private Timestamp since;
+
+    @Autowired
+    public ChangeListener(CacheInvalidator cacheInvalidator, DataSourceProperties dataSourceProperties) {
+        this.cacheInvalidator = cacheInvalidator;
+        this.dataSourceProperties = dataSourceProperties;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) return;
+        running = true;
+        thread = new Thread(this::run, "ocl-change-listener");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @PreDestroy
+    private void stop() {
+        running = false;
+        if (thread != null) thread.interrupt();
+    }
+
+    private void run() {
+        while (running) {
+            try (Connection connection = DriverManager.getConnection(dataSourceProperties.determineUrl(),
+                    dataSourceProperties.determineUsername(), dataSourceProperties.determinePassword())) {
+                listen(connection);
+            } catch (SQLException | RuntimeException e) {
+                log.warn("Cache invalidation failed, reconnecting in {} ms: {}", RECONNECT_DELAY, e.getMessage());
+            }
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void listen(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("listen " + channel);
+        }
+        // changes made while disconnected are caught up by the first poll
+        if (since == null) since = now(connection);
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        long nextPoll = 0;
+        log.info("Listening for changes on channel {}", channel);
+        while (running) {
+            if (pollInterval > 0 && System.currentTimeMillis() >= nextPoll) {
+                poll(connection);
+                nextPoll = System.currentTimeMillis() + pollInterval;
+            }
+            long timeout = pollInterval > 0 ? Math.max(nextPoll - System.currentTimeMillis(), 1) : 0;
+            PGNotification[] notifications = pgConnection.getNotifications((int) Math.min(timeout, Integer.MAX_VALUE));
+            if (notifications == null) continue;
+            for (PGNotification notification : notifications) evict(notification.getParameter());
+        }
+    }
+
+    private void poll(Connection connection) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(UPDATED_SINCE)) {
+            statement.setTimestamp(1, since);
+            statement.setTimestamp(2, since);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    evict(resultSet.getString(1), resultSet.getLong(2));
+                    Timestamp updatedAt = resultSet.getTimestamp(3);
+                    if (updatedAt != null && updatedAt.after(since)) since = updatedAt;
+                }
+            }
+        }
+    }
+
+    private void evict(String payload) {
+        String[] parts = payload == null ? new String[0] : payload.split(":");
+        try {
+            if (parts.length == 2) {
+                evict(parts[0], Long.parseLong(parts[1]));
+                return;
+            }
+        } catch (NumberFormatException e) {
+            // logged below
+        }
+        log.warn("Ignoring change notification {}", payload);
+    }
+
+    private void evict(String table, Long id) {
+        if (SOURCES.equals(table)) {
+            cacheInvalidator.evictSource(id);
+        } else if (COLLECTIONS.equals(table)) {
+            cacheInvalidator.evictCollection(id);
+        }
+    }
+
+    private static Timestamp now(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("select now()")) {
+            resultSet.next();
+            return resultSet.getTimestamp(1);
+        }
+    }
+}
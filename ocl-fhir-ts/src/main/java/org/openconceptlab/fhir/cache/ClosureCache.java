@@ -0,0 +1,293 @@
+package org.openconceptlab.fhir.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openconceptlab.fhir.index.SourceSnapshot;
+import org.openconceptlab.fhir.index.SourceSnapshotStore;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.openconceptlab.fhir.repository.MappingRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirUtil.getLastUpdated;
+
+/**
+ * The ClosureCache. Keeps the concept hierarchy of every queried source version, taken from the mappings of the
+ * configured parent and child map types between concepts of the source. The children and the transitive closure of
+ * ancestors of every concept are held as compact arrays of concept indexes, so a subsumption test is a binary search.
+ * The closures are bounded by their total size and evicted least recently used first, a closure is rebuilt when its
+ * source version has changed.
+ * @author agent
+ */
+@Component
+public class ClosureCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ClosureCache.class);
+
+    ConceptRepository conceptRepository;
+    SourceSnapshotStore sourceSnapshotStore;
+    MappingRepository mappingRepository;
+
+    @Value("${ocl.hierarchy.parent-map-types}")
+    private String[] parentMapTypes;
+
+    @Value("${ocl.hierarchy.child-map-types}")
+    private String[] childMapTypes;
+
+    @Value("${ocl.hierarchy.max-entries}")
+    private long maxEntries;
+
+    private Cache<Long, Closure> cache;
+
+    @Autowired
+    public ClosureCache(ConceptRepository conceptRepository, SourceSnapshotStore sourceSnapshotStore,
+                        MappingRepository mappingRepository) {
+        this.conceptRepository = conceptRepository;
+        this.sourceSnapshotStore = sourceSnapshotStore;
+        this.mappingRepository = mappingRepository;
+    }
+
+    @PostConstruct
+    private void init() {
+        // a single segment, the total size bounds all closures rather than a share of it per segment
+        cache = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxEntries)
+                .weigher((Long id, Closure closure) -> closure.size())
+                .build();
+    }
+
+    /**
+     * Returns the hierarchy of the source. Must be called within a transaction since it may have to be built.
+     */
+    public Closure get(Source source) {
+        Date lastUpdated = getLastUpdated(source);
+        long stamp = lastUpdated == null ? 0 : lastUpdated.getTime();
+        Closure closure = cache.getIfPresent(source.getId());
+        if (closure != null && closure.stamp != stamp) cache.invalidate(source.getId());
+        try {
+            return cache.get(source.getId(), () -> build(source, stamp));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build hierarchy of source " + source.getId(), e.getCause());
+        }
+    }
+
+    /**
+     * Drops the hierarchy of the source, it is rebuilt when next needed.
+     */
+    public void invalidate(Long sourceId) {
+        cache.invalidate(sourceId);
+    }
+
+    private Closure build(Source source, long stamp) {
+        long start = System.currentTimeMillis();
+        Set<String> parentTypes = new HashSet<>(Arrays.asList(parentMapTypes));
+        Set<String> mapTypes = new HashSet<>(parentTypes);
+        mapTypes.addAll(Arrays.asList(childMapTypes));
+        List<MappingRepository.ConceptLink> links = mappingRepository.findLinksBySourceId(source.getId(), mapTypes);
+        Optional<SourceSnapshot> snapshot = sourceSnapshotStore.get(source);
+        Closure closure;
+        if (snapshot.isPresent()) {
+            closure = new Closure(stamp, snapshot.get(), links, parentTypes);
+        } else {
+            List<ConceptRepository.ConceptCode> codes;
+            try (Stream<ConceptRepository.ConceptCode> stream = conceptRepository.streamCodesBySourceId(source.getId())) {
+                codes = stream.sorted(Comparator.comparing(ConceptRepository.ConceptCode::getMnemonic))
+                        .collect(Collectors.toList());
+            }
+            closure = new Closure(stamp, codes, links, parentTypes);
+        }
+        log.info("Built hierarchy of source {} with {} concepts and {} links in {} ms", source.getId(),
+                closure.count, links.size(), System.currentTimeMillis() - start);
+        return closure;
+    }
+
+    /**
+     * The hierarchy of one source version. Concepts are indexed in code order, the children and ancestors of concept
+     * i are the ranges [offsets[i], offsets[i + 1]) of the respective arrays. Cycles are broken, a concept on a cycle
+     * only inherits the ancestors of the parents outside of it. Built from a snapshot, concepts are indexed as in the
+     * snapshot and their codes and ids are read from it, retired concepts being left out of the hierarchy.
+     */
+    public static class Closure {
+        private final long stamp;
+        private final int count;
+        private final String[] codes;
+        private final long[] conceptIds;
+        private final SourceSnapshot snapshot;
+        private final int[] childOffsets;
+        private final int[] children;
+        private final int[] ancestorOffsets;
+        private final int[] ancestors;
+
+        Closure(long stamp, List<ConceptRepository.ConceptCode> concepts, List<MappingRepository.ConceptLink> links,
+                Set<String> parentMapTypes) {
+            this(stamp, concepts.stream().map(ConceptRepository.ConceptCode::getMnemonic).toArray(String[]::new),
+                    concepts.stream().mapToLong(ConceptRepository.ConceptCode::getConceptId).toArray(), null, links,
+                    parentMapTypes);
+        }
+
+        Closure(long stamp, SourceSnapshot snapshot, List<MappingRepository.ConceptLink> links,
+                Set<String> parentMapTypes) {
+            this(stamp, null, null, snapshot, links, parentMapTypes);
+        }
+
+        private Closure(long stamp, String[] codes, long[] conceptIds, SourceSnapshot snapshot,
+                        List<MappingRepository.ConceptLink> links, Set<String> parentMapTypes) {
+            this.stamp = stamp;
+            this.codes = codes;
+            this.conceptIds = conceptIds;
+            this.snapshot = snapshot;
+            count = snapshot != null ? snapshot.size() : codes.length;
+            int size = count;
+            List<Set<Integer>> childSets = new ArrayList<>(size);
+            List<Set<Integer>> parentSets = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                childSets.add(new TreeSet<>());
+                parentSets.add(new TreeSet<>());
+            }
+            for (MappingRepository.ConceptLink link : links) {
+                int from = indexOf(link.getFromCode());
+                int to = indexOf(link.getToCode());
+                if (from < 0 || to < 0 || from == to) continue;
+                int parent = parentMapTypes.contains(link.getMapType()) ? from : to;
+                int child = parent == from ? to : from;
+                childSets.get(parent).add(child);
+                parentSets.get(child).add(parent);
+            }
+            childOffsets = new int[size + 1];
+            children = flatten(childSets, childOffsets);
+            ancestorOffsets = new int[size + 1];
+            ancestors = flatten(closeAncestors(parentSets, childSets), ancestorOffsets);
+        }
+
+        /**
+         * Ancestors of every concept, computed parents first.
+         */
+        private static List<Set<Integer>> closeAncestors(List<Set<Integer>> parentSets, List<Set<Integer>> childSets) {
+            int size = parentSets.size();
+            List<Set<Integer>> result = new ArrayList<>(size);
+            int[] pending = new int[size];
+            Deque<Integer> ready = new ArrayDeque<>();
+            for (int i = 0; i < size; i++) {
+                result.add(new TreeSet<>());
+                pending[i] = parentSets.get(i).size();
+                if (pending[i] == 0) ready.add(i);
+            }
+            boolean[] done = new boolean[size];
+            while (true) {
+                while (!ready.isEmpty()) {
+                    int node = ready.poll();
+                    done[node] = true;
+                    for (int parent : parentSets.get(node)) {
+                        if (!done[parent]) continue;
+                        result.get(node).add(parent);
+                        result.get(node).addAll(result.get(parent));
+                    }
+                    for (int child : childSets.get(node)) {
+                        if (--pending[child] == 0) ready.add(child);
+                    }
+                }
+                // the remaining concepts are on or below a cycle, release the first one to break it
+                int next = -1;
+                for (int i = 0; i < size && next < 0; i++) {
+                    if (!done[i]) next = i;
+                }
+                if (next < 0) break;
+                pending[next] = 0;
+                ready.add(next);
+            }
+            return result;
+        }
+
+        private static int[] flatten(List<Set<Integer>> sets, int[] offsets) {
+            int total = sets.stream().mapToInt(Set::size).sum();
+            int[] values = new int[total];
+            int position = 0;
+            for (int i = 0; i < sets.size(); i++) {
+                offsets[i] = position;
+                // sets are sorted, so every range can be binary searched
+                for (int value : sets.get(i)) values[position++] = value;
+            }
+            offsets[sets.size()] = position;
+            return values;
+        }
+
+        int size() {
+            return count + children.length + ancestors.length;
+        }
+
+        public boolean contains(String code) {
+            return indexOf(code) >= 0;
+        }
+
+        /**
+         * Returns true if the ancestor code subsumes the code, i.e. is one of its ancestors.
+         */
+        public boolean subsumes(String ancestor, String code) {
+            int a = indexOf(ancestor);
+            int c = indexOf(code);
+            if (a < 0 || c < 0) return false;
+            return Arrays.binarySearch(ancestors, ancestorOffsets[c], ancestorOffsets[c + 1], a) >= 0;
+        }
+
+        /**
+         * Returns the concept ids of all descendants of the code, optionally including the code itself.
+         */
+        public Set<Long> getDescendants(String code, boolean includeSelf) {
+            Set<Long> result = new HashSet<>();
+            int start = indexOf(code);
+            if (start < 0) return result;
+            boolean[] visited = new boolean[count];
+            Deque<Integer> queue = new ArrayDeque<>();
+            queue.add(start);
+            visited[start] = true;
+            while (!queue.isEmpty()) {
+                int node = queue.poll();
+                if (node != start || includeSelf) result.add(getConceptId(node));
+                for (int i = childOffsets[node]; i < childOffsets[node + 1]; i++) {
+                    if (!visited[children[i]]) {
+                        visited[children[i]] = true;
+                        queue.add(children[i]);
+                    }
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Returns the concept ids of all ancestors of the code, optionally including the code itself.
+         */
+        public Set<Long> getAncestors(String code, boolean includeSelf) {
+            Set<Long> result = new HashSet<>();
+            int node = indexOf(code);
+            if (node < 0) return result;
+            if (includeSelf) result.add(getConceptId(node));
+            for (int i = ancestorOffsets[node]; i < ancestorOffsets[node + 1]; i++) result.add(getConceptId(ancestors[i]));
+            return result;
+        }
+
+        private int indexOf(String code) {
+            if (code == null) return -1;
+            if (snapshot != null) {
+                int index = snapshot.indexOf(code);
+                return index < 0 || snapshot.isRetired(index) ? -1 : index;
+            }
+            int index = Arrays.binarySearch(codes, code);
+            return index < 0 ? -1 : index;
+        }
+
+        private long getConceptId(int index) {
+            return snapshot != null ? snapshot.getConceptId(index) : conceptIds[index];
+        }
+    }
+}
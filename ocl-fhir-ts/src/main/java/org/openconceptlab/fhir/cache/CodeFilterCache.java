@@ -0,0 +1,86 @@
+package org.openconceptlab.fhir.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import org.openconceptlab.fhir.index.SourceSnapshot;
+import org.openconceptlab.fhir.index.SourceSnapshotStore;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.HEAD;
+
+/**
+ * The CodeFilterCache. Keeps a Bloom filter of the concept codes of every released source version, built on first use,
+ * so that a code which is not in the source is rejected without looking it up. A code which might be in the source
+ * still has to be looked up. Versions with a snapshot are answered exactly by its code table instead, without a
+ * filter on the heap. Versions which can still change are never filtered.
+ * @author agent
+ */
+@Component
+public class CodeFilterCache {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    ConceptRepository conceptRepository;
+    SourceSnapshotStore sourceSnapshotStore;
+
+    @Value("${ocl.cache.code-filter.max-entries}")
+    private long maxEntries;
+
+    private Cache<Long, BloomFilter<CharSequence>> cache;
+
+    @Autowired
+    public CodeFilterCache(ConceptRepository conceptRepository, SourceSnapshotStore sourceSnapshotStore) {
+        this.conceptRepository = conceptRepository;
+        this.sourceSnapshotStore = sourceSnapshotStore;
+    }
+
+    @PostConstruct
+    private void init() {
+        cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    /**
+     * Returns false if the code is definitely not in the source. Must be called within a transaction since the filter
+     * may have to be built.
+     */
+    public boolean mightContain(Source source, String code) {
+        if (code == null) return false;
+        if (!Boolean.TRUE.equals(source.getReleased()) || HEAD.equals(source.getVersion())) return true;
+        Optional<SourceSnapshot> snapshot = sourceSnapshotStore.get(source);
+        if (snapshot.isPresent()) return snapshot.get().indexOf(code) >= 0;
+        try {
+            return cache.get(source.getId(), () -> build(source)).mightContain(code);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build code filter of source " + source.getId(), e.getCause());
+        }
+    }
+
+    /**
+     * Drops the filter of the source, it is rebuilt when next needed.
+     */
+    public void invalidate(Long sourceId) {
+        cache.invalidate(sourceId);
+    }
+
+    private BloomFilter<CharSequence> build(Source source) {
+        long expected = Math.max(conceptRepository.countDistinctMnemonicBySourceId(source.getId()), 1);
+        BloomFilter<CharSequence> filter = BloomFilter.create(Funnels.stringFunnel(StandardCharsets.UTF_8), expected,
+                FALSE_POSITIVE_PROBABILITY);
+        try (Stream<String> mnemonics = conceptRepository.streamMnemonicsBySourceId(source.getId())) {
+            mnemonics.forEach(filter::put);
+        }
+        return filter;
+    }
+}
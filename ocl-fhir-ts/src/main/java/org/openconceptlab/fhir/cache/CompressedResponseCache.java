@@ -0,0 +1,83 @@
+package org.openconceptlab.fhir.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The CompressedResponseCache. Keeps gzip compressed response bodies of large repository versions together with
+ * their ETag, so that repeated downloads of an unchanged version are served without rendering or compressing.
+ * Entries are only served after the ETag has been revalidated against the FHIR servlet.
+ * @author agent
+ */
+@Component
+public class CompressedResponseCache {
+
+    @Value("${ocl.cache.compressed.max-bytes}")
+    private long maxBytes;
+
+    @Value("${ocl.cache.compressed.min-response-size}")
+    private int minResponseSize;
+
+    private Cache<String, Entry> cache;
+
+    @PostConstruct
+    private void init() {
+        cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, Entry entry) -> entry.getBody().length)
+                .build();
+    }
+
+    public Optional<Entry> get(String key) {
+        return Optional.ofNullable(cache.getIfPresent(key));
+    }
+
+    /**
+     * Compresses and caches the given body if it is large enough to be worth it.
+     * @return the cached entry, or empty if the body was not cached
+     */
+    public Optional<Entry> put(String key, String eTag, String body) {
+        if (eTag == null || body.length() < minResponseSize) return Optional.empty();
+        Entry entry = new Entry(eTag, gzip(body));
+        cache.put(key, entry);
+        return Optional.of(entry);
+    }
+
+    private static byte[] gzip(String body) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length() / 8);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(body.getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static class Entry {
+        private final String eTag;
+        private final byte[] body;
+
+        Entry(String eTag, byte[] body) {
+            this.eTag = eTag;
+            this.body = body;
+        }
+
+        public String getETag() {
+            return eTag;
+        }
+
+        public byte[] getBody() {
+            return body;
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package org.openconceptlab.fhir.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openconceptlab.fhir.model.Concept;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.openconceptlab.fhir.util.ConceptDisplay;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * The ConceptDisplayCache. Keeps the resolved display names of concept versions, keyed by concept id and update time
+ * so that an edited concept is resolved again. A cached concept is rendered without loading its names. Displays of
+ * many concepts are resolved from the names in the requested locales only, queried for all missing concepts at once.
+ * @author agent
+ */
+@Component
+public class ConceptDisplayCache {
+
+    private static final String ALL_LOCALES = "*";
+
+    ConceptRepository conceptRepository;
+
+    @Value("${ocl.cache.display.max-entries}")
+    private long maxEntries;
+
+    private Cache<String, ConceptDisplay> cache;
+
+    @Autowired
+    public ConceptDisplayCache(ConceptRepository conceptRepository) {
+        this.conceptRepository = conceptRepository;
+    }
+
+    @PostConstruct
+    private void init() {
+        cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    public ConceptDisplay get(Concept concept) {
+        if (concept.getId() == null) return ConceptDisplay.of(concept.getConceptsNames());
+        String key = getKey(concept, ALL_LOCALES);
+        try {
+            return cache.get(key, () -> ConceptDisplay.of(concept.getConceptsNames()));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the displays of the given concepts by concept id, resolvable in the given display language and default
+     * locale. The names of the concepts which are not cached are queried at once, in these locales only.
+     */
+    public Map<Long, ConceptDisplay> getAll(Collection<Concept> concepts, String displayLanguage,
+                                            String defaultLocale) {
+        Set<String> locales = new TreeSet<>();
+        if (displayLanguage != null) locales.add(displayLanguage);
+        if (defaultLocale != null) locales.add(defaultLocale);
+        String suffix = String.join(",", locales);
+        Map<Long, ConceptDisplay> displays = new HashMap<>();
+        Map<Long, String> missing = new HashMap<>();
+        for (Concept concept : concepts) {
+            String key = getKey(concept, suffix);
+            ConceptDisplay display = cache.getIfPresent(key);
+            if (display != null) displays.put(concept.getId(), display);
+            else missing.put(concept.getId(), key);
+        }
+        if (missing.isEmpty()) return displays;
+        Map<Long, List<ConceptRepository.ConceptName>> names = conceptRepository.findDisplayNamesByConceptIdIn(
+                missing.keySet(), locales);
+        missing.forEach((id, key) -> {
+            ConceptDisplay display = ConceptDisplay.ofNames(names.getOrDefault(id, Collections.emptyList()));
+            cache.put(key, display);
+            displays.put(id, display);
+        });
+        return displays;
+    }
+
+    private static String getKey(Concept concept, String locales) {
+        return concept.getId() + "|" + (concept.getUpdatedAt() == null ? 0 : concept.getUpdatedAt().getTime()) + "|"
+                + locales;
+    }
+}
@@ -0,0 +1,61 @@
+package org.openconceptlab.fhir.cache;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * The ExpansionCache. Keeps expansion pages of released ValueSet versions, the key includes the version stamp of the
+ * collection so that an updated version is never served from the cache. Copies are handed out since the cached
+ * resources are shared between requests.
+ * @author agent
+ */
+@Component
+public class ExpansionCache {
+
+    @Value("${ocl.cache.expansion.max-entries}")
+    private long maxEntries;
+
+    private Cache<String, ValueSet> cache;
+
+    @PostConstruct
+    private void init() {
+        cache = CacheBuilder.newBuilder().maximumSize(maxEntries).build();
+    }
+
+    public Optional<ValueSet> get(String key) {
+        return Optional.ofNullable(cache.getIfPresent(key)).map(ValueSet::copy);
+    }
+
+    public void put(String key, ValueSet valueSet) {
+        cache.put(key, valueSet.copy());
+    }
+
+    /**
+     * Drops the pages of every version of the collection.
+     */
+    public void invalidateCollection(Long collectionId) {
+        String prefix = collectionId + ".";
+        cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * Drops the pages of every collection including concepts of the source version.
+     */
+    public void invalidateSource(Long sourceId) {
+        String versionId = sourceId + ".";
+        // the first version id of a key is the one of the collection, the others are the ones of included sources
+        cache.asMap().keySet().removeIf(key -> Arrays.stream(key.split("\\|")[0].split(","))
+                .skip(1).anyMatch(id -> id.startsWith(versionId)));
+    }
+
+    public static String key(String versionId, int offset, int count) {
+        return String.join("|", versionId, String.valueOf(offset), String.valueOf(count));
+    }
+}
@@ -2,19 +2,56 @@ package org.openconceptlab.fhir.config;
 
 import org.hibernate.boot.model.naming.ImplicitNamingStrategy;
 import org.hibernate.boot.model.naming.ImplicitNamingStrategyLegacyJpaImpl;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
 import javax.annotation.PostConstruct;
 import java.util.List;
+import java.util.concurrent.ThreadPoolExecutor;
 
 /**
  * The Configuration class.
  * @author harpatel1
  */
 @Configuration
-public class Config {
+public class Config implements WebMvcConfigurer {
+
+    public static final String RENDER_EXECUTOR = "oclRenderExecutor";
+    public static final String PROXY_EXECUTOR = "oclProxyExecutor";
+    public static final String EXPORT_EXECUTOR = "oclExportExecutor";
+    public static final String CONVERSION_EXECUTOR = "oclConversionExecutor";
+
+    @Value("${ocl.async.render.pool-size}")
+    private int renderPoolSize;
+
+    @Value("${ocl.async.render.queue-capacity}")
+    private int renderQueueCapacity;
+
+    @Value("${ocl.async.proxy.pool-size}")
+    private int proxyPoolSize;
+
+    @Value("${ocl.async.proxy.queue-capacity}")
+    private int proxyQueueCapacity;
+
+    @Value("${ocl.export.pool-size}")
+    private int exportPoolSize;
+
+    @Value("${ocl.export.queue-capacity}")
+    private int exportQueueCapacity;
+
+    @Value("${ocl.conversion.pool-size}")
+    private int conversionPoolSize;
+
+    @Value("${ocl.conversion.queue-capacity}")
+    private int conversionQueueCapacity;
+
+    @Value("${ocl.async.timeout}")
+    private long asyncTimeout;
 
     @Bean
     public ImplicitNamingStrategy implicit() {
@@ -24,7 +61,60 @@ public class Config {
     @Bean
     public Jackson2ObjectMapperBuilder jacksonBuilder() {
         Jackson2ObjectMapperBuilder builder = new Jackson2ObjectMapperBuilder();
-        builder.indentOutput(true);
+        builder.indentOutput(false);
         return builder;
     }
+
+    /**
+     * Bounded executor for long running reads (full CodeSystem and ValueSet rendering), kept apart from the
+     * servlet container threads so that terminology operations are not starved by them.
+     */
+    @Bean(name = RENDER_EXECUTOR)
+    public ThreadPoolTaskExecutor renderExecutor() {
+        return newExecutor("ocl-render-", renderPoolSize, renderQueueCapacity);
+    }
+
+    /**
+     * Bounded executor for OCL end points which proxy long running reads to the FHIR servlet. It must not be
+     * shared with the render executor, otherwise the proxying thread could wait on a render it is itself blocking.
+     */
+    @Bean(name = PROXY_EXECUTOR)
+    public ThreadPoolTaskExecutor proxyExecutor() {
+        return newExecutor("ocl-proxy-", proxyPoolSize, proxyQueueCapacity);
+    }
+
+    /**
+     * Executor running the bulk export jobs, jobs beyond the pool size wait in the bounded queue and further kick-off
+     * requests are rejected.
+     */
+    @Bean(name = EXPORT_EXECUTOR)
+    public ThreadPoolTaskExecutor exportExecutor() {
+        return newExecutor("ocl-export-", exportPoolSize, exportQueueCapacity);
+    }
+
+    /**
+     * Executor converting chunks of large concept sets. When it is saturated the chunk is converted by the requesting
+     * thread, so a busy pool slows conversions down rather than failing them.
+     */
+    @Bean(name = CONVERSION_EXECUTOR)
+    public ThreadPoolTaskExecutor conversionExecutor() {
+        ThreadPoolTaskExecutor executor = newExecutor("ocl-convert-", conversionPoolSize, conversionQueueCapacity);
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        return executor;
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setTaskExecutor(proxyExecutor());
+        configurer.setDefaultTimeout(asyncTimeout);
+    }
+
+    private ThreadPoolTaskExecutor newExecutor(String prefix, int poolSize, int queueCapacity) {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setThreadNamePrefix(prefix);
+        executor.setCorePoolSize(poolSize);
+        executor.setMaxPoolSize(poolSize);
+        executor.setQueueCapacity(queueCapacity);
+        return executor;
+    }
 }
@@ -0,0 +1,62 @@
+package org.openconceptlab.fhir.config;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The DataSourceConfig. Only active when replica URLs are configured, read-only transactions are then routed to the
+ * replicas by the {@link ReplicaRoutingDataSource}. The replica pools share the settings and credentials of the
+ * primary pool.
+ * @author agent
+ */
+@Configuration
+@ConditionalOnExpression("!'${ocl.datasource.replica.urls:}'.trim().isEmpty()")
+public class DataSourceConfig {
+
+    @Value("${ocl.datasource.replica.urls}")
+    private String[] replicaUrls;
+
+    @Value("${ocl.datasource.replica.max-lag}")
+    private long maxLag;
+
+    @Value("${ocl.datasource.replica.health-check-interval}")
+    private long healthCheckInterval;
+
+    @Bean
+    @ConfigurationProperties("spring.datasource.hikari")
+    public HikariDataSource primaryDataSource(DataSourceProperties properties) {
+        return properties.initializeDataSourceBuilder().type(HikariDataSource.class).build();
+    }
+
+    @Bean
+    public ReplicaRoutingDataSource replicaRoutingDataSource(HikariDataSource primaryDataSource) {
+        List<DataSource> replicas = new ArrayList<>();
+        for (int i = 0; i < replicaUrls.length; i++) {
+            HikariConfig config = new HikariConfig();
+            primaryDataSource.copyStateTo(config);
+            config.setJdbcUrl(replicaUrls[i].trim());
+            config.setPoolName("ocl-replica-" + i);
+            config.setReadOnly(true);
+            replicas.add(new HikariDataSource(config));
+        }
+        return new ReplicaRoutingDataSource(primaryDataSource, replicas, maxLag, healthCheckInterval);
+    }
+
+    @Bean
+    @Primary
+    public DataSource dataSource(ReplicaRoutingDataSource replicaRoutingDataSource) {
+        return new LazyConnectionDataSourceProxy(replicaRoutingDataSource);
+    }
+}
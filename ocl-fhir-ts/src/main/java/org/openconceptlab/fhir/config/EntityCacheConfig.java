@@ -0,0 +1,70 @@
+package org.openconceptlab.fhir.config;
+
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.ExpiryPolicyBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.jsr107.Eh107Configuration;
+import org.ehcache.jsr107.EhcacheCachingProvider;
+import org.hibernate.cache.jcache.ConfigSettings;
+import org.openconceptlab.fhir.model.*;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.orm.jpa.HibernatePropertiesCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import javax.cache.CacheManager;
+import javax.cache.Caching;
+import java.time.Duration;
+
+/**
+ * The EntityCacheConfig. Regions of the Hibernate second-level cache, held on the local heap and bounded by their
+ * number of entries. Sources, collections and their owners are edited by the OCL API, their regions expire after the
+ * configured time to live. Localized texts and the concept name and concept source rows are never changed once
+ * created, they are cached read-only and only evicted by size. Cache statistics are published over JMX and, with
+ * Hibernate statistics enabled, as hibernate meters.
+ * @author agent
+ */
+@Configuration
+public class EntityCacheConfig {
+
+    @Value("${ocl.cache.entity.max-entries}")
+    private long maxEntries;
+
+    @Value("${ocl.cache.entity.concept-max-entries}")
+    private long conceptMaxEntries;
+
+    @Value("${ocl.cache.entity.time-to-live}")
+    private long timeToLive;
+
+    @Bean(destroyMethod = "close")
+    public CacheManager entityCacheManager() {
+        CacheManager cacheManager = Caching.getCachingProvider(EhcacheCachingProvider.class.getName())
+                .getCacheManager();
+        // edited by the OCL API, stale entries expire
+        createRegion(cacheManager, Source.class.getName(), maxEntries, true);
+        createRegion(cacheManager, Collection.class.getName(), maxEntries, true);
+        createRegion(cacheManager, Organization.class.getName(), maxEntries, true);
+        createRegion(cacheManager, UserProfile.class.getName(), maxEntries, true);
+        createRegion(cacheManager, Source.class.getName() + ".conceptsSources", maxEntries, true);
+        createRegion(cacheManager, Concept.class.getName() + ".conceptsNames", conceptMaxEntries, true);
+        // immutable rows
+        createRegion(cacheManager, LocalizedText.class.getName(), conceptMaxEntries, false);
+        createRegion(cacheManager, ConceptsName.class.getName(), conceptMaxEntries, false);
+        createRegion(cacheManager, ConceptsSource.class.getName(), conceptMaxEntries, false);
+        return cacheManager;
+    }
+
+    @Bean
+    public HibernatePropertiesCustomizer entityCacheCustomizer(CacheManager entityCacheManager) {
+        return properties -> properties.put(ConfigSettings.CACHE_MANAGER, entityCacheManager);
+    }
+
+    private void createRegion(CacheManager cacheManager, String region, long entries, boolean expires) {
+        CacheConfigurationBuilder<Object, Object> builder = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(Object.class, Object.class, ResourcePoolsBuilder.heap(entries));
+        if (expires)
+            builder = builder.withExpiry(ExpiryPolicyBuilder.timeToLiveExpiration(Duration.ofSeconds(timeToLive)));
+        cacheManager.createCache(region, Eh107Configuration.fromEhcacheCacheConfiguration(builder));
+        cacheManager.enableStatistics(region, true);
+    }
+}
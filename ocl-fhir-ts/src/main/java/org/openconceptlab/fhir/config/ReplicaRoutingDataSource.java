@@ -0,0 +1,127 @@
+package org.openconceptlab.fhir.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import javax.sql.DataSource;
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The ReplicaRoutingDataSource. Connections of read-only transactions are taken from the replicas in turn, all other
+ * connections from the primary. Every replica is checked periodically, a replica which can not be reached or whose
+ * replay lags behind the primary by more than the allowed lag is skipped until it has caught up. A replica whose WAL
+ * receiver is not streaming is skipped too, having stopped receiving changes it would look caught up. Reading the
+ * receiver status requires the pg_read_all_stats role. Without a usable replica read-only transactions fall back to
+ * the primary. The transaction must be known when the connection is taken, the data source is therefore used behind
+ * a lazy connection proxy.
+ * @author agent
+ */
+public class ReplicaRoutingDataSource extends AbstractDataSource implements DisposableBean {
+
+    private static final Logger log = LoggerFactory.getLogger(ReplicaRoutingDataSource.class);
+
+    // replay lag in seconds, a replica which streams from the primary and has replayed everything it received is not
+    // lagging, a replica which does not stream has no known lag (null)
+    private static final String LAG_QUERY = "select case when not pg_is_in_recovery() then 0 " +
+            "when not exists (select 1 from pg_stat_wal_receiver where status = 'streaming') then null " +
+            "when pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn() then 0 " +
+            "else coalesce(extract(epoch from now() - pg_last_xact_replay_timestamp()), 0) end";
+
+    private final DataSource primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxLag;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService healthCheck;
+
+    public ReplicaRoutingDataSource(DataSource primary, List<DataSource> replicas, long maxLag,
+                                    long healthCheckInterval) {
+        this.primary = primary;
+        this.maxLag = maxLag;
+        for (int i = 0; i < replicas.size(); i++) this.replicas.add(new Replica(i, replicas.get(i)));
+        healthCheck = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "ocl-replica-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthCheck.scheduleWithFixedDelay(this::checkReplicas, 0, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return select().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return select().getConnection(username, password);
+    }
+
+    private DataSource select() {
+        if (!TransactionSynchronizationManager.isCurrentTransactionReadOnly() || replicas.isEmpty()) return primary;
+        int start = Math.floorMod(next.getAndIncrement(), replicas.size());
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica.usable) return replica.dataSource;
+        }
+        return primary;
+    }
+
+    private void checkReplicas() {
+        replicas.forEach(replica -> {
+            boolean usable;
+            try (Connection connection = replica.dataSource.getConnection();
+                 Statement statement = connection.createStatement()) {
+                statement.setQueryTimeout(5);
+                try (ResultSet resultSet = statement.executeQuery(LAG_QUERY)) {
+                    Double lag = resultSet.next() ? resultSet.getDouble(1) : null;
+                    if (lag != null && resultSet.wasNull()) lag = null;
+                    usable = lag != null && lag <= maxLag;
+                    if (lag == null && replica.usable)
+                        log.warn("Replica {} does not stream from the primary, reading from the others", replica.index);
+                    else if (!usable && replica.usable)
+                        log.warn("Replica {} lags {} seconds behind the primary, reading from the others", replica.index, lag);
+                }
+            } catch (SQLException e) {
+                usable = false;
+                if (replica.usable)
+                    log.warn("Replica {} is not available, reading from the others: {}", replica.index, e.getMessage());
+            }
+            if (usable && !replica.usable)
+                log.info("Replica {} is available", replica.index);
+            replica.usable = usable;
+        });
+    }
+
+    @Override
+    public void destroy() throws IOException {
+        healthCheck.shutdownNow();
+        for (Replica replica : replicas) {
+            if (replica.dataSource instanceof Closeable) ((Closeable) replica.dataSource).close();
+        }
+    }
+
+    private static class Replica {
+        private final int index;
+        private final DataSource dataSource;
+        private volatile boolean usable;
+
+        Replica(int index, DataSource dataSource) {
+            this.index = index;
+            this.dataSource = dataSource;
+        }
+    }
+}
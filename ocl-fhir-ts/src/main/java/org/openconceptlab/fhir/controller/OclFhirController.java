@@ -1,9 +1,18 @@
 package org.openconceptlab.fhir.controller;
 
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.ICriterion;
 import ca.uhn.fhir.rest.gclient.IQuery;
 import ca.uhn.fhir.rest.gclient.StringClientParam;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
 import org.hl7.fhir.r4.model.*;
+import org.openconceptlab.fhir.cache.CompressedResponseCache;
+import org.openconceptlab.fhir.export.BulkExportJob;
+import org.openconceptlab.fhir.export.BulkExportService;
+import org.openconceptlab.fhir.interceptor.OclFhirConditionalRequestInterceptor;
 import org.openconceptlab.fhir.provider.CodeSystemResourceProvider;
 import org.openconceptlab.fhir.provider.ValueSetResourceProvider;
 import org.openconceptlab.fhir.util.OclFhirUtil;
@@ -12,14 +21,30 @@ import static org.openconceptlab.fhir.util.OclFhirConstants.*;
 import static org.openconceptlab.fhir.util.OclFhirUtil.*;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.RequestContextHolder;
+import org.springframework.web.context.request.ServletRequestAttributes;
+import org.springframework.web.servlet.support.ServletUriComponentsBuilder;
 
+import javax.servlet.http.HttpServletRequest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
- * The OclFhirController class. This is used to support OCL compatible end points.
+ * The OclFhirController class. This is used to support OCL compatible end points. CodeSystem and ValueSet reads
+ * are completed asynchronously so that long renders do not hold on to the container threads.
  *
  * @author harpatel1
  */
@@ -27,36 +52,77 @@ import java.util.Optional;
 @RequestMapping({"/"})
 public class OclFhirController {
 
+    // filters whose value is a comma separated list of alternatives
+    private static final Set<String> LIST_FILTERS = Set.of(CONCEPT_CLASS, DATATYPE, DESIGNATION);
+
     CodeSystemResourceProvider codeSystemResourceProvider;
     ValueSetResourceProvider valueSetResourceProvider;
     OclFhirUtil oclFhirUtil;
+    BulkExportService bulkExportService;
+    CompressedResponseCache compressedResponseCache;
 
     @Autowired
     public OclFhirController(CodeSystemResourceProvider codeSystemResourceProvider,
                              ValueSetResourceProvider valueSetResourceProvider,
-                             OclFhirUtil oclFhirUtil) {
+                             OclFhirUtil oclFhirUtil,
+                             BulkExportService bulkExportService,
+                             CompressedResponseCache compressedResponseCache) {
         this.codeSystemResourceProvider = codeSystemResourceProvider;
         this.valueSetResourceProvider = valueSetResourceProvider;
         this.oclFhirUtil = oclFhirUtil;
+        this.bulkExportService = bulkExportService;
+        this.compressedResponseCache = compressedResponseCache;
     }
 
     @GetMapping(path = {"/orgs/{org}/CodeSystem/{id}"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getCodeSystemByOrg(@PathVariable(name = ORG) String org, @PathVariable(name = ID) String id) {
-        return handleSearchResource(CodeSystem.class, OWNER, formatOrg(org), ID, id);
+    public Callable<ResponseEntity<?>> getCodeSystemByOrg(@PathVariable(name = ORG) String org, @PathVariable(name = ID) String id,
+                                                          @RequestParam(name = CONCEPT_CLASS, required = false) String conceptClass,
+                                                          @RequestParam(name = DATATYPE, required = false) String datatype,
+                                                          @RequestParam(name = INACTIVE, required = false) String inactive,
+                                                          @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                          @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                          @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(CodeSystem.class, withConceptFilters(conceptClass, datatype, inactive,
+                withDesignationFilters(displayLanguage, includeDesignations, designation, OWNER, formatOrg(org), ID, id)));
     }
 
     @GetMapping(path = {"/orgs/{org}/CodeSystem/{id}/version",
                         "/orgs/{org}/CodeSystem/{id}/version/{version}"},
                 produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getCodeSystemVersionsByOrg(@PathVariable(name = ORG) String org,
+    public Callable<ResponseEntity<?>> getCodeSystemVersionsByOrg(@PathVariable(name = ORG) String org,
                                                              @PathVariable(name = ID) String id,
-                                                             @PathVariable(name = VERSION) Optional<String> version) {
-        return handleSearchResource(CodeSystem.class, OWNER, formatOrg(org), ID, id, VERSION, version.orElse(ALL));
+                                                             @PathVariable(name = VERSION) Optional<String> version,
+                                                             @RequestParam(name = CONCEPT_CLASS, required = false) String conceptClass,
+                                                             @RequestParam(name = DATATYPE, required = false) String datatype,
+                                                             @RequestParam(name = INACTIVE, required = false) String inactive,
+                                                             @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                             @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                             @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(CodeSystem.class, withConceptFilters(conceptClass, datatype, inactive,
+                withDesignationFilters(displayLanguage, includeDesignations, designation,
+                        OWNER, formatOrg(org), ID, id, VERSION, version.orElse(ALL))));
+    }
+
+    @GetMapping(path = {"/orgs/{org}/CodeSystem/{id}/concept/{code}",
+                        "/orgs/{org}/CodeSystem/{id}/version/{version}/concept/{code}"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public Callable<ResponseEntity<?>> getCodeSystemConceptByOrg(@PathVariable(name = ORG) String org,
+                                                                 @PathVariable(name = ID) String id,
+                                                                 @PathVariable(name = VERSION) Optional<String> version,
+                                                                 @PathVariable(name = CODE) String code,
+                                                                 @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                                 @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                                 @RequestParam(name = DESIGNATION, required = false) String designation) {
+        if (version.isPresent())
+            return handleSearchResourceAsync(CodeSystem.class, withDesignationFilters(displayLanguage,
+                    includeDesignations, designation, OWNER, formatOrg(org), ID, id, VERSION, version.get(), CODE, code));
+        return handleSearchResourceAsync(CodeSystem.class, withDesignationFilters(displayLanguage,
+                includeDesignations, designation, OWNER, formatOrg(org), ID, id, CODE, code));
     }
 
     @GetMapping(path = {"/orgs/{org}/CodeSystem"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> searchCodeSystemsByOrg(@PathVariable String org) {
-        return handleSearchResource(CodeSystem.class, OWNER, formatOrg(org));
+    public Callable<ResponseEntity<?>> searchCodeSystemsByOrg(@PathVariable String org) {
+        return handleSearchResourceAsync(CodeSystem.class, OWNER, formatOrg(org));
     }
 
     @GetMapping(path = {"/orgs/{org}/CodeSystem/$lookup"}, produces = {MediaType.APPLICATION_JSON_VALUE})
@@ -64,8 +130,9 @@ public class OclFhirController {
                                          @RequestParam(name = SYSTEM) String system,
                                          @RequestParam(name = CODE) String code,
                                          @RequestParam(name = VERSION, required = false) String version,
-                                         @RequestParam(name = DISP_LANG, required = false) String displayLanguage) {
-        Parameters parameters = lookupParameters(system, code, version, displayLanguage, formatOrg(org));
+                                         @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                         @RequestParam(name = PROPERTY, required = false) List<String> property) {
+        Parameters parameters = lookupParameters(system, code, version, displayLanguage, property, formatOrg(org));
         return handleFhirOperation(parameters, CodeSystem.class, LOOKUP);
     }
 
@@ -82,8 +149,9 @@ public class OclFhirController {
                                                            @RequestParam(name = CODE) String code,
                                                            @RequestParam(name = VERSION, required = false) String version,
                                                            @RequestParam(name = DISPLAY, required = false) String display,
-                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage) {
-        Parameters parameters = validateCodeParameters(url, code, version, display, displayLanguage, formatOrg(org));
+                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                           @RequestParam(name = SUGGEST, required = false) Boolean suggest) {
+        Parameters parameters = validateCodeParameters(url, code, version, display, displayLanguage, suggest, formatOrg(org));
         return handleFhirOperation(parameters, CodeSystem.class, VALIDATE_CODE);
     }
 
@@ -94,42 +162,151 @@ public class OclFhirController {
         return handleFhirOperation(params, CodeSystem.class, VALIDATE_CODE);
     }
 
+    @GetMapping(path = {"/orgs/{org}/CodeSystem/$subsumes"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> subsumesCodeSystemsByOrg(@PathVariable String org,
+                                                           @RequestParam(name = SYSTEM) String system,
+                                                           @RequestParam(name = CODE_A) String codeA,
+                                                           @RequestParam(name = CODE_B) String codeB,
+                                                           @RequestParam(name = VERSION, required = false) String version) {
+        Parameters parameters = subsumesParameters(system, codeA, codeB, version, formatOrg(org));
+        return handleFhirOperation(parameters, CodeSystem.class, SUBSUMES);
+    }
+
+    @PostMapping(path = {"/orgs/{org}/CodeSystem/$subsumes"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> subsumesCodeSystemsByOrg(@PathVariable String org, @RequestBody String parameters) {
+        Parameters params = (Parameters) getResource(parameters);
+        params.addParameter().setName(OWNER).setValue(newStringType(formatOrg(org)));
+        return handleFhirOperation(params, CodeSystem.class, SUBSUMES);
+    }
+
+    @GetMapping(path = {"/orgs/{org}/CodeSystem/$changes"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> changesCodeSystemsByOrg(@PathVariable String org,
+                                                          @RequestParam(name = URL) String url,
+                                                          @RequestParam(name = VERSION, required = false) String version,
+                                                          @RequestParam(name = SINCE, required = false) String since,
+                                                          @RequestParam(name = FROM_VERSION, required = false) String fromVersion) {
+        Parameters parameters = changesParameters(url, version, since, fromVersion, formatOrg(org));
+        return handleFhirOperation(parameters, CodeSystem.class, CHANGES, CodeSystem.class);
+    }
+
+    @GetMapping(path = {"/orgs/{org}/CodeSystem/{id}/$search",
+                        "/orgs/{org}/CodeSystem/{id}/version/{version}/$search"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> searchCodeSystemByOrg(@PathVariable String org,
+                                                        @PathVariable(name = ID) String id,
+                                                        @PathVariable(name = VERSION) Optional<String> version,
+                                                        @RequestParam(name = TEXT) String text,
+                                                        @RequestParam(name = COUNT, required = false) Integer count) {
+        Parameters parameters = searchParameters(id, version.orElse(null), text, count, formatOrg(org));
+        return handleFhirOperation(parameters, CodeSystem.class, SEARCH, CodeSystem.class);
+    }
+
+    @GetMapping(path = {"/orgs/{org}/CodeSystem/{id}/$typeahead",
+                        "/orgs/{org}/CodeSystem/{id}/version/{version}/$typeahead"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> typeaheadCodeSystemByOrg(@PathVariable String org,
+                                                           @PathVariable(name = ID) String id,
+                                                           @PathVariable(name = VERSION) Optional<String> version,
+                                                           @RequestParam(name = TEXT) String text,
+                                                           @RequestParam(name = COUNT, required = false) Integer count,
+                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage) {
+        Parameters parameters = searchParameters(id, version.orElse(null), text, count, formatOrg(org));
+        if (isValid(displayLanguage))
+            parameters.addParameter().setName(DISP_LANG).setValue(new CodeType(displayLanguage));
+        return handleFhirOperation(parameters, CodeSystem.class, TYPEAHEAD, ValueSet.class);
+    }
+
     @GetMapping(path = {"/orgs/{org}/ValueSet/{id}"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getValueSetByOrg(@PathVariable String org, @PathVariable String id) {
-        return handleSearchResource(ValueSet.class, OWNER, formatOrg(org), ID, id);
+    public Callable<ResponseEntity<?>> getValueSetByOrg(@PathVariable String org, @PathVariable String id,
+                                                        @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                        @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                        @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(ValueSet.class, withDesignationFilters(displayLanguage, includeDesignations,
+                designation, OWNER, formatOrg(org), ID, id));
     }
 
     @GetMapping(path = {"/orgs/{org}/ValueSet/{id}/version",
                         "/orgs/{org}/ValueSet/{id}/version/{version}"},
                 produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getValueSetVersionsByOrg(@PathVariable(name = ORG) String org,
+    public Callable<ResponseEntity<?>> getValueSetVersionsByOrg(@PathVariable(name = ORG) String org,
                                                            @PathVariable(name = ID) String id,
-                                                           @PathVariable(name = VERSION) Optional<String> version) {
-        return handleSearchResource(ValueSet.class, OWNER, formatOrg(org), ID, id, VERSION, version.orElse(ALL));
+                                                           @PathVariable(name = VERSION) Optional<String> version,
+                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                           @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                           @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(ValueSet.class, withDesignationFilters(displayLanguage, includeDesignations,
+                designation, OWNER, formatOrg(org), ID, id, VERSION, version.orElse(ALL)));
+    }
+
+    @GetMapping(path = {"/orgs/{org}/ValueSet/{id}/$expand",
+                        "/orgs/{org}/ValueSet/{id}/version/{version}/$expand"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> expandValueSetByOrg(@PathVariable String org,
+                                                      @PathVariable(name = ID) String id,
+                                                      @PathVariable(name = VERSION) Optional<String> version,
+                                                      @RequestParam(name = OFFSET, required = false) Integer offset,
+                                                      @RequestParam(name = COUNT, required = false) Integer count,
+                                                      @RequestParam(name = ACTIVE_ONLY, required = false) Boolean activeOnly,
+                                                      @RequestParam(name = FILTER, required = false) String filter) {
+        Parameters parameters = expandParameters(id, version.orElse(null), offset, count, activeOnly, filter,
+                formatOrg(org));
+        return handleFhirOperation(parameters, ValueSet.class, EXPAND, ValueSet.class);
     }
 
     @GetMapping(path = {"/orgs/{org}/ValueSet"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> searchValueSetsByOrg(@PathVariable String org) {
-        return handleSearchResource(ValueSet.class, OWNER, formatOrg(org));
+    public Callable<ResponseEntity<?>> searchValueSetsByOrg(@PathVariable String org) {
+        return handleSearchResourceAsync(ValueSet.class, OWNER, formatOrg(org));
     }
 
     @GetMapping(path = {"/users/{user}/CodeSystem/{id}"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getCodeSystemByUser(@PathVariable String user, @PathVariable String id) {
-        return handleSearchResource(CodeSystem.class, OWNER, formatUser(user), ID, id);
+    public Callable<ResponseEntity<?>> getCodeSystemByUser(@PathVariable String user, @PathVariable String id,
+                                                           @RequestParam(name = CONCEPT_CLASS, required = false) String conceptClass,
+                                                           @RequestParam(name = DATATYPE, required = false) String datatype,
+                                                           @RequestParam(name = INACTIVE, required = false) String inactive,
+                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                           @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                           @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(CodeSystem.class, withConceptFilters(conceptClass, datatype, inactive,
+                withDesignationFilters(displayLanguage, includeDesignations, designation, OWNER, formatUser(user), ID, id)));
     }
 
     @GetMapping(path = {"/users/{user}/CodeSystem/{id}/version",
                         "/users/{user}/CodeSystem/{id}/version/{version}"},
                 produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getCodeSystemVersionsByUser(@PathVariable(name = USER) String user,
+    public Callable<ResponseEntity<?>> getCodeSystemVersionsByUser(@PathVariable(name = USER) String user,
                                                               @PathVariable(name = ID) String id,
-                                                              @PathVariable(name = VERSION) Optional<String> version) {
-        return handleSearchResource(CodeSystem.class, OWNER, formatUser(user), ID, id, VERSION, version.orElse(ALL));
+                                                              @PathVariable(name = VERSION) Optional<String> version,
+                                                              @RequestParam(name = CONCEPT_CLASS, required = false) String conceptClass,
+                                                              @RequestParam(name = DATATYPE, required = false) String datatype,
+                                                              @RequestParam(name = INACTIVE, required = false) String inactive,
+                                                              @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                              @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                              @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(CodeSystem.class, withConceptFilters(conceptClass, datatype, inactive,
+                withDesignationFilters(displayLanguage, includeDesignations, designation,
+                        OWNER, formatUser(user), ID, id, VERSION, version.orElse(ALL))));
+    }
+
+    @GetMapping(path = {"/users/{user}/CodeSystem/{id}/concept/{code}",
+                        "/users/{user}/CodeSystem/{id}/version/{version}/concept/{code}"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public Callable<ResponseEntity<?>> getCodeSystemConceptByUser(@PathVariable(name = USER) String user,
+                                                                  @PathVariable(name = ID) String id,
+                                                                  @PathVariable(name = VERSION) Optional<String> version,
+                                                                  @PathVariable(name = CODE) String code,
+                                                                  @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                                  @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                                  @RequestParam(name = DESIGNATION, required = false) String designation) {
+        if (version.isPresent())
+            return handleSearchResourceAsync(CodeSystem.class, withDesignationFilters(displayLanguage,
+                    includeDesignations, designation, OWNER, formatUser(user), ID, id, VERSION, version.get(), CODE, code));
+        return handleSearchResourceAsync(CodeSystem.class, withDesignationFilters(displayLanguage,
+                includeDesignations, designation, OWNER, formatUser(user), ID, id, CODE, code));
     }
 
     @GetMapping(path = {"/users/{user}/CodeSystem"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> searchCodeSystemsByUser(@PathVariable String user) {
-        return handleSearchResource(CodeSystem.class, OWNER, formatUser(user));
+    public Callable<ResponseEntity<?>> searchCodeSystemsByUser(@PathVariable String user) {
+        return handleSearchResourceAsync(CodeSystem.class, OWNER, formatUser(user));
     }
 
     @GetMapping(path = {"/users/{user}/CodeSystem/$lookup"}, produces = {MediaType.APPLICATION_JSON_VALUE})
@@ -137,8 +314,9 @@ public class OclFhirController {
                                                          @RequestParam(name = SYSTEM) String system,
                                                          @RequestParam(name = CODE) String code,
                                                          @RequestParam(name = VERSION, required = false) String version,
-                                                         @RequestParam(name = DISP_LANG, required = false) String displayLanguage) {
-        Parameters parameters = lookupParameters(system, code, version, displayLanguage, formatUser(user));
+                                                         @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                         @RequestParam(name = PROPERTY, required = false) List<String> property) {
+        Parameters parameters = lookupParameters(system, code, version, displayLanguage, property, formatUser(user));
         return handleFhirOperation(parameters, CodeSystem.class, LOOKUP);
     }
 
@@ -155,8 +333,9 @@ public class OclFhirController {
                                                            @RequestParam(name = CODE) String code,
                                                            @RequestParam(name = VERSION, required = false) String version,
                                                            @RequestParam(name = DISPLAY, required = false) String display,
-                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage) {
-        Parameters parameters = validateCodeParameters(url, code, version, display, displayLanguage, formatUser(user));
+                                                           @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                           @RequestParam(name = SUGGEST, required = false) Boolean suggest) {
+        Parameters parameters = validateCodeParameters(url, code, version, display, displayLanguage, suggest, formatUser(user));
         return handleFhirOperation(parameters, CodeSystem.class, VALIDATE_CODE);
     }
 
@@ -167,29 +346,240 @@ public class OclFhirController {
         return handleFhirOperation(params, CodeSystem.class, VALIDATE_CODE);
     }
 
+    @GetMapping(path = {"/users/{user}/CodeSystem/$subsumes"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> subsumesCodeSystemsByUser(@PathVariable String user,
+                                                            @RequestParam(name = SYSTEM) String system,
+                                                            @RequestParam(name = CODE_A) String codeA,
+                                                            @RequestParam(name = CODE_B) String codeB,
+                                                            @RequestParam(name = VERSION, required = false) String version) {
+        Parameters parameters = subsumesParameters(system, codeA, codeB, version, formatUser(user));
+        return handleFhirOperation(parameters, CodeSystem.class, SUBSUMES);
+    }
+
+    @PostMapping(path = {"/users/{user}/CodeSystem/$subsumes"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> subsumesCodeSystemsByUser(@PathVariable String user, @RequestBody String parameters) {
+        Parameters params = (Parameters) getResource(parameters);
+        params.addParameter().setName(OWNER).setValue(newStringType(formatUser(user)));
+        return handleFhirOperation(params, CodeSystem.class, SUBSUMES);
+    }
+
+    @GetMapping(path = {"/users/{user}/CodeSystem/$changes"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> changesCodeSystemsByUser(@PathVariable String user,
+                                                          @RequestParam(name = URL) String url,
+                                                          @RequestParam(name = VERSION, required = false) String version,
+                                                          @RequestParam(name = SINCE, required = false) String since,
+                                                          @RequestParam(name = FROM_VERSION, required = false) String fromVersion) {
+        Parameters parameters = changesParameters(url, version, since, fromVersion, formatUser(user));
+        return handleFhirOperation(parameters, CodeSystem.class, CHANGES, CodeSystem.class);
+    }
+
+    @GetMapping(path = {"/users/{user}/CodeSystem/{id}/$search",
+                        "/users/{user}/CodeSystem/{id}/version/{version}/$search"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> searchCodeSystemByUser(@PathVariable String user,
+                                                         @PathVariable(name = ID) String id,
+                                                         @PathVariable(name = VERSION) Optional<String> version,
+                                                         @RequestParam(name = TEXT) String text,
+                                                         @RequestParam(name = COUNT, required = false) Integer count) {
+        Parameters parameters = searchParameters(id, version.orElse(null), text, count, formatUser(user));
+        return handleFhirOperation(parameters, CodeSystem.class, SEARCH, CodeSystem.class);
+    }
+
+    @GetMapping(path = {"/users/{user}/CodeSystem/{id}/$typeahead",
+                        "/users/{user}/CodeSystem/{id}/version/{version}/$typeahead"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> typeaheadCodeSystemByUser(@PathVariable String user,
+                                                            @PathVariable(name = ID) String id,
+                                                            @PathVariable(name = VERSION) Optional<String> version,
+                                                            @RequestParam(name = TEXT) String text,
+                                                            @RequestParam(name = COUNT, required = false) Integer count,
+                                                            @RequestParam(name = DISP_LANG, required = false) String displayLanguage) {
+        Parameters parameters = searchParameters(id, version.orElse(null), text, count, formatUser(user));
+        if (isValid(displayLanguage))
+            parameters.addParameter().setName(DISP_LANG).setValue(new CodeType(displayLanguage));
+        return handleFhirOperation(parameters, CodeSystem.class, TYPEAHEAD, ValueSet.class);
+    }
+
     @GetMapping(path = {"/users/{user}/ValueSet/{id}"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getValueSetByUser(@PathVariable String user, @PathVariable String id) {
-        return handleSearchResource(ValueSet.class, OWNER, formatUser(user), ID, id);
+    public Callable<ResponseEntity<?>> getValueSetByUser(@PathVariable String user, @PathVariable String id,
+                                                         @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                         @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                         @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(ValueSet.class, withDesignationFilters(displayLanguage, includeDesignations,
+                designation, OWNER, formatUser(user), ID, id));
     }
 
     @GetMapping(path = {"/users/{user}/ValueSet/{id}/version",
                         "/users/{user}/ValueSet/{id}/version/{version}"},
                 produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> getValueSetVersionsByUser(@PathVariable(name = USER) String user,
+    public Callable<ResponseEntity<?>> getValueSetVersionsByUser(@PathVariable(name = USER) String user,
                                                             @PathVariable(name = ID) String id,
-                                                            @PathVariable(name = VERSION) Optional<String> version) {
-        return handleSearchResource(ValueSet.class, OWNER, formatUser(user), ID, id, VERSION, version.orElse(ALL));
+                                                            @PathVariable(name = VERSION) Optional<String> version,
+                                                            @RequestParam(name = DISP_LANG, required = false) String displayLanguage,
+                                                            @RequestParam(name = INCLUDE_DESIGNATIONS, required = false) String includeDesignations,
+                                                            @RequestParam(name = DESIGNATION, required = false) String designation) {
+        return handleSearchResourceAsync(ValueSet.class, withDesignationFilters(displayLanguage, includeDesignations,
+                designation, OWNER, formatUser(user), ID, id, VERSION, version.orElse(ALL)));
+    }
+
+    @GetMapping(path = {"/users/{user}/ValueSet/{id}/$expand",
+                        "/users/{user}/ValueSet/{id}/version/{version}/$expand"},
+                produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> expandValueSetByUser(@PathVariable String user,
+                                                      @PathVariable(name = ID) String id,
+                                                      @PathVariable(name = VERSION) Optional<String> version,
+                                                      @RequestParam(name = OFFSET, required = false) Integer offset,
+                                                      @RequestParam(name = COUNT, required = false) Integer count,
+                                                      @RequestParam(name = ACTIVE_ONLY, required = false) Boolean activeOnly,
+                                                       @RequestParam(name = FILTER, required = false) String filter) {
+        Parameters parameters = expandParameters(id, version.orElse(null), offset, count, activeOnly, filter,
+                formatUser(user));
+        return handleFhirOperation(parameters, ValueSet.class, EXPAND, ValueSet.class);
     }
 
     @GetMapping(path = {"/users/{user}/ValueSet"}, produces = {MediaType.APPLICATION_JSON_VALUE})
-    public ResponseEntity<String> searchValueSetsByUser(@PathVariable String user) {
-        return handleSearchResource(ValueSet.class, OWNER, formatUser(user));
+    public Callable<ResponseEntity<?>> searchValueSetsByUser(@PathVariable String user) {
+        return handleSearchResourceAsync(ValueSet.class, OWNER, formatUser(user));
+    }
+
+    /**
+     * Bulk export kick-off, exports all public CodeSystems and ValueSets. The response points to the status end point
+     * in the Content-Location header.
+     */
+    @GetMapping(path = {"/$export"})
+    public ResponseEntity<String> export(@RequestParam(name = TYPE, required = false) String type,
+                                         HttpServletRequest request) {
+        return startExport(null, type, request);
+    }
+
+    @GetMapping(path = {"/orgs/{org}/$export"})
+    public ResponseEntity<String> exportByOrg(@PathVariable String org,
+                                              @RequestParam(name = TYPE, required = false) String type,
+                                              HttpServletRequest request) {
+        return startExport(formatOrg(org), type, request);
     }
 
-    private ResponseEntity<String> handleSearchResource(final Class<? extends MetadataResource> resourceClass, final String... args) {
+    @GetMapping(path = {"/users/{user}/$export"})
+    public ResponseEntity<String> exportByUser(@PathVariable String user,
+                                               @RequestParam(name = TYPE, required = false) String type,
+                                               HttpServletRequest request) {
+        return startExport(formatUser(user), type, request);
+    }
+
+    /**
+     * Bulk export status. Returns 202 while the export is running and the manifest with download links once completed.
+     */
+    @GetMapping(path = {"/$export-poll-status/{jobId}"}, produces = {MediaType.APPLICATION_JSON_VALUE})
+    public ResponseEntity<String> exportStatus(@PathVariable String jobId) {
+        Optional<BulkExportJob> job = bulkExportService.getJob(jobId);
+        if (job.isEmpty())
+            return notFound(HttpStatus.NOT_FOUND.value(), oclFhirUtil.getResourceAsString(
+                    getError(OperationOutcome.IssueType.NOTFOUND, "Unknown export " + jobId)));
+        switch (job.get().getStatus()) {
+            case COMPLETED:
+                return ResponseEntity.ok(getExportManifest(job.get()));
+            case FAILED:
+                return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR).body(oclFhirUtil.getResourceAsString(
+                        getError(OperationOutcome.IssueType.EXCEPTION, String.join(", ", job.get().getErrors()))));
+            default:
+                return ResponseEntity.accepted().header("X-Progress", job.get().getProgress()).build();
+        }
+    }
+
+    @DeleteMapping(path = {"/$export-poll-status/{jobId}"})
+    public ResponseEntity<String> deleteExport(@PathVariable String jobId) {
+        return bulkExportService.delete(jobId) ? ResponseEntity.accepted().build() : ResponseEntity.notFound().build();
+    }
+
+    @GetMapping(path = {"/$export-file/{jobId}/{type}.ndjson"})
+    public ResponseEntity<FileSystemResource> exportFile(@PathVariable String jobId, @PathVariable String type) {
+        Optional<BulkExportJob> job = bulkExportService.getJob(jobId)
+                .filter(j -> j.getStatus() == BulkExportJob.Status.COMPLETED)
+                .filter(j -> j.getTypes().contains(type));
+        if (job.isEmpty())
+            return ResponseEntity.notFound().build();
+        return ResponseEntity.ok()
+                .contentType(MediaType.parseMediaType(FHIR_NDJSON))
+                .body(new FileSystemResource(job.get().getFile(type)));
+    }
+
+    private ResponseEntity<String> startExport(String owner, String type, HttpServletRequest request) {
+        List<String> types = isValid(type) ? Arrays.asList(type.split(",")) : Collections.emptyList();
+        if (!BulkExportService.SUPPORTED_TYPES.containsAll(types))
+            return badRequest();
+        String url = request.getRequestURL() + (isValid(request.getQueryString()) ? "?" + request.getQueryString() : EMPTY);
+        final BulkExportJob job;
+        try {
+            job = bulkExportService.start(url, owner, types);
+        } catch (TaskRejectedException e) {
+            return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                    .header(HttpHeaders.RETRY_AFTER, String.valueOf(EXPORT_RETRY_AFTER))
+                    .body(oclFhirUtil.getResourceAsString(getError(OperationOutcome.IssueType.THROTTLED,
+                            "Too many exports in progress, retry later")));
+        }
+        return ResponseEntity.accepted()
+                .header(HttpHeaders.CONTENT_LOCATION, getBaseUrl() + "/" + EXPORT_STATUS + "/" + job.getId())
+                .build();
+    }
+
+    private String getExportManifest(BulkExportJob job) {
+        JsonObject manifest = new JsonObject();
+        manifest.addProperty("transactionTime", job.getTransactionTime().toString());
+        manifest.addProperty("request", job.getRequest());
+        manifest.addProperty("requiresAccessToken", false);
+        JsonArray output = new JsonArray();
+        job.getTypes().forEach(type -> {
+            JsonObject file = new JsonObject();
+            file.addProperty("type", type);
+            file.addProperty(URL, getBaseUrl() + "/" + EXPORT_FILE + "/" + job.getId() + "/" + type + NDJSON);
+            file.addProperty("count", job.getCounts().containsKey(type) ? job.getCounts().get(type).get() : 0);
+            output.add(file);
+        });
+        manifest.add("output", output);
+        manifest.add("error", new JsonArray());
+        return gson.toJson(manifest);
+    }
+
+    private static String getBaseUrl() {
+        return ServletUriComponentsBuilder.fromCurrentContextPath().toUriString();
+    }
+
+    /**
+     * Captures the request headers on the container thread and returns the search to be completed asynchronously.
+     */
+    private Callable<ResponseEntity<?>> handleSearchResourceAsync(final Class<? extends MetadataResource> resourceClass,
+                                                                  final String... args) {
+        HttpServletRequest request = getCurrentRequest();
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        String ifModifiedSince = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        boolean pretty = isPretty(request);
+        boolean gzip = acceptsGzip(request) && isRepositoryVersion(args);
+        return () -> handleSearchResource(ifNoneMatch, ifModifiedSince, pretty, gzip, resourceClass, args);
+    }
+
+    /**
+     * Reads of a single repository version may be served from the {@link CompressedResponseCache}, the cached entry is
+     * revalidated with its ETag so that only an unchanged version is served from it.
+     */
+    private ResponseEntity<?> handleSearchResource(final String ifNoneMatch, final String ifModifiedSince, final boolean pretty,
+                                                   final boolean gzip, final Class<? extends MetadataResource> resourceClass,
+                                                   final String... args) {
+        String key = String.join("|", resourceClass.getSimpleName(), String.join("|", args), String.valueOf(pretty));
+        Optional<CompressedResponseCache.Entry> cached = gzip && !isValid(ifNoneMatch) ? compressedResponseCache.get(key)
+                : Optional.empty();
+        OclFhirConditionalRequestInterceptor conditional = cached
+                .map(entry -> new OclFhirConditionalRequestInterceptor(entry.getETag(), null))
+                .orElseGet(() -> new OclFhirConditionalRequestInterceptor(ifNoneMatch, ifModifiedSince));
         try {
-            String resource = searchResource(resourceClass, args);
-            return ResponseEntity.ok(resource);
+            String resource = searchResource(conditional, pretty, resourceClass, args);
+            if (gzip) {
+                Optional<CompressedResponseCache.Entry> entry = compressedResponseCache.put(key, conditional.getETag(), resource);
+                if (entry.isPresent()) return gzipped(conditional, entry.get());
+            }
+            return conditional.apply(ResponseEntity.ok()).body(resource);
+        } catch (NotModifiedException e) {
+            if (cached.isPresent()) return gzipped(conditional, cached.get());
+            return conditional.apply(ResponseEntity.status(HttpStatus.NOT_MODIFIED)).build();
         } catch (ResourceNotFoundException e) {
             return notFound(e.getStatusCode(), e.getResponseBody());
         } catch (Exception e) {
@@ -197,9 +587,24 @@ public class OclFhirController {
         }
     }
 
+    private ResponseEntity<byte[]> gzipped(final OclFhirConditionalRequestInterceptor conditional,
+                                           final CompressedResponseCache.Entry entry) {
+        return conditional.apply(ResponseEntity.ok())
+                .contentType(MediaType.APPLICATION_JSON)
+                .header(HttpHeaders.CONTENT_ENCODING, GZIP)
+                .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING)
+                .body(entry.getBody());
+    }
+
     private ResponseEntity<String> handleFhirOperation(Parameters parameters, Class<? extends Resource> type, String operation) {
+        return handleFhirOperation(parameters, type, operation, Parameters.class);
+    }
+
+    private ResponseEntity<String> handleFhirOperation(Parameters parameters, Class<? extends Resource> type, String operation,
+                                                       Class<? extends Resource> returnType) {
         try {
-            return ResponseEntity.ok(oclFhirUtil.getResourceAsString(performFhirOperation(parameters, type, operation)));
+            return ResponseEntity.ok(oclFhirUtil.getResourceAsString(performFhirOperation(parameters, type, operation,
+                    returnType), isPretty(getCurrentRequest())));
         } catch (ResourceNotFoundException e) {
             return notFound(e.getStatusCode(), e.getResponseBody());
         } catch (Exception e) {
@@ -207,27 +612,36 @@ public class OclFhirController {
         }
     }
 
-    private String searchResource(final Class<? extends MetadataResource> resourceClass, final String... filters) {
-        IQuery q = oclFhirUtil.getClient().search().forResource(resourceClass);
+    private String searchResource(final OclFhirConditionalRequestInterceptor conditional, final boolean pretty,
+                                  final Class<? extends MetadataResource> resourceClass, final String... filters) {
+        IGenericClient client = oclFhirUtil.getClient();
+        client.registerInterceptor(conditional);
+        IQuery q = client.search().forResource(resourceClass);
         if (filters.length % 2 == 0) {
             for (int i = 0; i < filters.length; i += 2) {
+                List<String> values = LIST_FILTERS.contains(filters[i])
+                        ? Arrays.asList(filters[i + 1].split("\\s*,\\s*"))
+                        : Collections.singletonList(filters[i + 1]);
+                ICriterion<StringClientParam> criterion = new StringClientParam(filters[i]).matches().values(values);
                 if (i == 0) {
-                    q = q.where(new StringClientParam(filters[i]).matches().value(filters[i + 1]));
+                    q = q.where(criterion);
                 } else {
-                    q = q.and(new StringClientParam(filters[i]).matches().value(filters[i + 1]));
+                    q = q.and(criterion);
                 }
             }
         }
         Bundle bundle = (Bundle) q.execute();
-        return oclFhirUtil.getResourceAsString(bundle);
+        return oclFhirUtil.getResourceAsString(bundle, pretty);
     }
 
-    private Parameters performFhirOperation(Parameters parameters, Class<? extends Resource> type, String operation) {
+    private Resource performFhirOperation(Parameters parameters, Class<? extends Resource> type, String operation,
+                                          Class<? extends Resource> returnType) {
         return oclFhirUtil.getClient()
                 .operation()
                 .onType(type)
                 .named(operation)
                 .withParameters(parameters)
+                .returnResourceType(returnType)
                 .execute();
     }
 
@@ -242,21 +656,144 @@ public class OclFhirController {
         return parameters;
     }
 
-    private Parameters lookupParameters(String system, String code, String version, String displayLanguage, String owner) {
+    private Parameters lookupParameters(String system, String code, String version, String displayLanguage,
+                                        List<String> property, String owner) {
         Parameters parameters = generateParameters(code, version, displayLanguage, owner);
         parameters.addParameter().setName(SYSTEM).setValue(new UriType(system));
+        if (property != null)
+            property.forEach(p -> parameters.addParameter().setName(PROPERTY).setValue(new CodeType(p)));
+        return parameters;
+    }
+
+    private Parameters subsumesParameters(String system, String codeA, String codeB, String version, String owner) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName(SYSTEM).setValue(new UriType(system));
+        parameters.addParameter().setName(CODE_A).setValue(new CodeType(codeA));
+        parameters.addParameter().setName(CODE_B).setValue(new CodeType(codeB));
+        if (isValid(version))
+            parameters.addParameter().setName(VERSION).setValue(newStringType(version));
+        parameters.addParameter().setName(OWNER).setValue(newStringType(owner));
+        return parameters;
+    }
+
+    private Parameters changesParameters(String url, String version, String since, String fromVersion, String owner) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName(URL).setValue(new UriType(url));
+        if (isValid(version))
+            parameters.addParameter().setName(VERSION).setValue(newStringType(version));
+        if (isValid(since))
+            parameters.addParameter().setName(SINCE).setValue(new DateTimeType(since));
+        if (isValid(fromVersion))
+            parameters.addParameter().setName(FROM_VERSION).setValue(newStringType(fromVersion));
+        parameters.addParameter().setName(OWNER).setValue(newStringType(owner));
+        return parameters;
+    }
+
+    private Parameters expandParameters(String id, String version, Integer offset, Integer count, Boolean activeOnly,
+                                        String filter, String owner) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName(ID).setValue(newStringType(id));
+        if (isValid(version))
+            parameters.addParameter().setName(VALUESET_VERSION).setValue(newStringType(version));
+        if (offset != null)
+            parameters.addParameter().setName(OFFSET).setValue(new IntegerType(offset));
+        if (count != null)
+            parameters.addParameter().setName(COUNT).setValue(new IntegerType(count));
+        if (activeOnly != null)
+            parameters.addParameter().setName(ACTIVE_ONLY).setValue(new BooleanType(activeOnly));
+        if (isValid(filter))
+            parameters.addParameter().setName(FILTER).setValue(newStringType(filter));
+        parameters.addParameter().setName(OWNER).setValue(newStringType(owner));
+        return parameters;
+    }
+
+    private Parameters searchParameters(String id, String version, String text, Integer count, String owner) {
+        Parameters parameters = new Parameters();
+        parameters.addParameter().setName(ID).setValue(newStringType(id));
+        if (isValid(version))
+            parameters.addParameter().setName(VERSION).setValue(newStringType(version));
+        parameters.addParameter().setName(TEXT).setValue(newStringType(text));
+        if (count != null)
+            parameters.addParameter().setName(COUNT).setValue(new IntegerType(count));
+        parameters.addParameter().setName(OWNER).setValue(newStringType(owner));
         return parameters;
     }
 
     private Parameters validateCodeParameters(String url, String code, String version, String display, String displayLanguage,
-                                              String owner) {
+                                              Boolean suggest, String owner) {
         Parameters parameters = generateParameters(code, version, displayLanguage, owner);
         parameters.addParameter().setName(URL).setValue(new UriType(url));
         if (isValid(display))
             parameters.addParameter().setName(DISPLAY).setValue(newStringType(display));
+        if (suggest != null)
+            parameters.addParameter().setName(SUGGEST).setValue(new BooleanType(suggest));
         return parameters;
     }
 
+    private static String[] withConceptFilters(String conceptClass, String datatype, String inactive, String... args) {
+        List<String> filters = new ArrayList<>(Arrays.asList(args));
+        if (isValid(conceptClass)) filters.addAll(Arrays.asList(CONCEPT_CLASS, conceptClass));
+        if (isValid(datatype)) filters.addAll(Arrays.asList(DATATYPE, datatype));
+        if (isValid(inactive)) filters.addAll(Arrays.asList(INACTIVE, inactive));
+        return filters.toArray(new String[0]);
+    }
+
+    private static String[] withDesignationFilters(String displayLanguage, String includeDesignations,
+                                                   String designation, String... args) {
+        List<String> filters = new ArrayList<>(Arrays.asList(args));
+        if (isValid(displayLanguage)) filters.addAll(Arrays.asList(DISP_LANG, displayLanguage));
+        if (isValid(includeDesignations)) filters.addAll(Arrays.asList(INCLUDE_DESIGNATIONS, includeDesignations));
+        if (isValid(designation)) filters.addAll(Arrays.asList(DESIGNATION, designation));
+        return filters.toArray(new String[0]);
+    }
+
+    private static HttpServletRequest getCurrentRequest() {
+        return ((ServletRequestAttributes) RequestContextHolder.currentRequestAttributes()).getRequest();
+    }
+
+    private static boolean isPretty(HttpServletRequest request) {
+        return Boolean.parseBoolean(request.getParameter(PRETTY));
+    }
+
+    /**
+     * Returns true if gzip is acceptable per the Accept-Encoding header, either by name or through the * wildcard
+     * when gzip is not named. A coding with q=0 is refused.
+     */
+    private static boolean acceptsGzip(HttpServletRequest request) {
+        String acceptEncoding = request.getHeader(HttpHeaders.ACCEPT_ENCODING);
+        if (acceptEncoding == null) return false;
+        Double gzip = null;
+        Double wildcard = null;
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            String name = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                    try {
+                        quality = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        quality = 0;
+                    }
+                }
+            }
+            if (GZIP.equals(name) || ("x-" + GZIP).equals(name)) gzip = quality;
+            else if ("*".equals(name)) wildcard = quality;
+        }
+        if (gzip != null) return gzip > 0;
+        return wildcard != null && wildcard > 0;
+    }
+
+    private static boolean isRepositoryVersion(String... args) {
+        boolean id = false;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (ID.equals(args[i])) id = true;
+            if (VERSION.equals(args[i]) && ALL.equals(args[i + 1])) return false;
+        }
+        return id;
+    }
+
     private static String formatOrg(String org) {
         return ORG_ + org;
     }
@@ -2,10 +2,10 @@ package org.openconceptlab.fhir.converter;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
 import com.google.gson.*;
 import org.apache.commons.lang3.StringUtils;
 import org.hl7.fhir.r4.model.*;
@@ -18,8 +18,16 @@ import org.openconceptlab.fhir.model.*;
 import static org.openconceptlab.fhir.util.OclFhirConstants.*;
 import static org.openconceptlab.fhir.util.OclFhirUtil.*;
 
+import org.openconceptlab.fhir.cache.ClosureCache;
+import org.openconceptlab.fhir.cache.CodeFilterCache;
+import org.openconceptlab.fhir.cache.ConceptDisplayCache;
+import org.openconceptlab.fhir.index.ConceptTrigramIndex;
+import org.openconceptlab.fhir.index.SourceSnapshot;
+import org.openconceptlab.fhir.index.SourceSnapshotStore;
 import org.openconceptlab.fhir.repository.ConceptRepository;
 import org.openconceptlab.fhir.repository.SourceRepository;
+import org.openconceptlab.fhir.util.ConceptFilter;
+import org.openconceptlab.fhir.util.DesignationFilter;
 import org.openconceptlab.fhir.util.OclFhirUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
@@ -31,30 +39,67 @@ import org.springframework.stereotype.Component;
 @Component
 public class CodeSystemConverter {
 
+	private static final int CHANGES_BATCH_SIZE = 500;
+
 	JsonParser parser = new JsonParser();
 
 	SourceRepository sourceRepository;
 	ConceptRepository conceptRepository;
 	OclFhirUtil oclFhirUtil;
 	UserProfile oclUser;
+	CodeFilterCache codeFilterCache;
+	ConceptTrigramIndex conceptTrigramIndex;
+	ClosureCache closureCache;
+	ConversionExecutor conversionExecutor;
+	ConceptDisplayCache conceptDisplayCache;
+	SourceSnapshotStore sourceSnapshotStore;
 
 	@Autowired
 	public CodeSystemConverter(SourceRepository sourceRepository, ConceptRepository conceptRepository, OclFhirUtil oclFhirUtil
-			, UserProfile oclUser) {
+			, UserProfile oclUser, CodeFilterCache codeFilterCache, ConceptTrigramIndex conceptTrigramIndex,
+			ClosureCache closureCache, ConversionExecutor conversionExecutor, ConceptDisplayCache conceptDisplayCache,
+			SourceSnapshotStore sourceSnapshotStore) {
 		this.sourceRepository = sourceRepository;
 		this.conceptRepository = conceptRepository;
 		this.oclFhirUtil = oclFhirUtil;
 		this.oclUser = oclUser;
+		this.codeFilterCache = codeFilterCache;
+		this.conceptTrigramIndex = conceptTrigramIndex;
+		this.closureCache = closureCache;
+		this.conversionExecutor = conversionExecutor;
+		this.conceptDisplayCache = conceptDisplayCache;
+		this.sourceSnapshotStore = sourceSnapshotStore;
 	}
 
 	public List<CodeSystem> convertToCodeSystem(List<Source> sources, boolean includeConcepts) {
+		return convertToCodeSystem(sources, includeConcepts, new ConceptFilter());
+	}
+
+	/**
+	 * Converts sources to code systems, without concepts the concept versions of the source are never loaded. Only
+	 * the concepts matching the filter are loaded, a restricted code system is returned as a fragment.
+	 */
+	public List<CodeSystem> convertToCodeSystem(List<Source> sources, boolean includeConcepts, ConceptFilter filter) {
+		return convertToCodeSystem(sources, includeConcepts, filter, DesignationFilter.all());
+	}
+
+	/**
+	 * Converts sources to code systems as above, rendering only the designations and the display language requested
+	 * by the designation filter.
+	 */
+	public List<CodeSystem> convertToCodeSystem(List<Source> sources, boolean includeConcepts, ConceptFilter filter,
+												DesignationFilter designationFilter) {
 		List<CodeSystem> codeSystems = new ArrayList<>();
 		sources.forEach(source -> {
 			// convert to base
 			CodeSystem codeSystem = toBaseCodeSystem(source);
 			if (includeConcepts) {
 				// add concepts
-				addConceptsToCodeSystem(codeSystem, source);
+				addConceptsToCodeSystem(codeSystem, source, filter, designationFilter);
+				if (filter.isRestricted())
+					codeSystem.setContent(CodeSystem.CodeSystemContentMode.FRAGMENT);
+			} else {
+				addSubsettedTag(codeSystem);
 			}
 			codeSystems.add(codeSystem);
 		});
@@ -69,6 +114,9 @@ public class CodeSystemConverter {
         }
         // id
         codeSystem.setId(source.getMnemonic());
+        // meta
+        Date lastUpdated = getLastUpdated(source);
+        codeSystem.getMeta().setVersionId(getVersionId(source.getId(), lastUpdated)).setLastUpdated(lastUpdated);
         // identifier
 		getIdentifier(source.getUri())
 				.ifPresent(i -> codeSystem.getIdentifier().add(i));
@@ -123,53 +171,142 @@ public class CodeSystemConverter {
 	}
 
 	private long getConceptsCount(final Source source) {
-		return source.getConceptsSources().parallelStream().map(m -> m.getConcept().getMnemonic()).distinct().count();
-	}
-
-	private void addConceptsToCodeSystem(final CodeSystem codeSystem, final Source source) {
-		// ConceptsSource includes all concept versions, we need to include only most recent concept version
-		List<Concept> filtered = new ArrayList<>();
-		Multimap<String, Concept> mnemonicToConceptMap = HashMultimap.create();
-		source.getConceptsSources()
-				.stream()
-				.map(ConceptsSource::getConcept)
-				.forEach(c -> mnemonicToConceptMap.put(c.getMnemonic(), c));
-		mnemonicToConceptMap.asMap().forEach((mnemonic, concepts) -> {
-			concepts.stream().max(Comparator.comparing(Concept::getId)).ifPresent(filtered::add);
+		return conceptRepository.countDistinctMnemonicBySourceId(source.getId());
+	}
+
+	private void addConceptsToCodeSystem(final CodeSystem codeSystem, final Source source, final ConceptFilter filter,
+										 final DesignationFilter designationFilter) {
+		// ConceptsSource includes all concept versions, the query returns only the most recent concept version
+		if (filter.isEmpty()) return;
+		List<Concept> filtered = conceptRepository.findLatestBySourceId(source.getId(), filter, 0, Integer.MAX_VALUE);
+		codeSystem.getConcept().addAll(toConceptDefinitions(filtered, source, designationFilter));
+	}
+
+	/**
+	 * Converts the concepts in their order. Displays, descriptions and the names rendered as designations are queried
+	 * for all concepts at once here, names in the requested languages only. The conversion itself runs outside of the
+	 * persistence context.
+	 */
+	private List<CodeSystem.ConceptDefinitionComponent> toConceptDefinitions(final List<Concept> concepts,
+			final Source source, final DesignationFilter designationFilter) {
+		List<Long> conceptIds = concepts.stream().map(Concept::getId).collect(Collectors.toList());
+		Map<Long, List<ConceptRepository.ConceptName>> names = conceptRepository.findNamesByConceptIdIn(conceptIds,
+				designationFilter);
+		conceptRepository.loadDescriptionsByIdIn(conceptIds);
+		Map<Long, String> displays = new HashMap<>();
+		conceptDisplayCache.getAll(concepts, designationFilter.getDisplayLanguage(), source.getDefaultLocale())
+				.forEach((id, display) -> displays.put(id, designationFilter.getDisplay(display,
+						source.getDefaultLocale())));
+		return conversionExecutor.map(concepts, concept -> toConceptDefinition(concept, source,
+				displays.get(concept.getId()), names.getOrDefault(concept.getId(), Collections.emptyList())));
+	}
+
+	/**
+	 * Returns the code system of the given source with the single given concept, the concept is fetched on its own
+	 * and none of the other concepts of the source is loaded.
+	 */
+	public CodeSystem convertToCodeSystem(final Source source, final String code) {
+		return convertToCodeSystem(source, code, DesignationFilter.all());
+	}
+
+	public CodeSystem convertToCodeSystem(final Source source, final String code,
+										  final DesignationFilter designationFilter) {
+		Concept concept = validateConcept(source, code).orElseThrow(() -> new ResourceNotFoundException(
+				String.format("Concept %s is not known in CodeSystem %s version %s", code, source.getMnemonic(),
+						source.getVersion())));
+		CodeSystem codeSystem = toBaseCodeSystem(source);
+		codeSystem.setContent(CodeSystem.CodeSystemContentMode.FRAGMENT);
+		codeSystem.getConcept().addAll(toConceptDefinitions(Collections.singletonList(concept), source,
+				designationFilter));
+		return codeSystem;
+	}
+
+	/**
+	 * Returns the code system of the given source with the given concepts in the given order, e.g. search results.
+	 */
+	public CodeSystem convertToCodeSystem(final Source source, final List<Long> conceptIds) {
+		CodeSystem codeSystem = toBaseCodeSystem(source);
+		codeSystem.setContent(CodeSystem.CodeSystemContentMode.FRAGMENT);
+		Map<Long, Concept> concepts = conceptRepository.findByIdIn(conceptIds).stream()
+				.collect(Collectors.toMap(Concept::getId, c -> c));
+		codeSystem.getConcept().addAll(toConceptDefinitions(conceptIds.stream().map(concepts::get)
+				.filter(Objects::nonNull).collect(Collectors.toList()), source, DesignationFilter.all()));
+		return codeSystem;
+	}
+
+	/**
+	 * Returns the given concept changes of the source as a code system fragment, every concept carries its change
+	 * type. The changes are consumed in batches, loading only the concepts of the current batch.
+	 */
+	public CodeSystem convertToChanges(final Source source, final Stream<ConceptRepository.ConceptChange> changes) {
+		CodeSystem codeSystem = toBaseCodeSystem(source);
+		codeSystem.setContent(CodeSystem.CodeSystemContentMode.FRAGMENT);
+		codeSystem.getProperty().add(getPropertyComponent(CHANGE_TYPE, null, DESC_CHANGE_TYPE,
+				CodeSystem.PropertyType.CODE));
+		List<ConceptRepository.ConceptChange> batch = new ArrayList<>(CHANGES_BATCH_SIZE);
+		changes.forEach(change -> {
+			batch.add(change);
+			if (batch.size() == CHANGES_BATCH_SIZE) {
+				addChanges(codeSystem, source, batch);
+				batch.clear();
+			}
 		});
+		addChanges(codeSystem, source, batch);
+		return codeSystem;
+	}
 
-		for (Concept concept : filtered) {
-			CodeSystem.ConceptDefinitionComponent definitionComponent = new CodeSystem.ConceptDefinitionComponent();
-			// code
-			definitionComponent.setCode(concept.getMnemonic());
-			// display
-			List<LocalizedText> names = concept.getConceptsNames().stream()
-					.filter(c -> c.getLocalizedText() != null)
-					.map(ConceptsName::getLocalizedText)
-					.collect(Collectors.toList());
-			definitionComponent.setDisplay(oclFhirUtil.getDefinition(names, source.getDefaultLocale()));
-
-			// definition
-			List<LocalizedText> definitions = concept.getConceptsDescriptions().stream()
-					.filter(c -> c.getLocalizedText() != null)
-					.filter(c -> isValid(c.getLocalizedText().getType()) && "definition".equalsIgnoreCase(c.getLocalizedText().getType()))
-					.map(ConceptsDescription::getLocalizedText)
-					.collect(Collectors.toList());
-			definitionComponent.setDefinition(oclFhirUtil.getDefinition(definitions, source.getDefaultLocale()));
-
-			// designation
-			addConceptDesignation(concept, definitionComponent);
-
-			// property - concept_class, data_type, ,inactive
-			definitionComponent.getProperty().add(new ConceptPropertyComponent(new CodeType(CONCEPT_CLASS),
-					new StringType(concept.getConceptClass())));
-			definitionComponent.getProperty().add(new ConceptPropertyComponent(new CodeType(DATATYPE),
-					new StringType(concept.getDatatype())));
-			definitionComponent.getProperty().add(new ConceptPropertyComponent(new CodeType(INACTIVE),
-					new BooleanType(!concept.getIsActive())));
-			// add concept in CodeSystem
-			codeSystem.getConcept().add(definitionComponent);
-		}
+	private void addChanges(final CodeSystem codeSystem, final Source source,
+							final List<ConceptRepository.ConceptChange> batch) {
+		if (batch.isEmpty()) return;
+		List<Concept> found = conceptRepository.findByIdIn(batch.stream()
+				.map(ConceptRepository.ConceptChange::getConceptId).collect(Collectors.toList()));
+		List<CodeSystem.ConceptDefinitionComponent> definitions = toConceptDefinitions(found, source,
+				DesignationFilter.all());
+		Map<Long, CodeSystem.ConceptDefinitionComponent> components = new HashMap<>();
+		for (int i = 0; i < found.size(); i++) components.put(found.get(i).getId(), definitions.get(i));
+		batch.forEach(change -> {
+			CodeSystem.ConceptDefinitionComponent component = components.get(change.getConceptId());
+			if (component == null) component = new CodeSystem.ConceptDefinitionComponent().setCode(change.getMnemonic());
+			component.getProperty().add(new ConceptPropertyComponent(new CodeType(CHANGE_TYPE),
+					new CodeType(change.getChangeType())));
+			codeSystem.getConcept().add(component);
+		});
+	}
+
+	private CodeSystem.ConceptDefinitionComponent toConceptDefinition(final Concept concept, final Source source,
+			final String display, final List<ConceptRepository.ConceptName> names) {
+		CodeSystem.ConceptDefinitionComponent definitionComponent = new CodeSystem.ConceptDefinitionComponent();
+		// code
+		definitionComponent.setCode(concept.getMnemonic());
+		// display
+		definitionComponent.setDisplay(display);
+
+		// definition
+		definitionComponent.setDefinition(getConceptDefinition(concept, source));
+
+		// designation
+		addConceptDesignation(names, definitionComponent);
+
+		// property - concept_class, data_type, ,inactive
+		getConceptProperties(concept).forEach(p -> definitionComponent.getProperty().add(p));
+		return definitionComponent;
+	}
+
+	private String getConceptDefinition(final Concept concept, final Source source) {
+		return oclFhirUtil.getDefinition(concept.getConceptsDescriptions(), d -> isDefinition(d.getLocalizedText())
+				? d.getLocalizedText() : null, source.getDefaultLocale());
+	}
+
+	private static boolean isDefinition(final LocalizedText text) {
+		return text != null && DEFINITION.equalsIgnoreCase(text.getType());
+	}
+
+	private List<ConceptPropertyComponent> getConceptProperties(final Concept concept) {
+		return Arrays.asList(
+				new ConceptPropertyComponent(new CodeType(CONCEPT_CLASS), new StringType(concept.getConceptClass())),
+				new ConceptPropertyComponent(new CodeType(DATATYPE), new StringType(concept.getDatatype())),
+				new ConceptPropertyComponent(new CodeType(INACTIVE),
+						new BooleanType(Boolean.FALSE.equals(concept.getIsActive()))));
 	}
 
 	private void addExtras(CodeSystem codeSystem, String extras) {
@@ -223,7 +360,12 @@ public class CodeSystemConverter {
     	}
     }
 
-    public Parameters getLookupParameters(final Source source, final CodeType code, final CodeType displayLanguage) {
+	/**
+	 * Returns the $lookup output parameters, the requested properties are added to the name and designations. The
+	 * property * returns all concept properties, including the definition.
+	 */
+    public Parameters getLookupParameters(final Source source, final CodeType code, final CodeType displayLanguage,
+										  final List<CodeType> properties) {
 		Optional<Concept> conceptOpt = validateConcept(source, code.getCode());
 		if (conceptOpt.isPresent()) {
 			Concept concept = conceptOpt.get();
@@ -231,9 +373,10 @@ public class CodeSystemConverter {
 			parameters.addParameter(getParameter(NAME, source.getName()));
 			parameters.addParameter(getParameter(VERSION, source.getVersion()));
 			List<LocalizedText> names = getNames(concept);
-			getDisplayForLookUp(names, isValid(displayLanguage) ? displayLanguage.getCode() : EMPTY, source.getDefaultLocale())
+			conceptDisplayCache.get(concept).getDisplay(getCode(displayLanguage), source.getDefaultLocale())
 					.ifPresent(display -> parameters.addParameter(getParameter(DISPLAY, display)));
 			addDesignationParameters(parameters, names, getCode(displayLanguage));
+			addPropertyParameters(parameters, concept, source, properties);
 			return parameters;
 		}
 		return null;
@@ -243,40 +386,33 @@ public class CodeSystemConverter {
 		return concept.getConceptsNames().stream().map(ConceptsName::getLocalizedText).collect(Collectors.toList());
 	}
 
-	private Optional<Concept> validateConcept(Source source, String code) {
-		Optional<Concept> conceptOpt = source.getConceptsSources().parallelStream()
-				.map(ConceptsSource::getConcept)
-				.filter(c -> c.getMnemonic().equals(code))
-				.max(Comparator.comparing(Concept::getId));
-		return conceptOpt;
-	}
-
-	private Optional<String> localePreferredDisplay(List<LocalizedText> names, String displayLanguage) {
-		return names.stream()
-				.sorted(Comparator.comparing(LocalizedText::getLocalePreferred, Comparator.reverseOrder()))
-				.filter(name -> !isValid(displayLanguage) || name.getLocale().equals(displayLanguage))
-				.map(LocalizedText::getName)
-				.findFirst();
-	}
-
-	private Optional<String> defaultLocaleDisplay(List<LocalizedText> names, String defaultLocale) {
-		return names.stream()
-				.sorted(Comparator.comparing(LocalizedText::getLocalePreferred, Comparator.reverseOrder()))
-				.filter(name -> !isValid(defaultLocale) || name.getLocale().equals(defaultLocale))
-				.map(LocalizedText::getName)
-				.findFirst();
-	}
-
-	private Optional<String> anyDisplay(List<LocalizedText> names) {
-		return names.stream().map(LocalizedText::getName).findFirst();
+	private void addPropertyParameters(Parameters parameters, Concept concept, Source source, List<CodeType> properties) {
+		if (properties == null || properties.isEmpty()) return;
+		Set<String> codes = properties.stream().map(OclFhirUtil::getCode).filter(Objects::nonNull)
+				.collect(Collectors.toSet());
+		boolean all = codes.contains(ALL);
+		if (all || codes.contains(DEFINITION)) {
+			String definition = getConceptDefinition(concept, source);
+			if (isValid(definition))
+				parameters.addParameter().setName(PROPERTY).setPart(Arrays.asList(
+						getParameter(CODE, new CodeType(DEFINITION)), getParameter(VALUE, new StringType(definition))));
+		}
+		getConceptProperties(concept).stream()
+				.filter(p -> all || codes.contains(p.getCode()))
+				.forEach(p -> parameters.addParameter().setName(PROPERTY).setPart(Arrays.asList(
+						getParameter(CODE, new CodeType(p.getCode())), getParameter(VALUE, p.getValue()))));
 	}
 
-	private Optional<String> getDisplayForLookUp(List<LocalizedText> names, String displayLanguage, String defaultLocale) {
-		Optional<String> preferred = localePreferredDisplay(names, displayLanguage);
-		if (preferred.isPresent()) return preferred;
-		Optional<String> srcdefaultLocale = defaultLocaleDisplay(names, defaultLocale);
-		if (srcdefaultLocale.isPresent()) return srcdefaultLocale;
-		return anyDisplay(names);
+	private Optional<Concept> validateConcept(Source source, String code) {
+		// the snapshot knows the concept id of the code, which is then loaded by its key
+		Optional<SourceSnapshot> snapshot = sourceSnapshotStore.get(source);
+		if (snapshot.isPresent()) {
+			int index = snapshot.get().indexOf(code);
+			if (index < 0) return Optional.empty();
+			return conceptRepository.findFirstById(snapshot.get().getConceptId(index));
+		}
+		if (!codeFilterCache.mightContain(source, code)) return Optional.empty();
+		return Optional.ofNullable(conceptRepository.findLatestBySourceIdAndMnemonic(source.getId(), code));
 	}
 
 	private void addDesignationParameters(Parameters parameters, List<LocalizedText> names, String displayLanguage) {
@@ -287,11 +423,51 @@ public class CodeSystemConverter {
 				});
 	}
 
-	public Parameters validateCode(final Source source, final String code, final StringType display, final CodeType displayLanguage) {
+	/**
+	 * Returns the relationship of the two codes in the hierarchy of the source.
+	 */
+	public Parameters getSubsumesParameters(final Source source, final String codeA, final String codeB) {
+		ClosureCache.Closure closure = closureCache.get(source);
+		for (String code : Arrays.asList(codeA, codeB)) {
+			if (!closure.contains(code))
+				throw new ResourceNotFoundException(String.format("Concept %s is not known in CodeSystem %s version %s",
+						code, source.getMnemonic(), source.getVersion()));
+		}
+		final String outcome;
+		if (codeA.equals(codeB)) {
+			outcome = "equivalent";
+		} else if (closure.subsumes(codeA, codeB)) {
+			outcome = "subsumes";
+		} else if (closure.subsumes(codeB, codeA)) {
+			outcome = "subsumed-by";
+		} else {
+			outcome = "not-subsumed";
+		}
+		Parameters parameters = new Parameters();
+		parameters.addParameter().setName(OUTCOME).setValue(new CodeType(outcome));
+		return parameters;
+	}
+
+	/**
+	 * Validates the code and display. With suggest, an unknown code is answered with the concepts of the source whose
+	 * code or names are closest to the given code and display.
+	 */
+	public Parameters validateCode(final Source source, final String code, final StringType display,
+								   final CodeType displayLanguage, final boolean suggest) {
 		Parameters parameters = new Parameters();
 		BooleanType result = new BooleanType(false);
 		parameters.addParameter().setName(RESULT).setValue(result);
 		Optional<Concept> conceptOpt = validateConcept(source, code);
+		if (!conceptOpt.isPresent() && suggest) {
+			conceptTrigramIndex.suggest(source, SUGGESTION_COUNT, code, isValid(display) ? display.getValue() : null)
+					.forEach(s -> {
+						Parameters.ParametersParameterComponent suggestion = parameters.addParameter().setName(SUGGESTION);
+						suggestion.addPart(getParameter(CODE, new CodeType(s.getCode())));
+						if (isValid(s.getDisplay()))
+							suggestion.addPart(getParameter(DISPLAY, new StringType(s.getDisplay())));
+						suggestion.addPart(getParameter(SIMILARITY, new DecimalType(s.getSimilarity())));
+					});
+		}
 		if (conceptOpt.isPresent()) {
 			if (isValid(display)) {
 				List<LocalizedText> names = getNames(conceptOpt.get());
@@ -309,7 +485,7 @@ public class CodeSystemConverter {
 	}
 
 	private boolean validateDisplay(List<LocalizedText> names, final StringType display, final CodeType displayLanguage) {
-		return names.parallelStream()
+		return names.stream()
 				.filter(name -> name.getName().equals(display.getValue()))
 				.anyMatch(name -> !isValid(displayLanguage) || name.getLocale().equals(displayLanguage.getCode()));
 	}
@@ -0,0 +1,62 @@
+package org.openconceptlab.fhir.converter;
+
+import org.openconceptlab.fhir.config.Config;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * The ConversionExecutor. Converts large lists on the bounded conversion executor instead of the JVM wide common
+ * pool. The input is split into chunks which are converted into their own lists and merged in input order, the caller
+ * converts the first chunk itself. Inputs up to one chunk are converted sequentially. The conversion must only read
+ * state which is already loaded, the persistence context is not shared with the executor threads.
+ * @author agent
+ */
+@Component
+public class ConversionExecutor {
+
+    ThreadPoolTaskExecutor executor;
+
+    @Value("${ocl.conversion.chunk-size}")
+    private int chunkSize;
+
+    @Autowired
+    public ConversionExecutor(@Qualifier(Config.CONVERSION_EXECUTOR) ThreadPoolTaskExecutor executor) {
+        this.executor = executor;
+    }
+
+    public <T, R> List<R> map(List<T> items, Function<T, R> converter) {
+        if (items.size() <= chunkSize)
+            return items.stream().map(converter).collect(Collectors.toList());
+        List<CompletableFuture<List<R>>> chunks = new ArrayList<>();
+        for (int start = chunkSize; start < items.size(); start += chunkSize) {
+            List<T> chunk = items.subList(start, Math.min(start + chunkSize, items.size()));
+            chunks.add(CompletableFuture.supplyAsync(() -> convert(chunk, converter), executor));
+        }
+        List<R> result = new ArrayList<>(items.size());
+        result.addAll(convert(items.subList(0, chunkSize), converter));
+        try {
+            chunks.forEach(chunk -> result.addAll(chunk.join()));
+        } catch (CompletionException e) {
+            chunks.forEach(chunk -> chunk.cancel(false));
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw e;
+        }
+        return result;
+    }
+
+    private static <T, R> List<R> convert(List<T> chunk, Function<T, R> converter) {
+        List<R> result = new ArrayList<>(chunk.size());
+        for (T item : chunk) result.add(converter.apply(item));
+        return result;
+    }
+}
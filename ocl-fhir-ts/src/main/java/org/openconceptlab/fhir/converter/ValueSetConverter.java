@@ -6,7 +6,18 @@ import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
 import org.apache.commons.lang3.ArrayUtils;
 import org.hl7.fhir.r4.model.*;
+import org.openconceptlab.fhir.cache.ClosureCache;
+import org.openconceptlab.fhir.cache.ConceptDisplayCache;
+import org.openconceptlab.fhir.cache.ExpansionCache;
+import org.openconceptlab.fhir.index.ConceptPrefixIndex;
+import org.openconceptlab.fhir.index.ConceptSearchIndex;
 import org.openconceptlab.fhir.model.*;
+import org.openconceptlab.fhir.model.Collection;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.openconceptlab.fhir.repository.SourceRepository;
+import org.openconceptlab.fhir.util.ConceptDisplay;
+import org.openconceptlab.fhir.util.ConceptFilter;
+import org.openconceptlab.fhir.util.DesignationFilter;
 import org.openconceptlab.fhir.util.OclFhirUtil;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -16,10 +27,8 @@ import static org.openconceptlab.fhir.util.OclFhirConstants.*;
 import static org.openconceptlab.fhir.util.OclFhirConstants.PURPOSE;
 import static org.openconceptlab.fhir.util.OclFhirUtil.*;
 
-import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.List;
-import java.util.Optional;
+import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 
 /**
@@ -29,23 +38,64 @@ import java.util.stream.Collectors;
 @Component
 public class ValueSetConverter {
 
+    // the concept property is evaluated on the hierarchy of the source, the other properties on the concepts
+    private static final List<ValueSet.FilterOperator> hierarchyFilterOperators = Arrays.asList(
+            ValueSet.FilterOperator.ISA, ValueSet.FilterOperator.ISNOTA, ValueSet.FilterOperator.DESCENDENTOF,
+            ValueSet.FilterOperator.GENERALIZES);
+    private static final List<ValueSet.FilterOperator> propertyFilterOperators = Arrays.asList(
+            ValueSet.FilterOperator.ISA, ValueSet.FilterOperator.ISNOTA, ValueSet.FilterOperator.IN,
+            ValueSet.FilterOperator.NOTIN);
+
     JsonParser parser = new JsonParser();
 
     OclFhirUtil oclFhirUtil;
+    ConceptRepository conceptRepository;
+    SourceRepository sourceRepository;
+    ExpansionCache expansionCache;
+    ConceptSearchIndex conceptSearchIndex;
+    ClosureCache closureCache;
+    ConceptDisplayCache conceptDisplayCache;
 
     @Autowired
-    public ValueSetConverter(OclFhirUtil oclFhirUtil) {
+    public ValueSetConverter(OclFhirUtil oclFhirUtil, ConceptRepository conceptRepository,
+                             SourceRepository sourceRepository, ExpansionCache expansionCache,
+                             ConceptSearchIndex conceptSearchIndex, ClosureCache closureCache,
+                             ConceptDisplayCache conceptDisplayCache) {
         this.oclFhirUtil = oclFhirUtil;
+        this.conceptRepository = conceptRepository;
+        this.sourceRepository = sourceRepository;
+        this.expansionCache = expansionCache;
+        this.conceptSearchIndex = conceptSearchIndex;
+        this.closureCache = closureCache;
+        this.conceptDisplayCache = conceptDisplayCache;
     }
 
     @Value("${ocl.servlet.baseurl}")
     private String baseUrl;
 
-    public List<ValueSet> convertToValueSet(List<Collection> collections) {
+    /**
+     * Converts collections to value sets, without the compose only metadata is built and no collection reference is
+     * resolved.
+     */
+    public List<ValueSet> convertToValueSet(List<Collection> collections, boolean includeCompose) {
+        return convertToValueSet(collections, includeCompose, DesignationFilter.of(false, null, null));
+    }
+
+    /**
+     * Converts collections to value sets as above, the displays and designations of the compose concepts are rendered
+     * as requested by the designation filter.
+     */
+    public List<ValueSet> convertToValueSet(List<Collection> collections, boolean includeCompose,
+                                            DesignationFilter designationFilter) {
         List<ValueSet> valueSets = new ArrayList<>();
         collections.forEach(collection -> {
             ValueSet valueSet = toBaseValueSet(collection);
-            addCompose(valueSet, collection, false);
+            if (includeCompose) {
+                addCompose(valueSet, collection, designationFilter);
+                valueSet.getCompose().getInclude().addAll(getIntensionalIncludes(collection));
+            } else {
+                addSubsettedTag(valueSet);
+            }
             valueSets.add(valueSet);
         });
         return valueSets;
@@ -55,6 +105,9 @@ public class ValueSetConverter {
         ValueSet valueSet = new ValueSet();
         // set id
         valueSet.setId(collection.getMnemonic());
+        // set meta
+        Date lastUpdated = getLastUpdated(collection);
+        valueSet.getMeta().setVersionId(getVersionId(collection.getId(), lastUpdated)).setLastUpdated(lastUpdated);
         // set identifier
         getIdentifier(collection.getUri())
                 .ifPresent(i -> valueSet.getIdentifier().add(i));
@@ -77,13 +130,205 @@ public class ValueSetConverter {
         return valueSet;
     }
 
+    /**
+     * Expands the collection. The concepts referenced by the collection come first, followed by the other concepts
+     * matching the filters of every intensional compose.include of the extras, both evaluated in the database and paged with
+     * offset and count. With activeOnly, inactive concepts are left out. The text filter is matched against the names
+     * of the referenced concepts and searched in the concept index of every include source. Pages of released
+     * versions are cached.
+     */
+    public ValueSet expand(final Collection collection, final int offset, final int count, final boolean activeOnly,
+                           final String filter) {
+        Map<ValueSet.ConceptSetComponent, Source> includes = new LinkedHashMap<>();
+        getIntensionalIncludes(collection).forEach(include -> {
+            Source source = getIncludeSource(include);
+            if (source != null) includes.put(include, source);
+        });
+        boolean released = Boolean.TRUE.equals(collection.getReleased());
+        String key = ExpansionCache.key(includes.values().stream()
+                .map(s -> getVersionId(s.getId(), getLastUpdated(s)))
+                .collect(Collectors.joining(",", getVersionId(collection.getId(), getLastUpdated(collection)) + ",", "")),
+                offset, count) + "|" + activeOnly + "|" + (isValid(filter) ? filter : EMPTY);
+        if (released) {
+            Optional<ValueSet> cached = expansionCache.get(key);
+            if (cached.isPresent()) return cached.get();
+        }
+
+        ValueSet valueSet = toBaseValueSet(collection);
+        ValueSet.ValueSetExpansionComponent expansion = valueSet.getExpansion();
+        expansion.setIdentifier(UUID.randomUUID().toString());
+        expansion.setTimestamp(new Date());
+        expansion.setOffset(offset);
+        expansion.addParameter().setName(OFFSET).setValue(new IntegerType(offset));
+        expansion.addParameter().setName(COUNT).setValue(new IntegerType(count));
+        if (activeOnly)
+            expansion.addParameter().setName(ACTIVE_ONLY).setValue(new BooleanType(true));
+        if (isValid(filter))
+            expansion.addParameter().setName(FILTER).setValue(new StringType(filter));
+        String pattern = isValid(filter)
+                ? "%" + filter.trim().toLowerCase().replaceAll("([%_\\\\])", "\\\\$1") + "%" : EMPTY;
+
+        ExpansionPage page = new ExpansionPage(offset, count);
+        // concepts referenced by the collection
+        page.add(conceptRepository.countByCollectionId(collection.getId(), activeOnly, pattern),
+                (o, c) -> {
+                    List<Concept> concepts = conceptRepository.findByCollectionId(collection.getId(), activeOnly,
+                            pattern, o, c);
+                    // displays per default locale of the parent sources
+                    Map<Long, ConceptDisplay> displays = new HashMap<>();
+                    concepts.stream().collect(Collectors.groupingBy(concept -> concept.getParent().getId()))
+                            .forEach((parentId, children) -> displays.putAll(conceptDisplayCache.getAll(children,
+                                    null, children.get(0).getParent().getDefaultLocale())));
+                    concepts.forEach(concept -> {
+                        Source parent = concept.getParent();
+                        addContains(expansion, concept, getSystemUrl(parent.getUri()), parent.getVersion(),
+                                displays.get(concept.getId()).getDisplay(parent.getDefaultLocale()));
+                    });
+                });
+        // concepts matching the include filters
+        includes.forEach((include, source) -> {
+            ConceptFilter conceptFilter = ConceptFilter.of(include.getFilter()).inactive(activeOnly ? false : null)
+                    .excludeCollection(collection.getId());
+            addHierarchyFilters(conceptFilter, include, source);
+            if (isValid(filter))
+                conceptFilter.conceptIds(conceptSearchIndex.search(source, filter, SEARCH_MAX_HITS).stream()
+                        .map(ConceptSearchIndex.Match::getConceptId).collect(Collectors.toList()));
+            if (conceptFilter.isEmpty()) return;
+            page.add(conceptRepository.countLatestBySourceId(source.getId(), conceptFilter),
+                    (o, c) -> {
+                        List<Concept> concepts = conceptRepository.findLatestBySourceId(source.getId(), conceptFilter,
+                                o, c);
+                        Map<Long, ConceptDisplay> displays = conceptDisplayCache.getAll(concepts, null,
+                                source.getDefaultLocale());
+                        concepts.forEach(concept -> addContains(expansion, concept, include.getSystem(),
+                                source.getVersion(),
+                                displays.get(concept.getId()).getDisplay(source.getDefaultLocale())));
+                    });
+        });
+        expansion.setTotal((int) page.total);
+
+        if (released) expansionCache.put(key, valueSet);
+        return valueSet;
+    }
+
+    /**
+     * Returns the typeahead suggestions of the source as a ValueSet expansion, in the order they were ranked.
+     */
+    public ValueSet toTypeahead(final Source source, final String text, final String displayLanguage,
+                                final List<ConceptPrefixIndex.Suggestion> suggestions) {
+        ValueSet valueSet = new ValueSet();
+        valueSet.setStatus(Enumerations.PublicationStatus.ACTIVE);
+        ValueSet.ValueSetExpansionComponent expansion = valueSet.getExpansion();
+        expansion.setIdentifier(UUID.randomUUID().toString());
+        expansion.setTimestamp(new Date());
+        expansion.setTotal(suggestions.size());
+        expansion.addParameter().setName(TEXT).setValue(new StringType(text));
+        if (isValid(displayLanguage))
+            expansion.addParameter().setName(DISP_LANG).setValue(new CodeType(displayLanguage));
+        String system = isValid(source.getCanonicalUrl()) ? source.getCanonicalUrl() : getSystemUrl(source.getUri());
+        suggestions.forEach(suggestion -> {
+            ValueSet.ValueSetExpansionContainsComponent contains = expansion.addContains();
+            contains.setSystem(system);
+            contains.setVersion(source.getVersion());
+            contains.setCode(suggestion.getCode());
+            contains.setDisplay(suggestion.getDisplay());
+            if (isValid(suggestion.getLocale()))
+                contains.addDesignation().setLanguage(suggestion.getLocale()).setValue(suggestion.getDisplay());
+        });
+        return valueSet;
+    }
+
+    private void addContains(ValueSet.ValueSetExpansionComponent expansion, Concept concept, String system,
+                             String version, String display) {
+        ValueSet.ValueSetExpansionContainsComponent contains = expansion.addContains();
+        contains.setSystem(system);
+        contains.setVersion(version);
+        contains.setCode(concept.getMnemonic());
+        contains.setDisplay(display);
+        if (Boolean.FALSE.equals(concept.getIsActive()))
+            contains.setInactive(true);
+    }
+
+    /**
+     * Tracks the requested page over consecutive sets of concepts, only the part of a set which falls into the page
+     * is fetched.
+     */
+    private static class ExpansionPage {
+        private int skip;
+        private int remaining;
+        private long total;
+
+        ExpansionPage(int offset, int count) {
+            this.skip = offset;
+            this.remaining = count;
+        }
+
+        void add(long size, BiConsumer<Integer, Integer> fetch) {
+            total += size;
+            if (skip >= size) {
+                skip -= size;
+                return;
+            }
+            if (remaining > 0) {
+                int fetched = (int) Math.min(remaining, size - skip);
+                fetch.accept(skip, fetched);
+                remaining -= fetched;
+            }
+            skip = 0;
+        }
+    }
+
+    private List<ValueSet.ConceptSetComponent> getIntensionalIncludes(final Collection collection) {
+        if (!isValid(collection.getExtras())) return Collections.emptyList();
+        return getComposeIncludes(parseExtras(collection.getExtras())).stream()
+                .filter(ValueSet.ConceptSetComponent::hasSystem)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Restricts the filter to the concepts below or above the codes of the concept filters of the include, evaluated
+     * on the hierarchy of the source.
+     */
+    private void addHierarchyFilters(ConceptFilter conceptFilter, ValueSet.ConceptSetComponent include, Source source) {
+        List<ValueSet.ConceptSetFilterComponent> filters = include.getFilter().stream()
+                .filter(f -> CONCEPT.equals(f.getProperty()) && f.hasOp() && f.hasValue())
+                .collect(Collectors.toList());
+        if (filters.isEmpty()) return;
+        ClosureCache.Closure closure = closureCache.get(source);
+        for (ValueSet.ConceptSetFilterComponent f : filters) {
+            switch (f.getOp()) {
+                case ISA:
+                    conceptFilter.conceptIds(closure.getDescendants(f.getValue(), true));
+                    break;
+                case DESCENDENTOF:
+                    conceptFilter.conceptIds(closure.getDescendants(f.getValue(), false));
+                    break;
+                case GENERALIZES:
+                    conceptFilter.conceptIds(closure.getAncestors(f.getValue(), true));
+                    break;
+                case ISNOTA:
+                    conceptFilter.excludeConceptIds(closure.getDescendants(f.getValue(), true));
+                    break;
+                default:
+            }
+        }
+    }
+
+    private Source getIncludeSource(ValueSet.ConceptSetComponent include) {
+        if (include.hasVersion())
+            return sourceRepository.findFirstByCanonicalUrlAndVersionAndPublicAccessIn(include.getSystem(),
+                    include.getVersion(), publicAccess);
+        return sourceRepository.findFirstByCanonicalUrlAndReleasedAndPublicAccessInOrderByCreatedAtDesc(
+                include.getSystem(), true, publicAccess);
+    }
+
     private Optional<Concept> getConcept(List<ConceptsSource> conceptsSources, String conceptId, String conceptVersion) {
         if (isValid(conceptVersion)) {
-            return conceptsSources.parallelStream().map(ConceptsSource::getConcept)
+            return conceptsSources.stream().map(ConceptsSource::getConcept)
                     .filter(c -> c.getMnemonic().equals(conceptId) && conceptVersion.equals(c.getVersion()))
                     .findAny();
         } else {
-            return conceptsSources.parallelStream().map(ConceptsSource::getConcept)
+            return conceptsSources.stream().map(ConceptsSource::getConcept)
                     .filter(c -> c.getMnemonic().equals(conceptId))
                     .max(Comparator.comparing(Concept::getId));
         }
@@ -96,44 +341,67 @@ public class ValueSetConverter {
         return uri.split("/");
     }
 
-    private void addCompose(ValueSet valueSet, Collection collection, boolean includeConceptDesignation) {
+    private void addCompose(ValueSet valueSet, Collection collection, DesignationFilter designationFilter) {
         List<CollectionsConcept> collectionsConcepts = collection.getCollectionsConcepts();
         // We have to use expressions to determine actual Source version since its not possible through CollectionsConcepts
-        List<String> expressions = collection.getCollectionsReferences().parallelStream()
+        List<String> expressions = collection.getCollectionsReferences().stream()
                 .map(CollectionsReference::getCollectionReference)
                 .map(CollectionReference::getExpression)
                 .collect(Collectors.toList());
 
+        List<Concept> concepts = new ArrayList<>();
+        List<Source> sources = new ArrayList<>();
         for (String expression : expressions) {
             String[] ar = formatExpression(expression);
             Source source = getSource(ar);
             if (source == null) continue;
             Optional<Concept> concept = getConcept(source.getConceptsSources(), getConceptId(ar), getConceptVersion(ar));
-            concept.ifPresent(c -> populateCompose(valueSet, includeConceptDesignation, c, source.getUri()
-                    , source.getVersion(), source.getDefaultLocale()));
+            concept.ifPresent(c -> {
+                concepts.add(c);
+                sources.add(source);
+            });
+        }
+        // names of all referenced concepts in one query, restricted to the requested languages
+        Map<Long, List<ConceptRepository.ConceptName>> names = conceptRepository.findNamesByConceptIdIn(
+                concepts.stream().map(Concept::getId).collect(Collectors.toSet()), designationFilter);
+        // displays per default locale of the sources, restricted to the display language
+        Map<Long, ConceptDisplay> displays = new HashMap<>();
+        Map<Long, List<Concept>> conceptsBySource = new HashMap<>();
+        Map<Long, Source> sourcesById = new HashMap<>();
+        for (int i = 0; i < concepts.size(); i++) {
+            conceptsBySource.computeIfAbsent(sources.get(i).getId(), id -> new ArrayList<>()).add(concepts.get(i));
+            sourcesById.put(sources.get(i).getId(), sources.get(i));
+        }
+        conceptsBySource.forEach((sourceId, sourceConcepts) -> displays.putAll(conceptDisplayCache.getAll(
+                sourceConcepts, designationFilter.getDisplayLanguage(), sourcesById.get(sourceId).getDefaultLocale())));
+        for (int i = 0; i < concepts.size(); i++) {
+            Concept concept = concepts.get(i);
+            Source source = sources.get(i);
+            populateCompose(valueSet, designationFilter, concept, names.getOrDefault(concept.getId(),
+                    Collections.emptyList()), displays.get(concept.getId()), source.getUri(), source.getVersion(),
+                    source.getDefaultLocale());
         }
     }
 
-    private void populateCompose(ValueSet valueSet, boolean includeConceptDesignation, Concept concept, String sourceUri,
+    private void populateCompose(ValueSet valueSet, DesignationFilter designationFilter, Concept concept,
+                                 List<ConceptRepository.ConceptName> names, ConceptDisplay display, String sourceUri,
                                  String sourceVersion, String sourceDefaultLocale) {
         // compose.include
         if (isValid(sourceUri)) {
             String parentUri = getSystemUrl(sourceUri);
-            Optional<ValueSet.ConceptSetComponent> includeComponent = valueSet.getCompose().getInclude().parallelStream()
+            Optional<ValueSet.ConceptSetComponent> includeComponent = valueSet.getCompose().getInclude().stream()
                     .filter(i -> parentUri.equals(i.getSystem()) &&
                             sourceVersion.equals(i.getVersion())).findAny();
             if (includeComponent.isPresent()) {
                 ValueSet.ConceptSetComponent include = includeComponent.get();
                 // compose.include.concept
-                addConceptReference(include, concept.getMnemonic(), concept.getName(), concept.getConceptsNames(),
-                        sourceDefaultLocale, includeConceptDesignation);
+                addConceptReference(include, concept, names, display, sourceDefaultLocale, designationFilter);
             } else {
                 ValueSet.ConceptSetComponent include = new ValueSet.ConceptSetComponent();
                 include.setSystem(getSystemUrl(sourceUri));
                 include.setVersion(sourceVersion);
                 // compose.include.concept
-                addConceptReference(include, concept.getMnemonic(), concept.getName(), concept.getConceptsNames(),
-                        sourceDefaultLocale, includeConceptDesignation);
+                addConceptReference(include, concept, names, display, sourceDefaultLocale, designationFilter);
                 valueSet.getCompose().addInclude(include);
             }
             // compose.inactive
@@ -143,32 +411,28 @@ public class ValueSetConverter {
         }
     }
 
-    private void addConceptReference(ValueSet.ConceptSetComponent includeComponent, String code, String display,
-                                     List<ConceptsName> names, String dictDefaultLocale, boolean includeConceptDesignation) {
+    private void addConceptReference(ValueSet.ConceptSetComponent includeComponent, Concept concept,
+                                     List<ConceptRepository.ConceptName> names, ConceptDisplay display,
+                                     String dictDefaultLocale, DesignationFilter designationFilter) {
         ValueSet.ConceptReferenceComponent referenceComponent = new ValueSet.ConceptReferenceComponent();
         // code
-        referenceComponent.setCode(code);
+        referenceComponent.setCode(concept.getMnemonic());
         // display
-        List<LocalizedText> lts = names.stream().filter(c -> c.getLocalizedText() != null).map(ConceptsName::getLocalizedText)
-                .collect(Collectors.toList());
-        referenceComponent.setDisplay(oclFhirUtil.getDefinition(lts, dictDefaultLocale));
+        referenceComponent.setDisplay(designationFilter.getDisplay(display, dictDefaultLocale));
         // designation
-        if (includeConceptDesignation)
-            addConceptReferenceDesignation(names, referenceComponent);
+        addConceptReferenceDesignation(names, referenceComponent);
         includeComponent.getConcept().add(referenceComponent);
     }
 
-    private void addConceptReferenceDesignation(List<ConceptsName> names, ValueSet.ConceptReferenceComponent referenceComponent) {
-        names.parallelStream().forEach(n -> {
-            LocalizedText lt = n.getLocalizedText();
+    private void addConceptReferenceDesignation(List<ConceptRepository.ConceptName> names,
+                                                ValueSet.ConceptReferenceComponent referenceComponent) {
+        names.forEach(n -> {
             ValueSet.ConceptReferenceDesignationComponent designationComponent = new ValueSet.ConceptReferenceDesignationComponent();
-            if(lt != null) {
-                designationComponent.setLanguage(lt.getLocale());
-                if (isValid(lt.getType()))
-                    designationComponent.getUse().setCode(lt.getType());
-                designationComponent.setValue(lt.getName());
-                referenceComponent.addDesignation(designationComponent);
-            }
+            designationComponent.setLanguage(n.getLocale());
+            if (isValid(n.getType()))
+                designationComponent.getUse().setCode(n.getType());
+            designationComponent.setValue(n.getName());
+            referenceComponent.addDesignation(designationComponent);
         });
     }
 
@@ -230,6 +494,16 @@ public class ValueSetConverter {
         if(isValidElement(obj.get(VS_COMPOSE_INACTIVE)))
             compose.setInactive(Boolean.parseBoolean(obj.get(VS_COMPOSE_INACTIVE).getAsString()));
         // compose.include
+        compose.getInclude().addAll(getComposeIncludes(obj));
+        valueSet.setCompose(compose);
+    }
+
+    /**
+     * Reads the compose.include of the extras. An include with a filter which can not be evaluated, that is a filter
+     * on another property, with another operator or without a value, is left out rather than read as including the
+     * whole source.
+     */
+    private List<ValueSet.ConceptSetComponent> getComposeIncludes(JsonObject obj) {
         JsonArray includesArray = obj.getAsJsonArray(VS_COMPOSE_INCLUDE);
         List<ValueSet.ConceptSetComponent> includes = new ArrayList<>();
         if(includesArray != null && includesArray.isJsonArray()) {
@@ -241,29 +515,42 @@ public class ValueSetConverter {
                     if(include.get(VERSION) != null)
                         component.setVersion(include.get(VERSION).getAsString());
                     JsonArray filters = include.getAsJsonArray(FILTERS);
+                    if (filters == null) filters = new JsonArray();
+                    boolean supported = true;
                     for (JsonElement filter : filters) {
-                        JsonObject filterObj = filter.getAsJsonObject();
-                        if(filterObj != null) {
-                            ValueSet.ConceptSetFilterComponent filterComponent = new ValueSet.ConceptSetFilterComponent();
-                            JsonElement property = filterObj.get(PROPERTY);
-                            JsonElement op = filterObj.get(OP);
-                            JsonElement value = filterObj.get(VALUE);
-                            if (property != null) {
-                                if (CONCEPT_CLASS.equals(property.getAsString()) || DATATYPE.equals(property.getAsString())) {
-                                    filterComponent.setProperty(property.getAsString());
-                                    if (op != null && allowedFilterOperators.contains(op.getAsString()))
-                                        filterComponent.setOp(ValueSet.FilterOperator.fromCode(op.getAsString()));
-                                    if (value != null)
-                                        filterComponent.setValue(value.getAsString());
-                                }
-                            }
-                            component.getFilter().add(filterComponent);
+                        Optional<ValueSet.ConceptSetFilterComponent> filterComponent = filter.isJsonObject()
+                                ? getFilter(filter.getAsJsonObject()) : Optional.empty();
+                        if (filterComponent.isPresent()) {
+                            component.getFilter().add(filterComponent.get());
+                        } else {
+                            supported = false;
                         }
                     }
+                    if (!supported) continue;
                 }
-                compose.getInclude().add(component);
+                includes.add(component);
             }
         }
-        valueSet.setCompose(compose);
+        return includes;
+    }
+
+    private Optional<ValueSet.ConceptSetFilterComponent> getFilter(JsonObject filterObj) {
+        JsonElement property = filterObj.get(PROPERTY);
+        JsonElement op = filterObj.get(OP);
+        JsonElement value = filterObj.get(VALUE);
+        if (!isValidElement(property) || !isValidElement(op) || !isValidElement(value)
+                || !allowedFilterProperties.contains(property.getAsString())
+                || !allowedFilterOperators.contains(op.getAsString())
+                || !isValid(value.getAsString()))
+            return Optional.empty();
+        ValueSet.FilterOperator operator = ValueSet.FilterOperator.fromCode(op.getAsString());
+        if (!(CONCEPT.equals(property.getAsString()) ? hierarchyFilterOperators : propertyFilterOperators)
+                .contains(operator))
+            return Optional.empty();
+        ValueSet.ConceptSetFilterComponent filterComponent = new ValueSet.ConceptSetFilterComponent();
+        filterComponent.setProperty(property.getAsString());
+        filterComponent.setOp(operator);
+        filterComponent.setValue(value.getAsString());
+        return Optional.of(filterComponent);
     }
 }
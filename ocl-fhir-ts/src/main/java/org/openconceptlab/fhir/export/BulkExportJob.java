@@ -0,0 +1,129 @@
+package org.openconceptlab.fhir.export;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The BulkExportJob. Holds the state of one asynchronous $export request.
+ * @author agent
+ */
+public class BulkExportJob {
+
+    public enum Status { ACCEPTED, IN_PROGRESS, COMPLETED, FAILED, CANCELLED }
+
+    private final String id;
+    private final String request;
+    private final String owner;
+    private final List<String> types;
+    private final Path directory;
+    private final Instant transactionTime = Instant.now();
+    private final Map<String, AtomicInteger> counts = new ConcurrentHashMap<>();
+    private final List<String> errors = new CopyOnWriteArrayList<>();
+    private volatile Status status = Status.ACCEPTED;
+    private volatile Instant completedAt;
+    private volatile String progress = "";
+    private volatile Future<?> future;
+
+    public BulkExportJob(String id, String request, String owner, List<String> types, Path directory) {
+        this.id = id;
+        this.request = request;
+        this.owner = owner;
+        this.types = types;
+        this.directory = directory;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getRequest() {
+        return request;
+    }
+
+    public String getOwner() {
+        return owner;
+    }
+
+    public List<String> getTypes() {
+        return types;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public Path getFile(String type) {
+        return directory.resolve(type + ".ndjson");
+    }
+
+    public Instant getTransactionTime() {
+        return transactionTime;
+    }
+
+    public Map<String, AtomicInteger> getCounts() {
+        return counts;
+    }
+
+    public void increment(String type) {
+        counts.computeIfAbsent(type, t -> new AtomicInteger()).incrementAndGet();
+    }
+
+    public List<String> getErrors() {
+        return errors;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public synchronized void setStatus(Status status) {
+        this.status = status;
+        if (status == Status.COMPLETED || status == Status.FAILED || status == Status.CANCELLED)
+            this.completedAt = Instant.now();
+    }
+
+    /**
+     * Sets the final status unless the job was cancelled, returns false if it was.
+     */
+    public synchronized boolean finish(Status status) {
+        if (this.status == Status.CANCELLED) return false;
+        setStatus(status);
+        return true;
+    }
+
+    /**
+     * Cancels the job unless it already ended, returns false if it did.
+     */
+    public synchronized boolean cancel() {
+        if (isDone()) return false;
+        setStatus(Status.CANCELLED);
+        if (future != null) future.cancel(false);
+        return true;
+    }
+
+    public void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    public Instant getCompletedAt() {
+        return completedAt;
+    }
+
+    public boolean isDone() {
+        return completedAt != null;
+    }
+
+    public String getProgress() {
+        return progress;
+    }
+
+    public void setProgress(String progress) {
+        this.progress = progress;
+    }
+}
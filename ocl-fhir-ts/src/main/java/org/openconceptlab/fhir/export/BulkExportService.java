@@ -0,0 +1,216 @@
+package org.openconceptlab.fhir.export;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.r4.model.Resource;
+import org.openconceptlab.fhir.config.Config;
+import org.openconceptlab.fhir.converter.CodeSystemConverter;
+import org.openconceptlab.fhir.converter.ValueSetConverter;
+import org.openconceptlab.fhir.model.Collection;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.CollectionRepository;
+import org.openconceptlab.fhir.repository.SourceRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.*;
+import static org.openconceptlab.fhir.util.OclFhirUtil.*;
+
+/**
+ * The BulkExportService. Exports public CodeSystems and ValueSets as NDJSON files, one resource per line. Every
+ * resource is converted in its own transaction and written out immediately, so only one repository version is
+ * held in memory at a time.
+ * @author agent
+ */
+@Component
+public class BulkExportService {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkExportService.class);
+
+    public static final List<String> SUPPORTED_TYPES = Arrays.asList(CODESYSTEM, VALUESET);
+
+    private final Map<String, BulkExportJob> jobs = new ConcurrentHashMap<>();
+
+    SourceRepository sourceRepository;
+    CollectionRepository collectionRepository;
+    CodeSystemConverter codeSystemConverter;
+    ValueSetConverter valueSetConverter;
+    TransactionTemplate transactionTemplate;
+    ThreadPoolTaskExecutor exportExecutor;
+
+    @Value("${ocl.export.dir}")
+    private String exportDir;
+
+    @Value("${ocl.export.retention-hours}")
+    private long retentionHours;
+
+    @Autowired
+    public BulkExportService(SourceRepository sourceRepository, CollectionRepository collectionRepository,
+                             CodeSystemConverter codeSystemConverter, ValueSetConverter valueSetConverter,
+                             PlatformTransactionManager transactionManager,
+                             @Qualifier(Config.EXPORT_EXECUTOR) ThreadPoolTaskExecutor exportExecutor) {
+        this.sourceRepository = sourceRepository;
+        this.collectionRepository = collectionRepository;
+        this.codeSystemConverter = codeSystemConverter;
+        this.valueSetConverter = valueSetConverter;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.exportExecutor = exportExecutor;
+    }
+
+    /**
+     * Starts a new export job.
+     * @param request - the kick-off request url, echoed in the manifest
+     * @param owner - (Optional) owner in the form of org:id or user:username, all public resources otherwise
+     * @param types - (Optional) resource types to export, all supported types otherwise
+     * @return the accepted {@link BulkExportJob}
+     * @throws TaskRejectedException if the export queue is full
+     */
+    public BulkExportJob start(String request, String owner, List<String> types) {
+        purgeExpired();
+        List<String> exportTypes = types == null || types.isEmpty() ? SUPPORTED_TYPES : types;
+        String id = UUID.randomUUID().toString();
+        BulkExportJob job = new BulkExportJob(id, request, owner, exportTypes, Paths.get(exportDir, id));
+        job.setFuture(exportExecutor.submit(() -> run(job)));
+        jobs.put(id, job);
+        return job;
+    }
+
+    public Optional<BulkExportJob> getJob(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Cancels the job if it is still running and removes its files. The files of a running job are removed by its
+     * worker once it has stopped, so that it does not write them again.
+     */
+    public boolean delete(String id) {
+        BulkExportJob job = jobs.remove(id);
+        if (job == null) return false;
+        if (!job.cancel()) deleteFiles(job);
+        return true;
+    }
+
+    private void run(BulkExportJob job) {
+        if (job.getStatus() == BulkExportJob.Status.CANCELLED) return;
+        job.setStatus(BulkExportJob.Status.IN_PROGRESS);
+        try {
+            Files.createDirectories(job.getDirectory());
+            for (String type : job.getTypes()) {
+                if (CODESYSTEM.equals(type)) {
+                    export(job, type, getSourceIds(job.getOwner()), id -> codeSystemConverter.convertToCodeSystem(
+                            sourceRepository.findById(id), true));
+                } else if (VALUESET.equals(type)) {
+                    export(job, type, getCollectionIds(job.getOwner()), id -> valueSetConverter.convertToValueSet(
+                            collectionRepository.findById(id), true));
+                }
+            }
+            job.finish(BulkExportJob.Status.COMPLETED);
+        } catch (Exception e) {
+            if (job.finish(BulkExportJob.Status.FAILED)) {
+                log.error("Bulk export {} failed", job.getId(), e);
+                job.getErrors().add(e.getMessage());
+            }
+        } finally {
+            if (job.getStatus() == BulkExportJob.Status.CANCELLED) deleteFiles(job);
+        }
+    }
+
+    private void export(BulkExportJob job, String type, List<Long> ids,
+                        Function<Long, List<? extends Resource>> converter) throws IOException {
+        IParser parser = getFhirContext().newJsonParser();
+        try (BufferedWriter writer = Files.newBufferedWriter(job.getFile(type), StandardCharsets.UTF_8)) {
+            int i = 0;
+            for (Long id : ids) {
+                if (job.getStatus() == BulkExportJob.Status.CANCELLED) return;
+                job.setProgress(String.format("%s %d of %d", type, ++i, ids.size()));
+                transactionTemplate.executeWithoutResult(status -> converter.apply(id).forEach(resource -> {
+                    try {
+                        writer.write(parser.encodeResourceToString(resource));
+                        writer.newLine();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    job.increment(type);
+                }));
+                writer.flush();
+            }
+        }
+    }
+
+    private List<Long> getSourceIds(String owner) {
+        return transactionTemplate.execute(status -> {
+            final List<Source> sources;
+            if (!isValid(owner)) {
+                sources = sourceRepository.findByPublicAccessIn(publicAccess);
+            } else if (ORG.equals(getOwnerType(owner))) {
+                sources = sourceRepository.findByOrganizationMnemonicAndPublicAccessIn(getOwner(owner), publicAccess);
+            } else {
+                sources = sourceRepository.findByUserIdUsernameAndPublicAccessIn(getOwner(owner), publicAccess);
+            }
+            return sources.stream()
+                    .filter(Source::getIsLatestVersion)
+                    .filter(s -> !HEAD.equals(s.getVersion()))
+                    .map(Source::getId)
+                    .collect(Collectors.toList());
+        });
+    }
+
+    private List<Long> getCollectionIds(String owner) {
+        return transactionTemplate.execute(status -> {
+            final List<Collection> collections;
+            if (!isValid(owner)) {
+                collections = collectionRepository.findByPublicAccessIn(publicAccess);
+            } else if (ORG.equals(getOwnerType(owner))) {
+                collections = collectionRepository.findByOrganizationMnemonicAndPublicAccessIn(getOwner(owner), publicAccess);
+            } else {
+                collections = collectionRepository.findByUserIdUsernameAndPublicAccessIn(getOwner(owner), publicAccess);
+            }
+            return collections.stream()
+                    .filter(Collection::getIsLatestVersion)
+                    .filter(c -> !HEAD.equals(c.getVersion()))
+                    .map(Collection::getId)
+                    .collect(Collectors.toList());
+        });
+    }
+
+    private void purgeExpired() {
+        Instant expiry = Instant.now().minus(Duration.ofHours(retentionHours));
+        jobs.values().stream()
+                .filter(job -> job.isDone() && job.getCompletedAt().isBefore(expiry))
+                .map(BulkExportJob::getId)
+                .collect(Collectors.toList())
+                .forEach(this::delete);
+    }
+
+    private void deleteFiles(BulkExportJob job) {
+        if (!Files.exists(job.getDirectory())) return;
+        try (Stream<Path> paths = Files.walk(job.getDirectory())) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            log.warn("Could not delete bulk export files of {}", job.getId(), e);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package org.openconceptlab.fhir.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.text.Normalizer;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirUtil.*;
+
+/**
+ * The ConceptPrefixIndex. Keeps the concept names of every queried source version in memory as a sorted array of
+ * positions in the normalized names, one entry for every word a name can be typed from, so a prefix is looked up with a binary search.
+ * The tables are bounded by their total number of entries and evicted least recently used first, a table is rebuilt
+ * when its source version has changed.
+ * @author agent
+ */
+@Component
+public class ConceptPrefixIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ConceptPrefixIndex.class);
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    SourceSnapshotStore sourceSnapshotStore;
+
+    @Value("${ocl.typeahead.max-entries}")
+    private long maxEntries;
+
+    private Cache<Long, PrefixTable> tables;
+
+    @Autowired
+    public ConceptPrefixIndex(SourceSnapshotStore sourceSnapshotStore) {
+        this.sourceSnapshotStore = sourceSnapshotStore;
+    }
+
+    @PostConstruct
+    private void init() {
+        // a single segment, the total number of entries bounds all tables rather than a share of it per segment
+        tables = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxEntries)
+                .weigher((Long id, PrefixTable table) -> table.size())
+                .build();
+    }
+
+    /**
+     * Returns the concepts with a name containing a word which starts with the prefix, at most one suggestion per
+     * concept. Names in the display language rank first, then preferred names, fully specified names, names starting
+     * with the prefix and shorter names. Must be called within a transaction since the table may have to be built.
+     */
+    public List<Suggestion> suggest(Source source, String prefix, String displayLanguage, int limit) {
+        String key = normalize(prefix);
+        if (key.isEmpty()) return Collections.emptyList();
+        return getTable(source).suggest(key, displayLanguage, limit);
+    }
+
+    /**
+     * Drops the table of the source, it is rebuilt when next needed.
+     */
+    public void invalidate(Long sourceId) {
+        tables.invalidate(sourceId);
+    }
+
+    private PrefixTable getTable(Source source) {
+        Date lastUpdated = getLastUpdated(source);
+        long stamp = lastUpdated == null ? 0 : lastUpdated.getTime();
+        PrefixTable table = tables.getIfPresent(source.getId());
+        if (table != null && table.stamp != stamp) tables.invalidate(source.getId());
+        try {
+            return tables.get(source.getId(), () -> build(source, stamp));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build prefix index of source " + source.getId(), e.getCause());
+        }
+    }
+
+    private PrefixTable build(Source source, long stamp) {
+        long start = System.currentTimeMillis();
+        List<ConceptRepository.ConceptText> names;
+        try (Stream<ConceptRepository.ConceptText> stream = sourceSnapshotStore.streamNames(source)) {
+            names = stream.filter(n -> isValid(n.getName())).collect(Collectors.toList());
+        }
+        PrefixTable table = new PrefixTable(stamp, names);
+        log.info("Built prefix index of source {} with {} entries in {} ms", source.getId(), table.entries.length,
+                System.currentTimeMillis() - start);
+        return table;
+    }
+
+    static String normalize(String text) {
+        if (text == null) return "";
+        String stripped = MARKS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+        return SEPARATORS.matcher(stripped.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+    }
+
+    private static int typeRank(String type) {
+        if (!isValid(type)) return 1;
+        switch (type.trim().toUpperCase(Locale.ROOT).replace(' ', '_')) {
+            case "FULLY_SPECIFIED":
+                return 0;
+            case "SHORT":
+            case "INDEX_TERM":
+                return 2;
+            default:
+                return 1;
+        }
+    }
+
+    private static boolean isLanguage(String locale, String language) {
+        if (!isValid(locale) || !isValid(language)) return false;
+        String primary = language.split("[-_]")[0];
+        return locale.equalsIgnoreCase(language) || locale.split("[-_]")[0].equalsIgnoreCase(primary);
+    }
+
+    /**
+     * A concept whose name matches the typed prefix.
+     */
+    public static class Suggestion {
+        private final String code;
+        private final Long conceptId;
+        private final String display;
+        private final String locale;
+
+        Suggestion(String code, Long conceptId, String display, String locale) {
+            this.code = code;
+            this.conceptId = conceptId;
+            this.display = display;
+            this.locale = locale;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public Long getConceptId() {
+            return conceptId;
+        }
+
+        public String getDisplay() {
+            return display;
+        }
+
+        public String getLocale() {
+            return locale;
+        }
+    }
+
+    /**
+     * The names of one source version. Every name is held once in the parallel name arrays together with its
+     * normalized form, the sorted keys are (name, offset) pairs pointing to the start of a word of a normalized name
+     * rather than copies of its suffixes. A key starting at offset 0 starts at the first word of the name.
+     */
+    private static class PrefixTable {
+        private final long stamp;
+        private final int[] entries;
+        private final int[] offsets;
+        private final long[] conceptIds;
+        private final String[] codes;
+        private final String[] names;
+        private final String[] normalized;
+        private final String[] locales;
+        private final boolean[] preferred;
+        private final byte[] typeRanks;
+
+        PrefixTable(long stamp, List<ConceptRepository.ConceptText> texts) {
+            this.stamp = stamp;
+            int size = texts.size();
+            conceptIds = new long[size];
+            codes = new String[size];
+            names = new String[size];
+            normalized = new String[size];
+            locales = new String[size];
+            preferred = new boolean[size];
+            typeRanks = new byte[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                ConceptRepository.ConceptText text = texts.get(i);
+                conceptIds[i] = text.getConceptId();
+                codes[i] = text.getMnemonic();
+                names[i] = text.getName();
+                normalized[i] = normalize(text.getName());
+                locales[i] = text.getLocale();
+                preferred[i] = Boolean.TRUE.equals(text.getLocalePreferred());
+                typeRanks[i] = (byte) typeRank(text.getType());
+                for (int pos = 0; pos < normalized[i].length(); pos++) {
+                    if (isWordStart(normalized[i], pos)) count++;
+                }
+            }
+            int[] keyEntries = new int[count];
+            int[] keyOffsets = new int[count];
+            int k = 0;
+            for (int i = 0; i < size; i++) {
+                for (int pos = 0; pos < normalized[i].length(); pos++) {
+                    if (!isWordStart(normalized[i], pos)) continue;
+                    keyEntries[k] = i;
+                    keyOffsets[k++] = pos;
+                }
+            }
+            Integer[] order = new Integer[count];
+            for (int i = 0; i < count; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> compareKeys(normalized[keyEntries[a]], keyOffsets[a],
+                    normalized[keyEntries[b]], keyOffsets[b]));
+            entries = new int[count];
+            offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                entries[i] = keyEntries[order[i]];
+                offsets[i] = keyOffsets[order[i]];
+            }
+        }
+
+        private static boolean isWordStart(String name, int pos) {
+            return pos == 0 || name.charAt(pos - 1) == ' ';
+        }
+
+        /**
+         * Compares the suffixes of the two strings starting at the offsets, as String.compareTo does.
+         */
+        private static int compareKeys(String a, int aOffset, String b, int bOffset) {
+            int length = Math.min(a.length() - aOffset, b.length() - bOffset);
+            for (int i = 0; i < length; i++) {
+                char ca = a.charAt(aOffset + i);
+                char cb = b.charAt(bOffset + i);
+                if (ca != cb) return ca - cb;
+            }
+            return (a.length() - aOffset) - (b.length() - bOffset);
+        }
+
+        int size() {
+            return entries.length + names.length;
+        }
+
+        List<Suggestion> suggest(String prefix, String displayLanguage, int limit) {
+            // best matching name of every concept within the range of keys starting with the prefix
+            Map<Long, Integer> best = new HashMap<>();
+            Map<Long, Boolean> bestFirstWord = new HashMap<>();
+            for (int i = lowerBound(prefix); i < entries.length && normalized[entries[i]].startsWith(prefix, offsets[i]);
+                 i++) {
+                int entry = entries[i];
+                boolean firstWord = offsets[i] == 0;
+                Integer current = best.get(conceptIds[entry]);
+                if (current == null || compare(entry, firstWord, current, bestFirstWord.get(conceptIds[entry]),
+                        displayLanguage) < 0) {
+                    best.put(conceptIds[entry], entry);
+                    bestFirstWord.put(conceptIds[entry], firstWord);
+                }
+            }
+            return best.values().stream()
+                    .sorted((a, b) -> compare(a, bestFirstWord.get(conceptIds[a]), b, bestFirstWord.get(conceptIds[b]),
+                            displayLanguage))
+                    .limit(limit)
+                    .map(e -> new Suggestion(codes[e], conceptIds[e], names[e], locales[e]))
+                    .collect(Collectors.toList());
+        }
+
+        private int compare(int a, boolean aFirst, int b, boolean bFirst, String displayLanguage) {
+            int result = Boolean.compare(isLanguage(locales[b], displayLanguage), isLanguage(locales[a], displayLanguage));
+            if (result == 0) result = Boolean.compare(preferred[b], preferred[a]);
+            if (result == 0) result = Byte.compare(typeRanks[a], typeRanks[b]);
+            if (result == 0) result = Boolean.compare(bFirst, aFirst);
+            if (result == 0) result = Integer.compare(names[a].length(), names[b].length());
+            if (result == 0) result = names[a].compareTo(names[b]);
+            return result;
+        }
+
+        private int lowerBound(String prefix) {
+            int low = 0;
+            int high = entries.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compareKeys(normalized[entries[mid]], offsets[mid], prefix, 0) < 0) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package org.openconceptlab.fhir.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalNotification;
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.*;
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirUtil.*;
+
+/**
+ * The ConceptSearchIndex. Keeps a Lucene index of the concept names and descriptions of every searched source
+ * version on local disk, one document per concept mnemonic. The index is brought up to date before each search by
+ * indexing only the concepts created or updated since the last indexed change, so released versions are indexed once
+ * and HEAD versions follow their edits. Retired concepts are removed from the index. Changes are read again from a
+ * margin before the last indexed change, since a change committed late can carry an earlier timestamp. Open indexes
+ * are bounded and closed least recently used first.
+ * @author agent
+ */
+@Component
+public class ConceptSearchIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ConceptSearchIndex.class);
+
+    private static final String CODE = "code";
+    private static final String CODE_LOWER = "code_lower";
+    private static final String CONCEPT_ID = "concept_id";
+    private static final String DISPLAY = "display";
+    private static final String NAME = "name";
+    private static final String TEXT = "text";
+    private static final String CONCEPTS_STAMP = "concepts_stamp";
+    private static final String SOURCE_STAMP = "source_stamp";
+
+    private final Analyzer analyzer = new StandardAnalyzer();
+
+    ConceptRepository conceptRepository;
+
+    @Value("${ocl.index.dir}")
+    private String indexDir;
+
+    @Value("${ocl.index.max-open}")
+    private long maxOpen;
+
+    @Value("${ocl.index.stamp-margin-ms}")
+    private long stampMargin;
+
+    private Cache<Long, SourceIndex> indexes;
+
+    @Autowired
+    public ConceptSearchIndex(ConceptRepository conceptRepository) {
+        this.conceptRepository = conceptRepository;
+    }
+
+    @PostConstruct
+    private void init() {
+        indexes = CacheBuilder.newBuilder()
+                .maximumSize(maxOpen)
+                .removalListener((RemovalNotification<Long, SourceIndex> n) -> n.getValue().close())
+                .build();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        indexes.invalidateAll();
+    }
+
+    /**
+     * Returns the concepts of the source version matching the text, best match first. An exact code match ranks
+     * first, then matches on names before matches on descriptions, the last word of the text is matched as a prefix.
+     * Must be called within a transaction since the index may have to be updated.
+     */
+    public List<Match> search(Source source, String text, int limit) {
+        Query query = toQuery(text);
+        if (query == null) return Collections.emptyList();
+        try {
+            return search(getIndex(source), query, limit);
+        } catch (AlreadyClosedException e) {
+            // evicted while searching
+            return search(getIndex(source), query, limit);
+        }
+    }
+
+    /**
+     * Closes the index of the source, it is reopened and brought up to date when next searched.
+     */
+    public void invalidate(Long sourceId) {
+        indexes.invalidate(sourceId);
+    }
+
+    private List<Match> search(SourceIndex index, Query query, int limit) {
+        try {
+            IndexSearcher searcher = index.searcherManager.acquire();
+            try {
+                List<Match> matches = new ArrayList<>();
+                for (ScoreDoc scoreDoc : searcher.search(query, limit).scoreDocs) {
+                    Document doc = searcher.doc(scoreDoc.doc);
+                    matches.add(new Match(doc.get(CODE), doc.getField(CONCEPT_ID).numericValue().longValue(),
+                            doc.get(DISPLAY), scoreDoc.score));
+                }
+                return matches;
+            } finally {
+                index.searcherManager.release(searcher);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private SourceIndex getIndex(Source source) {
+        SourceIndex index;
+        try {
+            index = indexes.get(source.getId(), () -> new SourceIndex(source.getId()));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not open concept index of source " + source.getId(), e.getCause());
+        }
+        index.update(source);
+        return index;
+    }
+
+    private Query toQuery(String text) {
+        if (!isValid(text)) return null;
+        List<String> tokens = analyze(text);
+        BooleanQuery.Builder query = new BooleanQuery.Builder();
+        query.add(new BoostQuery(new TermQuery(new Term(CODE_LOWER, text.trim().toLowerCase())), 10f),
+                BooleanClause.Occur.SHOULD);
+        if (!tokens.isEmpty()) {
+            BooleanQuery.Builder words = new BooleanQuery.Builder();
+            for (int i = 0; i < tokens.size(); i++) {
+                boolean last = i == tokens.size() - 1;
+                BooleanQuery.Builder word = new BooleanQuery.Builder();
+                word.add(new BoostQuery(termOrPrefix(NAME, tokens.get(i), last), 2f), BooleanClause.Occur.SHOULD);
+                word.add(termOrPrefix(TEXT, tokens.get(i), last), BooleanClause.Occur.SHOULD);
+                words.add(word.build(), BooleanClause.Occur.MUST);
+            }
+            query.add(words.build(), BooleanClause.Occur.SHOULD);
+        }
+        return query.build();
+    }
+
+    private static Query termOrPrefix(String field, String token, boolean prefix) {
+        Term term = new Term(field, token);
+        return prefix ? new PrefixQuery(term) : new TermQuery(term);
+    }
+
+    private List<String> analyze(String text) {
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = analyzer.tokenStream(TEXT, text)) {
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) tokens.add(term.toString());
+            stream.end();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return tokens;
+    }
+
+    /**
+     * A concept matching the searched text.
+     */
+    public static class Match {
+        private final String code;
+        private final Long conceptId;
+        private final String display;
+        private final float score;
+
+        Match(String code, Long conceptId, String display, float score) {
+            this.code = code;
+            this.conceptId = conceptId;
+            this.display = display;
+            this.score = score;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public Long getConceptId() {
+            return conceptId;
+        }
+
+        public String getDisplay() {
+            return display;
+        }
+
+        public float getScore() {
+            return score;
+        }
+    }
+
+    /**
+     * The open index of one source version. The commit data holds the most recent concept change which is indexed
+     * and the source stamp it was indexed for.
+     */
+    private class SourceIndex {
+        private final Directory directory;
+        private final IndexWriter writer;
+        private final SearcherManager searcherManager;
+        private long conceptsStamp;
+        private long sourceStamp;
+
+        SourceIndex(Long sourceId) throws IOException {
+            directory = FSDirectory.open(Paths.get(indexDir, String.valueOf(sourceId)));
+            if (DirectoryReader.indexExists(directory)) {
+                Map<String, String> data = SegmentInfos.readLatestCommit(directory).getUserData();
+                conceptsStamp = Long.parseLong(data.getOrDefault(CONCEPTS_STAMP, "0"));
+                sourceStamp = Long.parseLong(data.getOrDefault(SOURCE_STAMP, "0"));
+            }
+            writer = new IndexWriter(directory, new IndexWriterConfig(analyzer)
+                    .setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND));
+            searcherManager = new SearcherManager(writer, null);
+        }
+
+        synchronized void update(Source source) {
+            Date lastUpdated = getLastUpdated(source);
+            long stamp = lastUpdated == null ? 0 : lastUpdated.getTime();
+            if (sourceStamp != 0 && stamp <= sourceStamp) return;
+            long start = System.currentTimeMillis();
+            long latest = conceptsStamp;
+            int count = 0;
+            try (Stream<ConceptRepository.ConceptText> texts = conceptRepository.streamTextsSince(source.getId(),
+                    new Timestamp(Math.max(0, conceptsStamp - stampMargin)))) {
+                Iterator<ConceptRepository.ConceptText> iterator = texts.iterator();
+                List<ConceptRepository.ConceptText> concept = new ArrayList<>();
+                while (iterator.hasNext()) {
+                    ConceptRepository.ConceptText text = iterator.next();
+                    if (!concept.isEmpty() && !concept.get(0).getConceptId().equals(text.getConceptId())) {
+                        latest = Math.max(latest, index(concept, source.getDefaultLocale()));
+                        concept.clear();
+                        count++;
+                    }
+                    concept.add(text);
+                }
+                if (!concept.isEmpty()) {
+                    latest = Math.max(latest, index(concept, source.getDefaultLocale()));
+                    count++;
+                }
+                conceptsStamp = latest;
+                sourceStamp = stamp;
+                Map<String, String> data = new HashMap<>();
+                data.put(CONCEPTS_STAMP, String.valueOf(conceptsStamp));
+                data.put(SOURCE_STAMP, String.valueOf(sourceStamp));
+                writer.setLiveCommitData(data.entrySet());
+                writer.commit();
+                searcherManager.maybeRefreshBlocking();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            log.info("Indexed {} concepts of source {} in {} ms", count, source.getId(),
+                    System.currentTimeMillis() - start);
+        }
+
+        private long index(List<ConceptRepository.ConceptText> texts, String defaultLocale) throws IOException {
+            ConceptRepository.ConceptText first = texts.get(0);
+            long updatedAt = first.getUpdatedAt() == null ? 0 : first.getUpdatedAt().getTime();
+            if (Boolean.TRUE.equals(first.getRetired())) {
+                writer.deleteDocuments(new Term(CODE, first.getMnemonic()));
+                return updatedAt;
+            }
+            Document doc = new Document();
+            doc.add(new StringField(CODE, first.getMnemonic(), Field.Store.YES));
+            doc.add(new StringField(CODE_LOWER, first.getMnemonic().toLowerCase(), Field.Store.NO));
+            doc.add(new StoredField(CONCEPT_ID, first.getConceptId()));
+            String display = null;
+            int displayRank = Integer.MAX_VALUE;
+            for (ConceptRepository.ConceptText text : texts) {
+                if (!isValid(text.getName())) continue;
+                if (Boolean.TRUE.equals(text.getDescription())) {
+                    doc.add(new TextField(TEXT, text.getName(), Field.Store.NO));
+                    continue;
+                }
+                doc.add(new TextField(NAME, text.getName(), Field.Store.NO));
+                doc.add(new TextField(TEXT, text.getName(), Field.Store.NO));
+                // preferred name in the default locale, then any preferred name, then any name
+                boolean preferred = Boolean.TRUE.equals(text.getLocalePreferred());
+                int rank = preferred && Objects.equals(defaultLocale, text.getLocale()) ? 0 : preferred ? 1 : 2;
+                if (rank < displayRank) {
+                    display = text.getName();
+                    displayRank = rank;
+                }
+            }
+            if (display != null) doc.add(new StoredField(DISPLAY, display));
+            writer.updateDocument(new Term(CODE, first.getMnemonic()), doc);
+            return updatedAt;
+        }
+
+        void close() {
+            try {
+                searcherManager.close();
+                writer.close();
+                directory.close();
+            } catch (IOException e) {
+                log.warn("Could not close concept index", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.openconceptlab.fhir.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirUtil.*;
+
+/**
+ * The ConceptTrigramIndex. Keeps an in-memory trigram index of the codes and names of every queried source version,
+ * used to suggest the closest concepts of a code which is not known. Similarity is the share of trigrams two texts
+ * have in common, as with the Postgres pg_trgm extension. The indexes are bounded by their total number of entries
+ * and evicted least recently used first, an index is rebuilt when its source version has changed.
+ * @author agent
+ */
+@Component
+public class ConceptTrigramIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ConceptTrigramIndex.class);
+
+    private static final float MIN_SIMILARITY = 0.3f;
+
+    SourceSnapshotStore sourceSnapshotStore;
+
+    @Value("${ocl.suggest.max-entries}")
+    private long maxEntries;
+
+    private Cache<Long, TrigramTable> tables;
+
+    @Autowired
+    public ConceptTrigramIndex(SourceSnapshotStore sourceSnapshotStore) {
+        this.sourceSnapshotStore = sourceSnapshotStore;
+    }
+
+    @PostConstruct
+    private void init() {
+        // a single segment, the total number of entries bounds all tables rather than a share of it per segment
+        tables = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxEntries)
+                .weigher((Long id, TrigramTable table) -> table.size())
+                .build();
+    }
+
+    /**
+     * Returns the concepts whose code or one of whose names is most similar to any of the given texts, most similar
+     * first. Must be called within a transaction since the index may have to be built.
+     */
+    public List<Suggestion> suggest(Source source, int limit, String... texts) {
+        List<Set<String>> queries = Arrays.stream(texts).map(ConceptTrigramIndex::trigrams)
+                .filter(t -> !t.isEmpty()).collect(Collectors.toList());
+        if (queries.isEmpty()) return Collections.emptyList();
+        return getTable(source).suggest(queries, limit);
+    }
+
+    /**
+     * Drops the index of the source, it is rebuilt when next needed.
+     */
+    public void invalidate(Long sourceId) {
+        tables.invalidate(sourceId);
+    }
+
+    private TrigramTable getTable(Source source) {
+        Date lastUpdated = getLastUpdated(source);
+        long stamp = lastUpdated == null ? 0 : lastUpdated.getTime();
+        TrigramTable table = tables.getIfPresent(source.getId());
+        if (table != null && table.stamp != stamp) tables.invalidate(source.getId());
+        try {
+            return tables.get(source.getId(), () -> build(source, stamp));
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Could not build trigram index of source " + source.getId(), e.getCause());
+        }
+    }
+
+    private TrigramTable build(Source source, long stamp) {
+        long start = System.currentTimeMillis();
+        Map<Long, List<ConceptRepository.ConceptText>> concepts = new LinkedHashMap<>();
+        try (Stream<ConceptRepository.ConceptText> stream = sourceSnapshotStore.streamNames(source)) {
+            stream.forEach(text -> concepts.computeIfAbsent(text.getConceptId(), id -> new ArrayList<>()).add(text));
+        }
+        TrigramTable table = new TrigramTable(stamp, concepts.values(), source.getDefaultLocale());
+        log.info("Built trigram index of source {} with {} entries in {} ms", source.getId(), table.size(),
+                System.currentTimeMillis() - start);
+        return table;
+    }
+
+    /**
+     * Trigrams of the normalized words of the text, every word padded with two spaces in front and one behind.
+     */
+    private static Set<String> trigrams(String text) {
+        Set<String> trigrams = new HashSet<>();
+        String normalized = ConceptPrefixIndex.normalize(text);
+        if (normalized.isEmpty()) return trigrams;
+        for (String word : normalized.split(" ")) {
+            String padded = "  " + word + " ";
+            for (int i = 0; i + 3 <= padded.length(); i++) trigrams.add(padded.substring(i, i + 3));
+        }
+        return trigrams;
+    }
+
+    /**
+     * A concept similar to the searched text.
+     */
+    public static class Suggestion {
+        private final String code;
+        private final String display;
+        private final float similarity;
+
+        Suggestion(String code, String display, float similarity) {
+            this.code = code;
+            this.display = display;
+            this.similarity = similarity;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getDisplay() {
+            return display;
+        }
+
+        public float getSimilarity() {
+            return similarity;
+        }
+    }
+
+    /**
+     * The codes and names of one source version. Every code and name is an entry pointing to its concept, the
+     * postings hold the entries of every trigram.
+     */
+    private static class TrigramTable {
+        private final long stamp;
+        private final String[] codes;
+        private final String[] displays;
+        private final int[] entryConcepts;
+        private final int[] entryTrigrams;
+        private final Map<String, int[]> postings = new HashMap<>();
+
+        TrigramTable(long stamp, Collection<List<ConceptRepository.ConceptText>> concepts, String defaultLocale) {
+            this.stamp = stamp;
+            codes = new String[concepts.size()];
+            displays = new String[concepts.size()];
+            List<Integer> entries = new ArrayList<>();
+            List<Integer> counts = new ArrayList<>();
+            Map<String, List<Integer>> trigramEntries = new HashMap<>();
+            int concept = 0;
+            for (List<ConceptRepository.ConceptText> texts : concepts) {
+                codes[concept] = texts.get(0).getMnemonic();
+                displays[concept] = getDisplay(texts, defaultLocale);
+                List<String> values = new ArrayList<>();
+                values.add(codes[concept]);
+                texts.stream().map(ConceptRepository.ConceptText::getName).filter(n -> isValid(n)).forEach(values::add);
+                for (String value : values) {
+                    Set<String> trigrams = trigrams(value);
+                    if (trigrams.isEmpty()) continue;
+                    int entry = entries.size();
+                    entries.add(concept);
+                    counts.add(trigrams.size());
+                    trigrams.forEach(t -> trigramEntries.computeIfAbsent(t, k -> new ArrayList<>()).add(entry));
+                }
+                concept++;
+            }
+            entryConcepts = entries.stream().mapToInt(Integer::intValue).toArray();
+            entryTrigrams = counts.stream().mapToInt(Integer::intValue).toArray();
+            trigramEntries.forEach((t, e) -> postings.put(t, e.stream().mapToInt(Integer::intValue).toArray()));
+        }
+
+        private static String getDisplay(List<ConceptRepository.ConceptText> texts, String defaultLocale) {
+            // preferred name in the default locale, then any preferred name, then any name
+            return texts.stream().filter(t -> isValid(t.getName()))
+                    .min(Comparator.comparingInt(t -> Boolean.TRUE.equals(t.getLocalePreferred())
+                            ? Objects.equals(defaultLocale, t.getLocale()) ? 0 : 1 : 2))
+                    .map(ConceptRepository.ConceptText::getName).orElse(null);
+        }
+
+        int size() {
+            return codes.length + entryConcepts.length;
+        }
+
+        List<Suggestion> suggest(List<Set<String>> queries, int limit) {
+            float[] best = new float[codes.length];
+            int[] shared = new int[entryConcepts.length];
+            for (Set<String> query : queries) {
+                Arrays.fill(shared, 0);
+                List<Integer> touched = new ArrayList<>();
+                for (String trigram : query) {
+                    for (int entry : postings.getOrDefault(trigram, new int[0])) {
+                        if (shared[entry]++ == 0) touched.add(entry);
+                    }
+                }
+                for (int entry : touched) {
+                    float similarity = (float) shared[entry] / (query.size() + entryTrigrams[entry] - shared[entry]);
+                    int concept = entryConcepts[entry];
+                    if (similarity > best[concept]) best[concept] = similarity;
+                }
+            }
+            List<Integer> matches = new ArrayList<>();
+            for (int concept = 0; concept < best.length; concept++) {
+                if (best[concept] >= MIN_SIMILARITY) matches.add(concept);
+            }
+            return matches.stream()
+                    .sorted(Comparator.comparingDouble((Integer c) -> best[c]).reversed()
+                            .thenComparing(c -> codes[c]))
+                    .limit(limit)
+                    .map(c -> new Suggestion(codes[c], displays[c], best[c]))
+                    .collect(Collectors.toList());
+        }
+    }
+}
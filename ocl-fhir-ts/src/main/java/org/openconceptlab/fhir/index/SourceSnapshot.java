@@ -0,0 +1,366 @@
+package org.openconceptlab.fhir.index;
+
+import org.openconceptlab.fhir.repository.ConceptRepository;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The SourceSnapshot. The most recent concept versions of a released source version and their names, in a compact
+ * binary file which is memory mapped and read in place, so it is held outside of the Java heap. Concepts are sorted by
+ * code and stored column by column, names are stored in columns of their own, the names of concept i being the range
+ * [firstName[i], firstName[i + 1]). All strings are stored once in a string table and referred to by their index.
+ * Codes are looked up in an open-addressing hash table of concept indexes, hashed over their UTF-8 bytes and probed
+ * linearly, so a lookup neither decodes strings nor touches the Java heap beyond the code itself.
+ * <pre>
+ * header     magic, format version, source stamp (long), concepts, names, strings, slots
+ * concepts   conceptId (long) | code | firstName (concepts + 1) | retired (byte)
+ * names      name | locale | type | preferred (byte)
+ * codes      slots (a power of two, at least twice the concepts, -1 if empty)
+ * strings    offsets (strings + 1) | UTF-8 bytes
+ * </pre>
+ * Integers are big-endian, a missing string is -1.
+ * @author agent
+ */
+public class SourceSnapshot {
+
+    static final int MAGIC = 0x4F434C53;
+    static final int FORMAT_VERSION = 2;
+    private static final int EMPTY = -1;
+    private static final int HEADER_SIZE = 32;
+
+    private final ByteBuffer buffer;
+    private final long stamp;
+    private final int concepts;
+    private final int names;
+    private final int conceptIdsAt;
+    private final int codesAt;
+    private final int firstNamesAt;
+    private final int retiredAt;
+    private final int nameStringsAt;
+    private final int localesAt;
+    private final int typesAt;
+    private final int preferredAt;
+    private final int slots;
+    private final int slotsAt;
+    private final int stringOffsetsAt;
+    private final int stringBytesAt;
+
+    private SourceSnapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+            throw new IOException("Not a source snapshot of format version " + FORMAT_VERSION);
+        stamp = buffer.getLong(8);
+        concepts = buffer.getInt(16);
+        names = buffer.getInt(20);
+        int strings = buffer.getInt(24);
+        slots = buffer.getInt(28);
+        conceptIdsAt = HEADER_SIZE;
+        codesAt = conceptIdsAt + 8 * concepts;
+        firstNamesAt = codesAt + 4 * concepts;
+        retiredAt = firstNamesAt + 4 * (concepts + 1);
+        nameStringsAt = retiredAt + concepts;
+        localesAt = nameStringsAt + 4 * names;
+        typesAt = localesAt + 4 * names;
+        preferredAt = typesAt + 4 * names;
+        slotsAt = preferredAt + names;
+        stringOffsetsAt = slotsAt + 4 * slots;
+        stringBytesAt = stringOffsetsAt + 4 * (strings + 1);
+        if (stringBytesAt > buffer.capacity() || stringBytesAt + buffer.getInt(stringOffsetsAt + 4 * strings) != buffer.capacity())
+            throw new IOException("Truncated source snapshot");
+    }
+
+    /**
+     * Maps the snapshot file, it stays mapped until the snapshot is garbage collected.
+     */
+    static SourceSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Source snapshot " + file + " exceeds 2 GB");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return new SourceSnapshot(buffer);
+        }
+    }
+
+    public long getStamp() {
+        return stamp;
+    }
+
+    /**
+     * Number of concepts, including retired ones.
+     */
+    public int size() {
+        return concepts;
+    }
+
+    public long getConceptId(int concept) {
+        return buffer.getLong(conceptIdsAt + 8 * concept);
+    }
+
+    public String getCode(int concept) {
+        return getString(buffer.getInt(codesAt + 4 * concept));
+    }
+
+    public boolean isRetired(int concept) {
+        return buffer.get(retiredAt + concept) != 0;
+    }
+
+    public int getFirstName(int concept) {
+        return buffer.getInt(firstNamesAt + 4 * concept);
+    }
+
+    public String getName(int name) {
+        return getString(buffer.getInt(nameStringsAt + 4 * name));
+    }
+
+    public String getLocale(int name) {
+        return getString(buffer.getInt(localesAt + 4 * name));
+    }
+
+    public String getType(int name) {
+        return getString(buffer.getInt(typesAt + 4 * name));
+    }
+
+    public boolean isPreferred(int name) {
+        return buffer.get(preferredAt + name) != 0;
+    }
+
+    /**
+     * Returns the index of the concept with the code, or -1.
+     */
+    public int indexOf(String code) {
+        if (code == null || slots == 0) return -1;
+        byte[] key = code.getBytes(StandardCharsets.UTF_8);
+        int mask = slots - 1;
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            int concept = buffer.getInt(slotsAt + 4 * slot);
+            if (concept == EMPTY) return -1;
+            if (stringEquals(buffer.getInt(codesAt + 4 * concept), key)) return concept;
+        }
+    }
+
+    private boolean stringEquals(int index, byte[] key) {
+        int start = buffer.getInt(stringOffsetsAt + 4 * index);
+        int end = buffer.getInt(stringOffsetsAt + 4 * (index + 1));
+        if (end - start != key.length) return false;
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(stringBytesAt + start + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * FNV-1a, the low bits select the slot.
+     */
+    private static int hash(byte[] key) {
+        int hash = 0x811C9DC5;
+        for (byte b : key) hash = (hash ^ (b & 0xFF)) * 0x01000193;
+        return hash ^ (hash >>> 16);
+    }
+
+    String getString(int index) {
+        if (index < 0) return null;
+        int start = buffer.getInt(stringOffsetsAt + 4 * index);
+        int end = buffer.getInt(stringOffsetsAt + 4 * (index + 1));
+        byte[] bytes = new byte[end - start];
+        ByteBuffer view = buffer.duplicate();
+        view.position(stringBytesAt + start);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Names of the concepts which are not retired.
+     */
+    public Stream<ConceptRepository.ConceptText> texts() {
+        return IntStream.range(0, concepts).filter(c -> !isRetired(c))
+                .boxed()
+                .flatMap(c -> IntStream.range(getFirstName(c), getFirstName(c + 1)).mapToObj(n -> new Text(c, n)));
+    }
+
+    /**
+     * Writes the snapshot of the given concept records, which must be grouped by concept, to the file. The file is
+     * written next to its final place and moved there once complete.
+     */
+    static void write(Path file, long stamp, Stream<ConceptRepository.ConceptRecord> records) throws IOException {
+        // group the records by concept, then order the concepts by code
+        List<ConceptEntry> entries = new ArrayList<>();
+        Iterator<ConceptRepository.ConceptRecord> iterator = records.iterator();
+        ConceptEntry current = null;
+        while (iterator.hasNext()) {
+            ConceptRepository.ConceptRecord record = iterator.next();
+            if (current == null || current.conceptId != record.getConceptId()) {
+                current = new ConceptEntry(record.getConceptId(), record.getMnemonic(),
+                        Boolean.TRUE.equals(record.getRetired()));
+                entries.add(current);
+            }
+            if (record.getName() != null) current.names.add(new NameEntry(record.getName(), record.getLocale(),
+                    record.getType(), Boolean.TRUE.equals(record.getLocalePreferred())));
+        }
+        entries.sort(Comparator.comparing(e -> e.code));
+
+        Map<String, Integer> stringIndexes = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int nameCount = entries.stream().mapToInt(e -> e.names.size()).sum();
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            // string indexes are assigned up front, the string table comes last
+            int[] codes = new int[entries.size()];
+            int[][] nameColumns = new int[3][nameCount];
+            int name = 0;
+            for (int c = 0; c < entries.size(); c++) {
+                codes[c] = intern(entries.get(c).code, stringIndexes, strings);
+                for (NameEntry entry : entries.get(c).names) {
+                    nameColumns[0][name] = intern(entry.name, stringIndexes, strings);
+                    nameColumns[1][name] = intern(entry.locale, stringIndexes, strings);
+                    nameColumns[2][name] = intern(entry.type, stringIndexes, strings);
+                    name++;
+                }
+            }
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(stamp);
+            out.writeInt(entries.size());
+            out.writeInt(nameCount);
+            out.writeInt(strings.size());
+            int[] slots = new int[Integer.highestOneBit(Math.max(2 * entries.size() - 1, 1)) << 1];
+            out.writeInt(slots.length);
+            for (ConceptEntry entry : entries) out.writeLong(entry.conceptId);
+            for (int code : codes) out.writeInt(code);
+            int firstName = 0;
+            for (ConceptEntry entry : entries) {
+                out.writeInt(firstName);
+                firstName += entry.names.size();
+            }
+            out.writeInt(firstName);
+            for (ConceptEntry entry : entries) out.writeByte(entry.retired ? 1 : 0);
+            for (int[] column : nameColumns) {
+                for (int value : column) out.writeInt(value);
+            }
+            for (ConceptEntry entry : entries) {
+                for (NameEntry nameEntry : entry.names) out.writeByte(nameEntry.preferred ? 1 : 0);
+            }
+            Arrays.fill(slots, EMPTY);
+            int mask = slots.length - 1;
+            for (int c = 0; c < codes.length; c++) {
+                if (codes[c] < 0) continue;
+                int slot = hash(strings.get(codes[c])) & mask;
+                while (slots[slot] != EMPTY) slot = (slot + 1) & mask;
+                slots[slot] = c;
+            }
+            for (int slot : slots) out.writeInt(slot);
+            int offset = 0;
+            for (byte[] bytes : strings) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : strings) out.write(bytes);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int intern(String value, Map<String, Integer> indexes, List<byte[]> strings) {
+        if (value == null) return -1;
+        return indexes.computeIfAbsent(value, v -> {
+            strings.add(v.getBytes(StandardCharsets.UTF_8));
+            return strings.size() - 1;
+        });
+    }
+
+    private static class ConceptEntry {
+        private final long conceptId;
+        private final String code;
+        private final boolean retired;
+        private final List<NameEntry> names = new ArrayList<>(2);
+
+        ConceptEntry(long conceptId, String code, boolean retired) {
+            this.conceptId = conceptId;
+            this.code = code;
+            this.retired = retired;
+        }
+    }
+
+    private static class NameEntry {
+        private final String name;
+        private final String locale;
+        private final String type;
+        private final boolean preferred;
+
+        NameEntry(String name, String locale, String type, boolean preferred) {
+            this.name = name;
+            this.locale = locale;
+            this.type = type;
+            this.preferred = preferred;
+        }
+    }
+
+    private class Text implements ConceptRepository.ConceptText {
+        private final int concept;
+        private final int name;
+
+        Text(int concept, int name) {
+            this.concept = concept;
+            this.name = name;
+        }
+
+        @Override
+        public Long getConceptId() {
+            return SourceSnapshot.this.getConceptId(concept);
+        }
+
+        @Override
+        public String getMnemonic() {
+            return getCode(concept);
+        }
+
+        @Override
+        public Timestamp getUpdatedAt() {
+            return null;
+        }
+
+        @Override
+        public Boolean getDescription() {
+            return false;
+        }
+
+        @Override
+        public Boolean getRetired() {
+            return false;
+        }
+
+        @Override
+        public String getName() {
+            return SourceSnapshot.this.getName(name);
+        }
+
+        @Override
+        public String getLocale() {
+            return SourceSnapshot.this.getLocale(name);
+        }
+
+        @Override
+        public Boolean getLocalePreferred() {
+            return isPreferred(name);
+        }
+
+        @Override
+        public String getType() {
+            return SourceSnapshot.this.getType(name);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package org.openconceptlab.fhir.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.HEAD;
+import static org.openconceptlab.fhir.util.OclFhirUtil.getLastUpdated;
+
+/**
+ * The SourceSnapshotStore. Keeps a {@link SourceSnapshot} of every released source version on local disk, written on
+ * first use and kept across restarts, so that the in-memory tables of a source version are rebuilt from a mapped file
+ * rather than from the database, and its codes are looked up in place. Versions which can still change are always
+ * read from the database, as is every version when snapshots are disabled or a snapshot cannot be written.
+ * @author agent
+ */
+@Component
+public class SourceSnapshotStore {
+
+    private static final Logger log = LoggerFactory.getLogger(SourceSnapshotStore.class);
+
+    private static final String SUFFIX = ".snap";
+
+    ConceptRepository conceptRepository;
+
+    @Value("${ocl.snapshot.enabled}")
+    private boolean enabled;
+
+    @Value("${ocl.snapshot.dir}")
+    private String snapshotDir;
+
+    @Value("${ocl.snapshot.max-open}")
+    private long maxOpen;
+
+    private Cache<Long, SourceSnapshot> snapshots;
+
+    @Autowired
+    public SourceSnapshotStore(ConceptRepository conceptRepository) {
+        this.conceptRepository = conceptRepository;
+    }
+
+    @PostConstruct
+    private void init() {
+        snapshots = CacheBuilder.newBuilder().maximumSize(maxOpen).build();
+    }
+
+    /**
+     * Returns the snapshot of a released source version, writing it first if needed. Must be called within a
+     * transaction since the snapshot may have to be written.
+     */
+    public Optional<SourceSnapshot> get(Source source) {
+        if (!enabled || !Boolean.TRUE.equals(source.getReleased()) || HEAD.equals(source.getVersion()))
+            return Optional.empty();
+        long stamp = getStamp(source);
+        SourceSnapshot snapshot = snapshots.getIfPresent(source.getId());
+        if (snapshot != null && snapshot.getStamp() == stamp) return Optional.of(snapshot);
+        try {
+            snapshots.invalidate(source.getId());
+            snapshot = snapshots.get(source.getId(), () -> open(source, stamp));
+            return Optional.of(snapshot);
+        } catch (ExecutionException e) {
+            log.warn("Could not snapshot source {}, reading it from the database: {}", source.getId(),
+                    e.getCause().getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Names of the most recent concept versions of the source which are not retired.
+     */
+    public Stream<ConceptRepository.ConceptText> streamNames(Source source) {
+        return get(source).map(SourceSnapshot::texts)
+                .orElseGet(() -> conceptRepository.streamNamesBySourceId(source.getId()));
+    }
+
+    /**
+     * Drops the snapshot of the source and deletes its files, it is written again when next needed.
+     */
+    public void invalidate(Long sourceId) {
+        snapshots.invalidate(sourceId);
+        deleteFiles(sourceId);
+    }
+
+    private SourceSnapshot open(Source source, long stamp) throws IOException {
+        Path dir = Paths.get(snapshotDir);
+        Path file = dir.resolve(source.getId() + "-" + stamp + SUFFIX);
+        if (Files.exists(file)) {
+            try {
+                return SourceSnapshot.open(file);
+            } catch (IOException e) {
+                log.warn("Rewriting unreadable snapshot {}: {}", file, e.getMessage());
+            }
+        }
+        // snapshots of earlier states of the source are outdated
+        deleteFiles(source.getId());
+        Files.createDirectories(dir);
+        long start = System.currentTimeMillis();
+        try (Stream<ConceptRepository.ConceptRecord> records = conceptRepository.streamRecordsBySourceId(source.getId())) {
+            SourceSnapshot.write(file, stamp, records);
+        }
+        SourceSnapshot snapshot = SourceSnapshot.open(file);
+        log.info("Wrote snapshot of source {} with {} concepts in {} ms", source.getId(), snapshot.size(),
+                System.currentTimeMillis() - start);
+        return snapshot;
+    }
+
+    private void deleteFiles(Long sourceId) {
+        Path dir = Paths.get(snapshotDir);
+        if (!Files.isDirectory(dir)) return;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, sourceId + "-*")) {
+            for (Path file : files) Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete snapshots of source {}: {}", sourceId, e.getMessage());
+        }
+    }
+
+    private static long getStamp(Source source) {
+        Date lastUpdated = getLastUpdated(source);
+        return lastUpdated == null ? 0 : lastUpdated.getTime();
+    }
+}
@@ -0,0 +1,63 @@
+package org.openconceptlab.fhir.interceptor;
+
+import ca.uhn.fhir.rest.client.api.IClientInterceptor;
+import ca.uhn.fhir.rest.client.api.IHttpRequest;
+import ca.uhn.fhir.rest.client.api.IHttpResponse;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.ResponseEntity;
+
+import java.util.List;
+
+import static org.openconceptlab.fhir.util.OclFhirUtil.isValid;
+
+/**
+ * The OclFhirConditionalRequestInterceptor class. A client interceptor which forwards the conditional request
+ * headers of an OCL end point call to the FHIR servlet, and keeps the caching headers of its response.
+ * A new instance is needed for every request.
+ * @author agent
+ */
+public class OclFhirConditionalRequestInterceptor implements IClientInterceptor {
+
+    private final String ifNoneMatch;
+    private final String ifModifiedSince;
+    private String eTag;
+    private String lastModified;
+
+    public OclFhirConditionalRequestInterceptor(String ifNoneMatch, String ifModifiedSince) {
+        this.ifNoneMatch = ifNoneMatch;
+        this.ifModifiedSince = ifModifiedSince;
+    }
+
+    @Override
+    public void interceptRequest(IHttpRequest request) {
+        if (isValid(ifNoneMatch))
+            request.addHeader(HttpHeaders.IF_NONE_MATCH, ifNoneMatch);
+        if (isValid(ifModifiedSince))
+            request.addHeader(HttpHeaders.IF_MODIFIED_SINCE, ifModifiedSince);
+    }
+
+    @Override
+    public void interceptResponse(IHttpResponse response) {
+        eTag = first(response.getHeaders(HttpHeaders.ETAG));
+        lastModified = first(response.getHeaders(HttpHeaders.LAST_MODIFIED));
+    }
+
+    public String getETag() {
+        return eTag;
+    }
+
+    /**
+     * Copies the caching headers received from the FHIR servlet to the given response.
+     */
+    public ResponseEntity.BodyBuilder apply(ResponseEntity.BodyBuilder builder) {
+        if (isValid(eTag))
+            builder.header(HttpHeaders.ETAG, eTag);
+        if (isValid(lastModified))
+            builder.header(HttpHeaders.LAST_MODIFIED, lastModified);
+        return builder;
+    }
+
+    private static String first(List<String> values) {
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+}
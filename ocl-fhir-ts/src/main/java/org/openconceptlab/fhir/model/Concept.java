@@ -1,5 +1,7 @@
 package org.openconceptlab.fhir.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.LazyCollection;
 import org.hibernate.annotations.LazyCollectionOption;
 import org.hibernate.annotations.Type;
@@ -114,6 +116,7 @@ public class Concept extends BaseOclEntity implements Serializable {
 
 //	@LazyCollection(LazyCollectionOption.FALSE)
 	@OneToMany(mappedBy="concept", cascade = CascadeType.ALL)
+	@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 	private List<ConceptsName> conceptsNames;
 
 	public Concept() {
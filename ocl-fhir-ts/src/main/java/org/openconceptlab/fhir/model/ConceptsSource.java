@@ -1,5 +1,8 @@
 package org.openconceptlab.fhir.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import java.io.Serializable;
 import javax.persistence.*;
 
@@ -9,6 +12,8 @@ import javax.persistence.*;
  * @author harpatel1
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Table(name="concepts_sources")
 public class ConceptsSource extends BaseOclEntity implements Serializable {
 	private static final long serialVersionUID = 1L;
@@ -1,5 +1,8 @@
 package org.openconceptlab.fhir.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+
 import java.io.Serializable;
 import javax.persistence.*;
 import java.sql.Timestamp;
@@ -11,6 +14,8 @@ import java.util.List;
  * @author harpatel1
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.READ_ONLY)
 @Table(name="localized_texts")
 public class LocalizedText extends BaseOclEntity implements Serializable {
 	private static final long serialVersionUID = 1L;
@@ -1,5 +1,7 @@
 package org.openconceptlab.fhir.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Type;
 
 import java.io.Serializable;
@@ -15,6 +17,8 @@ import java.util.Map;
  * @author harpatel1
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 @Table(name="sources")
 public class Source extends BaseOclEntity implements Serializable {
 	private static final long serialVersionUID = 1L;
@@ -113,6 +117,7 @@ public class Source extends BaseOclEntity implements Serializable {
 	private List<Mapping> mappings;
 
 	@OneToMany(mappedBy="source", cascade = CascadeType.ALL)
+	@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 	private List<ConceptsSource> conceptsSources;
 
 	@OneToMany(mappedBy="source", cascade = CascadeType.ALL)
@@ -1,5 +1,7 @@
 package org.openconceptlab.fhir.model;
 
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.Type;
 
 import java.io.Serializable;
@@ -13,6 +15,8 @@ import java.util.List;
  * @author harpatel1
  */
 @Entity
+@Cacheable
+@Cache(usage = CacheConcurrencyStrategy.NONSTRICT_READ_WRITE)
 @Table(name="user_profiles")
 public class UserProfile extends BaseOclEntity implements Serializable {
 	private static final long serialVersionUID = 1L;
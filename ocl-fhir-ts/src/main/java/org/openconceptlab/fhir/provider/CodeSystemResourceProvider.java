@@ -1,24 +1,34 @@
 package org.openconceptlab.fhir.provider;
 
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.openconceptlab.fhir.converter.CodeSystemConverter;
+import org.openconceptlab.fhir.converter.ValueSetConverter;
+import org.openconceptlab.fhir.index.ConceptPrefixIndex;
+import org.openconceptlab.fhir.index.ConceptSearchIndex;
 import org.openconceptlab.fhir.model.*;
 import org.openconceptlab.fhir.repository.*;
+import org.openconceptlab.fhir.util.ConceptFilter;
+import org.openconceptlab.fhir.util.DesignationFilter;
 import org.openconceptlab.fhir.util.OclFhirUtil;
 import static org.openconceptlab.fhir.util.OclFhirUtil.*;
 import static org.openconceptlab.fhir.util.OclFhirConstants.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
-import javax.transaction.Transactional;
+import java.sql.Timestamp;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 /**
  * The CodeSystemResourceProvider.
@@ -28,13 +38,24 @@ import java.util.stream.Collectors;
 public class CodeSystemResourceProvider implements IResourceProvider {
 
     SourceRepository sourceRepository;
+    ConceptRepository conceptRepository;
     CodeSystemConverter codeSystemConverter;
+    ValueSetConverter valueSetConverter;
+    ConceptSearchIndex conceptSearchIndex;
+    ConceptPrefixIndex conceptPrefixIndex;
     OclFhirUtil oclFhirUtil;
 
     @Autowired
-    public CodeSystemResourceProvider(SourceRepository sourceRepository, CodeSystemConverter codeSystemConverter, OclFhirUtil oclFhirUtil) {
+    public CodeSystemResourceProvider(SourceRepository sourceRepository, ConceptRepository conceptRepository,
+                                      CodeSystemConverter codeSystemConverter, ValueSetConverter valueSetConverter,
+                                      ConceptSearchIndex conceptSearchIndex, ConceptPrefixIndex conceptPrefixIndex,
+                                      OclFhirUtil oclFhirUtil) {
         this.sourceRepository = sourceRepository;
+        this.conceptRepository = conceptRepository;
         this.codeSystemConverter = codeSystemConverter;
+        this.valueSetConverter = valueSetConverter;
+        this.conceptSearchIndex = conceptSearchIndex;
+        this.conceptPrefixIndex = conceptPrefixIndex;
         this.oclFhirUtil = oclFhirUtil;
     }
 
@@ -44,73 +65,118 @@ public class CodeSystemResourceProvider implements IResourceProvider {
     }
 
     /**
-     * Returns all public {@link CodeSystem}.
+     * Returns all public {@link CodeSystem}. Concepts are left out unless requested with _summary=false or _elements.
      *
      * @return {@link Bundle}
      */
     @Search()
-    @Transactional
-    public Bundle searchCodeSystems(RequestDetails details) {
+    @Transactional(readOnly = true)
+    public Bundle searchCodeSystems(SummaryEnum summary, @Elements Set<String> elements, RequestDetails details) {
         List<Source> sources = filterHead(getSources(publicAccess));
-        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, false);
+        checkNotModified(sources, details);
+        boolean includeConcepts = isElementRequested(summary, elements, CONCEPT, true);
+        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, includeConcepts);
         return OclFhirUtil.getBundle(codeSystems, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
-     * Returns public {@link CodeSystem} for a given Url.
+     * Returns public {@link CodeSystem} for a given Url. Concepts can be filtered by concept class, datatype
+     * (comma separated values) and inactive. Designations can be left out with includeDesignations=false or
+     * restricted to the designation languages, which default to the displayLanguage.
      * @param url
      * @param version
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
+    @Transactional(readOnly = true)
     public Bundle searchCodeSystemByUrl(@RequiredParam(name = CodeSystem.SP_URL) StringType url,
                                         @OptionalParam(name = VERSION) StringType version,
+                                        @OptionalParam(name = CONCEPT_CLASS) StringOrListParam conceptClass,
+                                        @OptionalParam(name = DATATYPE) StringOrListParam datatype,
+                                        @OptionalParam(name = INACTIVE) StringType inactive,
+                                        @OptionalParam(name = DISP_LANG) StringType displayLanguage,
+                                        @OptionalParam(name = INCLUDE_DESIGNATIONS) StringType includeDesignations,
+                                        @OptionalParam(name = DESIGNATION) StringOrListParam designation,
+                                        SummaryEnum summary, @Elements Set<String> elements,
                                         RequestDetails details) {
         List<Source> sources = filterHead(getSourceByUrl(url, version, publicAccess));
-        boolean includeConcepts = !isValid(version) || !isVersionAll(version);
-        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, includeConcepts);
+        checkNotModified(sources, details);
+        boolean includeConcepts = isElementRequested(summary, elements, CONCEPT, isVersionAll(version));
+        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, includeConcepts,
+                getConceptFilter(conceptClass, datatype, inactive),
+                getDesignationFilter(displayLanguage, includeDesignations, designation));
         return OclFhirUtil.getBundle(codeSystems, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
-     * Returns all public {@link CodeSystem} for a given owner.
+     * Returns all public {@link CodeSystem} for a given owner. Concepts are left out unless requested with
+     * _summary=false or _elements.
      * @param owner
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
+    @Transactional(readOnly = true)
     public Bundle searchCodeSystemByOwner(@RequiredParam(name = OWNER) StringType owner,
+                                          SummaryEnum summary, @Elements Set<String> elements,
                                           RequestDetails details) {
         List<Source> sources = filterHead(getSourceByOwner(owner, publicAccess));
-        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, false);
+        checkNotModified(sources, details);
+        boolean includeConcepts = isElementRequested(summary, elements, CONCEPT, true);
+        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, includeConcepts);
         return OclFhirUtil.getBundle(codeSystems, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
      * Returns public {@link CodeSystem} for a given owner and Id. Returns given version if provided, otherwise
-     * most recent released version is returned.
+     * most recent released version is returned. If a code is given, only that concept is returned. Concepts can be
+     * filtered by concept class, datatype (comma separated values) and inactive. Designations can be left out with
+     * includeDesignations=false or restricted to the designation languages, which default to the displayLanguage.
      * @param owner
      * @param id
      * @param version
+     * @param code
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
+    @Transactional(readOnly = true)
     public Bundle searchCodeSystemByOwnerAndId(@RequiredParam(name = OWNER) StringType owner,
                                                @RequiredParam(name = ID) StringType id,
                                                @OptionalParam(name = VERSION) StringType version,
+                                               @OptionalParam(name = CODE) StringType code,
+                                               @OptionalParam(name = CONCEPT_CLASS) StringOrListParam conceptClass,
+                                               @OptionalParam(name = DATATYPE) StringOrListParam datatype,
+                                               @OptionalParam(name = INACTIVE) StringType inactive,
+                                               @OptionalParam(name = DISP_LANG) StringType displayLanguage,
+                                               @OptionalParam(name = INCLUDE_DESIGNATIONS) StringType includeDesignations,
+                                               @OptionalParam(name = DESIGNATION) StringOrListParam designation,
+                                               SummaryEnum summary, @Elements Set<String> elements,
                                                RequestDetails details) {
+        if (isValid(code) && isVersionAll(version))
+            throw new InvalidRequestException("A concept can only be read from a single CodeSystem version.");
         List<Source> sources = filterHead(getSourceByOwnerAndIdAndVersion(id, owner, version, publicAccess));
-        boolean includeConcepts = !isVersionAll(version);
-        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, includeConcepts);
+        checkNotModified(sources, details);
+        if (isValid(code)) {
+            if (sources.isEmpty()) {
+                if (isValid(version) && HEAD.equals(version.getValue()))
+                    throw new InvalidRequestException("Concepts can not be read from the HEAD version of a CodeSystem.");
+                throw new ResourceNotFoundException(notFound(CodeSystem.class, owner, id, version));
+            }
+            CodeSystem codeSystem = codeSystemConverter.convertToCodeSystem(sources.get(0), code.getValue(),
+                    getDesignationFilter(displayLanguage, includeDesignations, designation));
+            return OclFhirUtil.getBundle(Collections.singletonList(codeSystem), details.getFhirServerBase(),
+                    details.getRequestPath());
+        }
+        boolean includeConcepts = isElementRequested(summary, elements, CONCEPT, isVersionAll(version));
+        List<CodeSystem> codeSystems = codeSystemConverter.convertToCodeSystem(sources, includeConcepts,
+                getConceptFilter(conceptClass, datatype, inactive),
+                getDesignationFilter(displayLanguage, includeDesignations, designation));
         return OclFhirUtil.getBundle(codeSystems, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
      * CodeSystem $lookup operation.
      * GET request example:
-     * <HOST>/fhir/CodeSystem/$lookup?code=#&system=#&version=#&displayLanguage=#
+     * <HOST>/fhir/CodeSystem/$lookup?code=#&system=#&version=#&displayLanguage=#&property=#
      *
      * POST request example:
      * {
@@ -131,6 +197,10 @@ public class CodeSystemResourceProvider implements IResourceProvider {
      *         {
      *             "name":"displayLanguage",
      *             "valueCode":""
+     *         },
+     *         {
+     *             "name":"property",
+     *             "valueCode":""
      *         }
      *     ]
      * }
@@ -139,30 +209,32 @@ public class CodeSystemResourceProvider implements IResourceProvider {
      * @param system - (Mandatory) System for the code that is to be located
      * @param version - (Optional) The version of system
      * @param displayLanguage - (Optional) The display language
+     * @param property - (Optional) The concept properties to return, * returns all of them
      * @return Parameters
      */
     @Operation(name = LOOKUP, idempotent = true)
-    @Transactional
+    @Transactional(readOnly = true)
     public Parameters codeSystemLookUp(@OperationParam(name = CODE, type = CodeType.class) CodeType code,
                                        @OperationParam(name = SYSTEM, type = UriType.class) UriType system,
                                        @OperationParam(name = VERSION, type = StringType.class) StringType version,
                                        @OperationParam(name = DISP_LANG, type = CodeType.class) CodeType displayLanguage,
+                                       @OperationParam(name = PROPERTY, type = CodeType.class, max = OperationParam.MAX_UNLIMITED) List<CodeType> property,
                                        @OperationParam(name = OWNER, type = StringType.class) StringType owner) {
 
         validateOperation(code, system, LOOKUP);
-        Source source = isValid(owner) ? getSourceByOwnerAndUrl(owner, newStringType(system), version, publicAccess) :
-                getSourceByUrl(newStringType(system), version, publicAccess).get(0);
-        return codeSystemConverter.getLookupParameters(source, code, displayLanguage);
+        Source source = getSource(owner, system, version);
+        return codeSystemConverter.getLookupParameters(source, code, displayLanguage, property);
     }
 
     @Operation(name = VALIDATE_CODE, idempotent = true)
-    @Transactional
+    @Transactional(readOnly = true)
     public Parameters codeSystemValidateCode(@OperationParam(name = URL, type = UriType.class) UriType url,
                                              @OperationParam(name = CODE, type = CodeType.class) CodeType code,
                                              @OperationParam(name = VERSION, type = StringType.class) StringType version,
                                              @OperationParam(name = DISPLAY, type = StringType.class) StringType display,
                                              @OperationParam(name = DISP_LANG, type = CodeType.class) CodeType displayLanguage,
                                              @OperationParam(name = CODING, type = Coding.class) Coding coding,
+                                             @OperationParam(name = SUGGEST, type = BooleanType.class) BooleanType suggest,
                                              @OperationParam(name = OWNER, type = StringType.class) StringType owner) {
 
         if (coding != null) {
@@ -172,13 +244,172 @@ public class CodeSystemResourceProvider implements IResourceProvider {
             display = new StringType(coding.getDisplay());
         }
         validateOperation(code, url, VALIDATE_CODE);
-        Source source = isValid(owner) ? getSourceByOwnerAndUrl(owner, newStringType(url), version, publicAccess) :
+        Source source = getSource(owner, url, version);
+        return codeSystemConverter.validateCode(source, getCode(code), display, displayLanguage,
+                suggest != null && suggest.booleanValue());
+    }
+
+    /**
+     * CodeSystem $subsumes operation. Tests the subsumption relationship between two codes of the system, the hierarchy
+     * is given by the parent and child mappings between concepts of the system.
+     * GET request example:
+     * <HOST>/fhir/CodeSystem/$subsumes?system=#&version=#&codeA=#&codeB=#
+     *
+     * @param codeA - (Optional) The first code, either codeA or codingA is required
+     * @param codeB - (Optional) The second code, either codeB or codingB is required
+     * @param system - (Optional) The system of the codes, required with codeA and codeB
+     * @param version - (Optional) The version of system, most recent released version otherwise
+     * @param codingA - (Optional) The first coding
+     * @param codingB - (Optional) The second coding
+     * @return Parameters
+     */
+    @Operation(name = SUBSUMES, idempotent = true)
+    @Transactional(readOnly = true)
+    public Parameters codeSystemSubsumes(@OperationParam(name = CODE_A, type = CodeType.class) CodeType codeA,
+                                         @OperationParam(name = CODE_B, type = CodeType.class) CodeType codeB,
+                                         @OperationParam(name = SYSTEM, type = UriType.class) UriType system,
+                                         @OperationParam(name = VERSION, type = StringType.class) StringType version,
+                                         @OperationParam(name = CODING_A, type = Coding.class) Coding codingA,
+                                         @OperationParam(name = CODING_B, type = Coding.class) Coding codingB,
+                                         @OperationParam(name = OWNER, type = StringType.class) StringType owner) {
+        if (codingA != null && codingB != null) {
+            if (!Objects.equals(codingA.getSystem(), codingB.getSystem()))
+                throw new InvalidRequestException("Both codings must be from the same system.");
+            system = new UriType(codingA.getSystem());
+            codeA = new CodeType(codingA.getCode());
+            codeB = new CodeType(codingB.getCode());
+            if (codingA.hasVersion())
+                version = new StringType(codingA.getVersion());
+        }
+        if (!isValid(codeA) || !isValid(codeB) || !isValid(system))
+            throw new InvalidRequestException(String.format("Could not perform CodeSystem %s operation, %s and %s or " +
+                    "%s, %s and %s parameters are required.", SUBSUMES, CODING_A, CODING_B, CODE_A, CODE_B, SYSTEM));
+        Source source = getSource(owner, system, version);
+        return codeSystemConverter.getSubsumesParameters(source, codeA.getCode(), codeB.getCode());
+    }
+
+    /**
+     * CodeSystem $changes operation. Returns the concepts added, changed or removed either since the given time or
+     * since the given version, as a CodeSystem fragment whose concepts carry a changeType property.
+     * GET request example:
+     * <HOST>/fhir/CodeSystem/$changes?url=#&version=#&since=#
+     * <HOST>/fhir/CodeSystem/$changes?url=#&version=#&fromVersion=#
+     *
+     * @param url - (Mandatory) The url of the system
+     * @param version - (Optional) The version of system, most recent released version otherwise
+     * @param since - (Optional) Changes after the given time, one of since and fromVersion is required
+     * @param fromVersion - (Optional) Changes since the given version of the same system
+     * @return CodeSystem
+     */
+    @Operation(name = CHANGES, idempotent = true)
+    @Transactional(readOnly = true)
+    public CodeSystem codeSystemChanges(@OperationParam(name = URL, type = UriType.class) UriType url,
+                                        @OperationParam(name = VERSION, type = StringType.class) StringType version,
+                                        @OperationParam(name = SINCE, type = DateTimeType.class) DateTimeType since,
+                                        @OperationParam(name = FROM_VERSION, type = StringType.class) StringType fromVersion,
+                                        @OperationParam(name = OWNER, type = StringType.class) StringType owner) {
+        if (!isValid(url) || (since == null || since.getValue() == null) == !isValid(fromVersion))
+            throw new InvalidRequestException(String.format("Could not perform CodeSystem %s operation, url and either " +
+                    "%s or %s parameters are required.", CHANGES, SINCE, FROM_VERSION));
+        Source source = getSource(owner, url, version);
+        if (isValid(fromVersion)) {
+            Source from = getSource(owner, url, fromVersion);
+            try (Stream<ConceptRepository.ConceptChange> changes =
+                         conceptRepository.streamChangesBetween(source.getId(), from.getId())) {
+                return codeSystemConverter.convertToChanges(source, changes);
+            }
+        }
+        Timestamp time = new Timestamp(since.getValue().getTime());
+        if (source.getLastConceptUpdate() != null && !source.getLastConceptUpdate().after(time))
+            return codeSystemConverter.convertToChanges(source, Stream.empty());
+        try (Stream<ConceptRepository.ConceptChange> changes = conceptRepository.streamChangesSince(source.getId(), time)) {
+            return codeSystemConverter.convertToChanges(source, changes);
+        }
+    }
+
+    /**
+     * CodeSystem $search operation. Returns the concepts whose code, names or descriptions match the text, best match
+     * first, as a CodeSystem fragment.
+     * GET request example:
+     * <HOST>/fhir/CodeSystem/$search?url=#&version=#&text=#&count=#
+     *
+     * @param url - (Optional) The url of the system, either url or owner and id are required
+     * @param version - (Optional) The version of system, most recent released version otherwise
+     * @param text - (Mandatory) The text to search
+     * @param count - (Optional) The maximum number of concepts, 20 by default
+     * @param owner - (Optional) The owner of the system
+     * @param id - (Optional) The id of the system
+     * @return CodeSystem
+     */
+    @Operation(name = SEARCH, idempotent = true)
+    @Transactional(readOnly = true)
+    public CodeSystem codeSystemSearch(@OperationParam(name = URL, type = UriType.class) UriType url,
+                                       @OperationParam(name = VERSION, type = StringType.class) StringType version,
+                                       @OperationParam(name = TEXT, type = StringType.class) StringType text,
+                                       @OperationParam(name = COUNT, type = IntegerType.class) IntegerType count,
+                                       @OperationParam(name = OWNER, type = StringType.class) StringType owner,
+                                       @OperationParam(name = ID, type = StringType.class) StringType id) {
+        if (!isValid(text) || isVersionAll(version) || (!isValid(url) && (!isValid(owner) || !isValid(id))))
+            throw new InvalidRequestException(String.format("Could not perform CodeSystem %s operation, %s, a single " +
+                    "version and either %s or %s and %s parameters are required.", SEARCH, TEXT, URL, OWNER, ID));
+        int limit = count != null && count.getValue() != null ? count.getValue() : SEARCH_DEFAULT_COUNT;
+        if (limit < 1 || limit > SEARCH_MAX_HITS)
+            throw new InvalidRequestException(String.format("The %s must be between 1 and %s.", COUNT, SEARCH_MAX_HITS));
+        Source source = getSource(url, owner, id, version);
+        List<Long> conceptIds = conceptSearchIndex.search(source, text.getValue(), limit).stream()
+                .map(ConceptSearchIndex.Match::getConceptId).collect(Collectors.toList());
+        return codeSystemConverter.convertToCodeSystem(source, conceptIds);
+    }
+
+    /**
+     * CodeSystem $typeahead operation. Returns the concepts with a name containing a word which starts with the text,
+     * as a ValueSet expansion, for as-you-type pickers. Names in the display language, preferred names and fully
+     * specified names rank first.
+     * GET request example:
+     * <HOST>/fhir/CodeSystem/$typeahead?url=#&version=#&text=#&count=#&displayLanguage=#
+     *
+     * @param url - (Optional) The url of the system, either url or owner and id are required
+     * @param version - (Optional) The version of system, most recent released version otherwise
+     * @param text - (Mandatory) The typed text
+     * @param count - (Optional) The maximum number of concepts, 10 by default
+     * @param displayLanguage - (Optional) The language of the names to rank first
+     * @param owner - (Optional) The owner of the system
+     * @param id - (Optional) The id of the system
+     * @return ValueSet
+     */
+    @Operation(name = TYPEAHEAD, idempotent = true)
+    @Transactional(readOnly = true)
+    public ValueSet codeSystemTypeahead(@OperationParam(name = URL, type = UriType.class) UriType url,
+                                        @OperationParam(name = VERSION, type = StringType.class) StringType version,
+                                        @OperationParam(name = TEXT, type = StringType.class) StringType text,
+                                        @OperationParam(name = COUNT, type = IntegerType.class) IntegerType count,
+                                        @OperationParam(name = DISP_LANG, type = CodeType.class) CodeType displayLanguage,
+                                        @OperationParam(name = OWNER, type = StringType.class) StringType owner,
+                                        @OperationParam(name = ID, type = StringType.class) StringType id) {
+        if (!isValid(text) || isVersionAll(version) || (!isValid(url) && (!isValid(owner) || !isValid(id))))
+            throw new InvalidRequestException(String.format("Could not perform CodeSystem %s operation, %s, a single " +
+                    "version and either %s or %s and %s parameters are required.", TYPEAHEAD, TEXT, URL, OWNER, ID));
+        int limit = count != null && count.getValue() != null ? count.getValue() : TYPEAHEAD_DEFAULT_COUNT;
+        if (limit < 1 || limit > TYPEAHEAD_MAX_COUNT)
+            throw new InvalidRequestException(String.format("The %s must be between 1 and %s.", COUNT, TYPEAHEAD_MAX_COUNT));
+        Source source = getSource(url, owner, id, version);
+        String language = isValid(displayLanguage) ? displayLanguage.getCode() : null;
+        return valueSetConverter.toTypeahead(source, text.getValue(), language,
+                conceptPrefixIndex.suggest(source, text.getValue(), language, limit));
+    }
+
+    private Source getSource(UriType url, StringType owner, StringType id, StringType version) {
+        return isValid(url) ? getSource(owner, url, version)
+                : getSourceByOwnerAndIdAndVersion(id, owner, version, publicAccess).get(0);
+    }
+
+    private Source getSource(StringType owner, UriType url, StringType version) {
+        return isValid(owner) ? getSourceByOwnerAndUrl(owner, newStringType(url), version, publicAccess) :
                 getSourceByUrl(newStringType(url), version, publicAccess).get(0);
-        return codeSystemConverter.validateCode(source, getCode(code), display, displayLanguage);
     }
 
     private List<Source> getSources(List<String> access) {
-        return sourceRepository.findByPublicAccessIn(access).parallelStream().filter(Source::getIsLatestVersion)
+        return sourceRepository.findByPublicAccessIn(access).stream().filter(Source::getIsLatestVersion)
                 .collect(Collectors.toList());
     }
 
@@ -228,7 +459,7 @@ public class CodeSystemResourceProvider implements IResourceProvider {
         } else {
             sources.addAll(sourceRepository.findByUserIdUsernameAndPublicAccessIn(value, access));
         }
-        return sources.parallelStream().filter(Source::getIsLatestVersion).collect(Collectors.toList());
+        return sources.stream().filter(Source::getIsLatestVersion).collect(Collectors.toList());
     }
 
     private List<Source> getSourceByOwnerAndIdAndVersion(StringType id, StringType owner, StringType version, List<String> access) {
@@ -280,6 +511,36 @@ public class CodeSystemResourceProvider implements IResourceProvider {
         return sourceRepository.findFirstByCanonicalUrlAndVersionAndUserIdUsernameAndPublicAccessIn(url.getValue(), version.getValue(), owner, access);
     }
 
+    private void checkNotModified(List<Source> sources, RequestDetails details) {
+        List<String> versionIds = sources.stream().map(s -> getVersionId(s.getId(), getLastUpdated(s)))
+                .collect(Collectors.toList());
+        Date lastModified = sources.stream().map(OclFhirUtil::getLastUpdated).filter(Objects::nonNull)
+                .max(Comparator.naturalOrder()).orElse(null);
+        OclFhirUtil.checkNotModified(details, getETag(versionIds), lastModified);
+    }
+
+    private ConceptFilter getConceptFilter(StringOrListParam conceptClass, StringOrListParam datatype, StringType inactive) {
+        ConceptFilter filter = new ConceptFilter();
+        if (conceptClass != null)
+            filter.include(CONCEPT_CLASS, getValues(conceptClass));
+        if (datatype != null)
+            filter.include(DATATYPE, getValues(datatype));
+        if (isValid(inactive))
+            filter.inactive(Boolean.parseBoolean(inactive.getValue()));
+        return filter;
+    }
+
+    private DesignationFilter getDesignationFilter(StringType displayLanguage, StringType includeDesignations,
+                                                   StringOrListParam designation) {
+        return DesignationFilter.of(isValid(includeDesignations) ? Boolean.parseBoolean(includeDesignations.getValue())
+                : null, isValid(displayLanguage) ? displayLanguage.getValue() : null,
+                designation != null ? getValues(designation) : null);
+    }
+
+    private static List<String> getValues(StringOrListParam param) {
+        return param.getValuesAsQueryTokens().stream().map(StringParam::getValue).collect(Collectors.toList());
+    }
+
     private List<Source> filterHead(List<Source> sources) {
         return sources.stream().filter(s -> !HEAD.equals(s.getVersion())).collect(Collectors.toList());
     }
@@ -1,22 +1,31 @@
 package org.openconceptlab.fhir.provider;
 
 import ca.uhn.fhir.rest.annotation.*;
+import ca.uhn.fhir.rest.api.SummaryEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
 import ca.uhn.fhir.rest.server.IResourceProvider;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.openconceptlab.fhir.converter.ValueSetConverter;
 import org.openconceptlab.fhir.model.Collection;
 import org.openconceptlab.fhir.repository.CollectionRepository;
+import org.openconceptlab.fhir.util.DesignationFilter;
 import org.openconceptlab.fhir.util.OclFhirUtil;
 import static org.openconceptlab.fhir.util.OclFhirConstants.*;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
 
-import javax.transaction.Transactional;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.List;
+import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 import static org.openconceptlab.fhir.util.OclFhirUtil.*;
@@ -45,69 +54,131 @@ public class ValueSetResourceProvider implements IResourceProvider {
     }
 
     /**
-     * Returns all public {@link ValueSet}.
+     * Returns all public {@link ValueSet}. The compose is left out unless requested with _summary=false or _elements.
      *
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
-    public Bundle searchValueSets(RequestDetails details) {
+    @Transactional(readOnly = true)
+    public Bundle searchValueSets(SummaryEnum summary, @Elements Set<String> elements, RequestDetails details) {
         List<Collection> collections = filterHead(getCollections(publicAccess));
-        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections);
+        checkNotModified(collections, details);
+        boolean includeCompose = isElementRequested(summary, elements, COMPOSE, true);
+        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections, includeCompose);
         return OclFhirUtil.getBundle(valueSets, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
-     * Returns public {@link ValueSet} for a given Url.
+     * Returns public {@link ValueSet} for a given Url. The compose concepts are displayed in the displayLanguage,
+     * their designations are added with includeDesignations=true and can be restricted to the designation languages.
      * @param url
      * @param version
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
+    @Transactional(readOnly = true)
     public Bundle searchValueSetByUrl(@RequiredParam(name = ValueSet.SP_URL) StringType url,
                                       @OptionalParam(name = VERSION) StringType version,
+                                      @OptionalParam(name = DISP_LANG) StringType displayLanguage,
+                                      @OptionalParam(name = INCLUDE_DESIGNATIONS) StringType includeDesignations,
+                                      @OptionalParam(name = DESIGNATION) StringOrListParam designation,
+                                      SummaryEnum summary, @Elements Set<String> elements,
                                       RequestDetails details) {
         List<Collection> collections = filterHead(getCollectionByUrl(url, version, publicAccess));
-        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections);
+        checkNotModified(collections, details);
+        boolean includeCompose = isElementRequested(summary, elements, COMPOSE, isVersionAll(version));
+        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections, includeCompose,
+                getDesignationFilter(displayLanguage, includeDesignations, designation));
         return OclFhirUtil.getBundle(valueSets, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
-     * Returns all public {@link ValueSet} for a given owner.
+     * Returns all public {@link ValueSet} for a given owner. The compose is left out unless requested with
+     * _summary=false or _elements.
      * @param owner
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
+    @Transactional(readOnly = true)
     public Bundle searchValueSetByOwner(@RequiredParam(name = OWNER) StringType owner,
+                                        SummaryEnum summary, @Elements Set<String> elements,
                                         RequestDetails details) {
         List<Collection> collections = filterHead(getCollectionByOwner(owner, publicAccess));
-        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections);
+        checkNotModified(collections, details);
+        boolean includeCompose = isElementRequested(summary, elements, COMPOSE, true);
+        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections, includeCompose);
         return OclFhirUtil.getBundle(valueSets, details.getFhirServerBase(), details.getRequestPath());
     }
 
     /**
      * Returns public {@link ValueSet} for a given owner and Id. Returns given version if provided, otherwise
-     * most recent released version is returned.
+     * most recent released version is returned. The compose concepts are displayed in the displayLanguage, their
+     * designations are added with includeDesignations=true and can be restricted to the designation languages.
      * @param owner
      * @param id
      * @param version
      * @return {@link Bundle}
      */
     @Search
-    @Transactional
+    @Transactional(readOnly = true)
     public Bundle searchValueSetByOwnerAndId(@RequiredParam(name = OWNER) StringType owner,
                                                @RequiredParam(name = ID) StringType id,
                                                @OptionalParam(name = VERSION) StringType version,
+                                               @OptionalParam(name = DISP_LANG) StringType displayLanguage,
+                                               @OptionalParam(name = INCLUDE_DESIGNATIONS) StringType includeDesignations,
+                                               @OptionalParam(name = DESIGNATION) StringOrListParam designation,
+                                               SummaryEnum summary, @Elements Set<String> elements,
                                                RequestDetails details) {
         List<Collection> collections = filterHead(getCollectionByOwnerAndId(id, owner, version, publicAccess));
-        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections);
+        checkNotModified(collections, details);
+        boolean includeCompose = isElementRequested(summary, elements, COMPOSE, isVersionAll(version));
+        List<ValueSet> valueSets = valueSetConverter.convertToValueSet(collections, includeCompose,
+                getDesignationFilter(displayLanguage, includeDesignations, designation));
         return OclFhirUtil.getBundle(valueSets, details.getFhirServerBase(), details.getRequestPath());
     }
 
+    /**
+     * ValueSet $expand operation. The referenced concepts and the concepts matching the compose.include filters on
+     * concept class and datatype are returned page by page.
+     * GET request example:
+     * <HOST>/fhir/ValueSet/$expand?url=#&valueSetVersion=#&offset=#&count=#&activeOnly=#&filter=#
+     *
+     * @param url - (Optional) The url of the value set, either url or owner and id are required
+     * @param version - (Optional) The version of value set, most recent released version otherwise
+     * @param offset - (Optional) The first concept of the page, 0 by default
+     * @param count - (Optional) The page size, 100 by default and at most 1000
+     * @param activeOnly - (Optional) Leaves out inactive concepts
+     * @param filter - (Optional) Text the names of the concepts have to match
+     * @param owner - (Optional) The owner of the value set
+     * @param id - (Optional) The id of the value set
+     * @return ValueSet
+     */
+    @Operation(name = EXPAND, idempotent = true)
+    @Transactional(readOnly = true)
+    public ValueSet valueSetExpand(@OperationParam(name = URL, type = UriType.class) UriType url,
+                                   @OperationParam(name = VALUESET_VERSION, type = StringType.class) StringType version,
+                                   @OperationParam(name = OFFSET, type = IntegerType.class) IntegerType offset,
+                                   @OperationParam(name = COUNT, type = IntegerType.class) IntegerType count,
+                                   @OperationParam(name = ACTIVE_ONLY, type = BooleanType.class) BooleanType activeOnly,
+                                   @OperationParam(name = FILTER, type = StringType.class) StringType filter,
+                                   @OperationParam(name = OWNER, type = StringType.class) StringType owner,
+                                   @OperationParam(name = ID, type = StringType.class) StringType id) {
+        if (isVersionAll(version) || (!isValid(url) && (!isValid(owner) || !isValid(id))))
+            throw new InvalidRequestException(String.format("Could not perform ValueSet %s operation, a single " +
+                    "version and either %s or %s and %s parameters are required.", EXPAND, URL, OWNER, ID));
+        int pageOffset = offset != null && offset.getValue() != null ? offset.getValue() : 0;
+        int pageCount = count != null && count.getValue() != null ? count.getValue() : EXPANSION_DEFAULT_COUNT;
+        if (pageOffset < 0 || pageCount < 0 || pageCount > EXPANSION_MAX_COUNT)
+            throw new InvalidRequestException(String.format("The %s must not be negative and the %s must be between 0 " +
+                    "and %s.", OFFSET, COUNT, EXPANSION_MAX_COUNT));
+        Collection collection = isValid(url) ? getCollectionByUrl(newStringType(url), version, publicAccess).get(0)
+                : getCollectionByOwnerAndId(id, owner, version, publicAccess).get(0);
+        return valueSetConverter.expand(collection, pageOffset, pageCount,
+                activeOnly != null && activeOnly.booleanValue(), isValid(filter) ? filter.getValue() : null);
+    }
+
     private List<Collection> getCollections(List<String> access) {
-        return collectionRepository.findByPublicAccessIn(access).parallelStream().filter(Collection::getIsLatestVersion)
+        return collectionRepository.findByPublicAccessIn(access).stream().filter(Collection::getIsLatestVersion)
                 .collect(Collectors.toList());
     }
 
@@ -141,7 +212,7 @@ public class ValueSetResourceProvider implements IResourceProvider {
         } else {
             collections.addAll(collectionRepository.findByUserIdUsernameAndPublicAccessIn(value, access));
         }
-        return collections.parallelStream().filter(Collection::getIsLatestVersion).collect(Collectors.toList());
+        return collections.stream().filter(Collection::getIsLatestVersion).collect(Collectors.toList());
     }
 
     private List<Collection> getCollectionByOwnerAndId(StringType id, StringType owner, StringType version, List<String> access) {
@@ -195,6 +266,23 @@ public class ValueSetResourceProvider implements IResourceProvider {
         );
     }
 
+    private void checkNotModified(List<Collection> collections, RequestDetails details) {
+        List<String> versionIds = collections.stream().map(c -> getVersionId(c.getId(), getLastUpdated(c)))
+                .collect(Collectors.toList());
+        Date lastModified = collections.stream().map(OclFhirUtil::getLastUpdated).filter(Objects::nonNull)
+                .max(Comparator.naturalOrder()).orElse(null);
+        OclFhirUtil.checkNotModified(details, getETag(versionIds), lastModified);
+    }
+
+    private DesignationFilter getDesignationFilter(StringType displayLanguage, StringType includeDesignations,
+                                                   StringOrListParam designation) {
+        // designations of the compose concepts are only included on request
+        return DesignationFilter.of(isValid(includeDesignations) && Boolean.parseBoolean(includeDesignations.getValue()),
+                isValid(displayLanguage) ? displayLanguage.getValue() : null, designation == null ? null
+                        : designation.getValuesAsQueryTokens().stream().map(StringParam::getValue)
+                        .collect(Collectors.toList()));
+    }
+
     private List<Collection> filterHead(List<Collection> collections) {
         return collections.stream().filter(s -> !HEAD.equals(s.getVersion())).collect(Collectors.toList());
     }
@@ -2,12 +2,348 @@ package org.openconceptlab.fhir.repository;
 
 import org.openconceptlab.fhir.model.Concept;
 import org.openconceptlab.fhir.model.LocalizedText;
+import org.openconceptlab.fhir.util.ConceptFilter;
+import org.openconceptlab.fhir.util.DesignationFilter;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import javax.persistence.QueryHint;
+import java.sql.Timestamp;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
 /**
  * The ConceptRepository.
  * @author harpatel1
  */
 @Repository
 public interface ConceptRepository extends BaseOclRepository<Concept>{
+
+    /**
+     * Most recent concept version of every mnemonic in a source.
+     */
+    String LATEST_CONCEPTS = "select distinct on (c.mnemonic) c.mnemonic, c.id, c.retired, c.created_at, c.updated_at " +
+            "from concepts c join concepts_sources cs on cs.concept_id = c.id where cs.source_id = ";
+    String LATEST_CONCEPTS_ORDER = " order by c.mnemonic, c.id desc";
+    String LATEST_CONCEPTS_OF_SOURCE = LATEST_CONCEPTS + ":sourceId" + LATEST_CONCEPTS_ORDER;
+    String LATEST_CONCEPTS_OF_FROM_SOURCE = LATEST_CONCEPTS + ":fromSourceId" + LATEST_CONCEPTS_ORDER;
+
+    String FILTERED_LATEST_CONCEPTS = " from (" + LATEST_CONCEPTS_OF_SOURCE + ") t join concepts c on c.id = t.id " +
+            "where (:anyConceptClass = true or c.concept_class in (:conceptClasses)) " +
+            "and (:excludeConceptClass = false or c.concept_class not in (:excludedConceptClasses)) " +
+            "and (:anyDatatype = true or c.datatype in (:datatypes)) " +
+            "and (:excludeDatatype = false or c.datatype not in (:excludedDatatypes)) " +
+            "and (:anyInactive = true or c.is_active <> :inactive) " +
+            "and (:anyConceptId = true or c.id = any(cast(:conceptIds as bigint[]))) " +
+            "and (:excludeConceptId = false or c.id <> all(cast(:excludedConceptIds as bigint[]))) " +
+            "and not exists (select 1 from collections_concepts cc where cc.collection_id = :excludedCollectionId " +
+            "and cc.concept_id = c.id)";
+
+    String COLLECTION_CONCEPTS = " from concepts c join collections_concepts cc on cc.concept_id = c.id " +
+            "where cc.collection_id = :collectionId and (:activeOnly = false or c.is_active = true) " +
+            "and (:text = '' or exists (select 1 from concepts_names cn join localized_texts lt on lt.id = cn.localizedtext_id " +
+            "where cn.concept_id = c.id and lower(lt.name) like :text) or lower(c.mnemonic) like :text)";
+
+    String FETCH_SIZE = "org.hibernate.fetchSize";
+
+    /**
+     * A name or description of a concept.
+     */
+    interface ConceptText {
+        Long getConceptId();
+        String getMnemonic();
+        Timestamp getUpdatedAt();
+        Boolean getDescription();
+        Boolean getRetired();
+        String getName();
+        String getLocale();
+        Boolean getLocalePreferred();
+        String getType();
+    }
+
+    /**
+     * A name of a concept.
+     */
+    interface ConceptName {
+        Long getConceptId();
+        String getName();
+        String getLocale();
+        Boolean getLocalePreferred();
+        String getType();
+    }
+
+    /**
+     * The code of the most recent version of a concept.
+     */
+    interface ConceptCode {
+        String getMnemonic();
+        Long getConceptId();
+    }
+
+    /**
+     * A name of the most recent version of a concept, or the concept alone if it has no name.
+     */
+    interface ConceptRecord {
+        Long getConceptId();
+        String getMnemonic();
+        Boolean getRetired();
+        String getName();
+        String getLocale();
+        Boolean getLocalePreferred();
+        String getType();
+    }
+
+    /**
+     * A concept which differs between two states of a source.
+     */
+    interface ConceptChange {
+        String getMnemonic();
+        Long getConceptId();
+        String getChangeType();
+    }
+
+    @Query(value = "select count(distinct c.mnemonic) from concepts c join concepts_sources cs on cs.concept_id = c.id " +
+            "where cs.source_id = :sourceId", nativeQuery = true)
+    long countDistinctMnemonicBySourceId(@Param("sourceId") Long sourceId);
+
+    /**
+     * Codes of the most recent concept versions of the source which are not retired.
+     */
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "5000"))
+    @Query(value = "select t.mnemonic as mnemonic, t.id as conceptId from (" + LATEST_CONCEPTS_OF_SOURCE + ") t " +
+            "where not coalesce(t.retired, false)", nativeQuery = true)
+    Stream<ConceptCode> streamCodesBySourceId(@Param("sourceId") Long sourceId);
+
+    /**
+     * Most recent versions of all concepts of the source with their names, including retired concepts.
+     */
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "5000"))
+    @Query(value = "select t.id as conceptId, t.mnemonic as mnemonic, coalesce(t.retired, false) as retired, " +
+            "lt.name as name, lt.locale as locale, lt.locale_preferred as localePreferred, lt.type as type from (" +
+            LATEST_CONCEPTS_OF_SOURCE + ") t left join concepts_names cn on cn.concept_id = t.id " +
+            "left join localized_texts lt on lt.id = cn.localizedtext_id order by t.id, cn.id", nativeQuery = true)
+    Stream<ConceptRecord> streamRecordsBySourceId(@Param("sourceId") Long sourceId);
+
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "5000"))
+    @Query(value = "select distinct c.mnemonic from concepts c join concepts_sources cs on cs.concept_id = c.id " +
+            "where cs.source_id = :sourceId", nativeQuery = true)
+    Stream<String> streamMnemonicsBySourceId(@Param("sourceId") Long sourceId);
+
+    @Query(value = "select c.* from concepts c join concepts_sources cs on cs.concept_id = c.id " +
+            "where cs.source_id = :sourceId and c.mnemonic = :mnemonic order by c.id desc limit 1", nativeQuery = true)
+    Concept findLatestBySourceIdAndMnemonic(@Param("sourceId") Long sourceId, @Param("mnemonic") String mnemonic);
+
+    Optional<Concept> findFirstById(Long id);
+
+    List<Concept> findByIdIn(Collection<Long> ids);
+
+    @Query(value = "select cs.concept_id from concepts_sources cs where cs.source_id = :sourceId", nativeQuery = true)
+    List<Long> findIdsBySourceId(@Param("sourceId") Long sourceId);
+
+    int NAMES_CHUNK_SIZE = 1000;
+
+    /**
+     * Names of the given concepts matching the designation filter, grouped by concept. The concepts are queried in
+     * chunks to keep the number of bound parameters low, no name is loaded if designations are not included.
+     */
+    default Map<Long, List<ConceptName>> findNamesByConceptIdIn(Collection<Long> conceptIds, DesignationFilter filter) {
+        Map<Long, List<ConceptName>> names = new HashMap<>();
+        if (!filter.isIncluded() || conceptIds.isEmpty()) return names;
+        List<Long> ids = new ArrayList<>(conceptIds);
+        for (int i = 0; i < ids.size(); i += NAMES_CHUNK_SIZE) {
+            findNamesByConceptIdIn(ids.subList(i, Math.min(i + NAMES_CHUNK_SIZE, ids.size())), filter.isAnyLanguage(),
+                    filter.getLanguages()).forEach(name ->
+                    names.computeIfAbsent(name.getConceptId(), id -> new ArrayList<>()).add(name));
+        }
+        return names;
+    }
+
+    /**
+     * Names of the given concepts in the given locales only, in the order they were added.
+     */
+    @Query(value = "select cn.concept_id as conceptId, lt.name as name, lt.locale as locale, " +
+            "lt.locale_preferred as localePreferred, lt.type as type from concepts_names cn " +
+            "join localized_texts lt on lt.id = cn.localizedtext_id where cn.concept_id in (:conceptIds) " +
+            "and (:anyLocale = true or lt.locale in (:locales)) order by cn.concept_id, cn.id", nativeQuery = true)
+    List<ConceptName> findNamesByConceptIdIn(@Param("conceptIds") Collection<Long> conceptIds,
+                                             @Param("anyLocale") boolean anyLocale,
+                                             @Param("locales") List<String> locales);
+
+    /**
+     * Names of the given concepts a display in the given locales is resolved from, grouped by concept. The concepts are
+     * queried in chunks like their designations.
+     */
+    default Map<Long, List<ConceptName>> findDisplayNamesByConceptIdIn(Collection<Long> conceptIds,
+                                                                        Collection<String> locales) {
+        Map<Long, List<ConceptName>> names = new HashMap<>();
+        if (conceptIds.isEmpty()) return names;
+        List<Long> ids = new ArrayList<>(conceptIds);
+        String localeList = locales.stream().filter(Objects::nonNull).collect(Collectors.joining(","));
+        for (int i = 0; i < ids.size(); i += NAMES_CHUNK_SIZE) {
+            findDisplayNamesByConceptIdIn(ids.subList(i, Math.min(i + NAMES_CHUNK_SIZE, ids.size())), localeList)
+                    .forEach(name -> names.computeIfAbsent(name.getConceptId(), id -> new ArrayList<>()).add(name));
+        }
+        return names;
+    }
+
+    /**
+     * Names of the given concepts in the locales of the comma separated list or in locales the list contains, with the
+     * first preferred name and the first name of every concept, in the order they were added.
+     */
+    @Query(value = "select x.conceptId as conceptId, x.name as name, x.locale as locale, " +
+            "x.localePreferred as localePreferred, x.type as type from (select cn.concept_id as conceptId, " +
+            "cn.id as nameId, lt.name as name, lt.locale as locale, lt.locale_preferred as localePreferred, " +
+            "lt.type as type, row_number() over (partition by cn.concept_id order by cn.id) as position, " +
+            "row_number() over (partition by cn.concept_id, coalesce(lt.locale_preferred, false) order by cn.id) " +
+            "as preferredPosition from concepts_names cn join localized_texts lt on lt.id = cn.localizedtext_id " +
+            "where cn.concept_id in (:conceptIds)) x where strpos(:locales, x.locale) > 0 or x.position = 1 " +
+            "or (coalesce(x.localePreferred, false) and x.preferredPosition = 1) order by x.conceptId, x.nameId",
+            nativeQuery = true)
+    List<ConceptName> findDisplayNamesByConceptIdIn(@Param("conceptIds") Collection<Long> conceptIds,
+                                                    @Param("locales") String locales);
+
+    /**
+     * Loads the descriptions of the given concepts of the persistence context, in chunks rather than concept by
+     * concept.
+     */
+    default void loadDescriptionsByIdIn(Collection<Long> conceptIds) {
+        List<Long> ids = new ArrayList<>(conceptIds);
+        for (int i = 0; i < ids.size(); i += NAMES_CHUNK_SIZE)
+            fetchDescriptionsByIdIn(ids.subList(i, Math.min(i + NAMES_CHUNK_SIZE, ids.size())));
+    }
+
+    @Query("select distinct c from Concept c left join fetch c.conceptsDescriptions d " +
+            "left join fetch d.localizedtext where c.id in (:conceptIds)")
+    List<Concept> fetchDescriptionsByIdIn(@Param("conceptIds") Collection<Long> conceptIds);
+
+    /**
+     * Names and descriptions of the most recent concept versions of the source created or updated after the given
+     * time, ordered by concept. Retired concepts are returned too, flagged as retired.
+     */
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "1000"))
+    @Query(value = "select t.id as conceptId, t.mnemonic as mnemonic, greatest(t.created_at, t.updated_at) as updatedAt, " +
+            "x.description as description, coalesce(t.retired, false) as retired, lt.name as name, lt.locale as locale, lt.locale_preferred as localePreferred, " +
+            "lt.type as type " +
+            "from (" + LATEST_CONCEPTS_OF_SOURCE + ") t " +
+            "left join (select concept_id, localizedtext_id, false as description from concepts_names " +
+            "union all select concept_id, localizedtext_id, true as description from concepts_descriptions) x " +
+            "on x.concept_id = t.id left join localized_texts lt on lt.id = x.localizedtext_id " +
+            "where greatest(t.created_at, t.updated_at) > :since order by t.id", nativeQuery = true)
+    Stream<ConceptText> streamTextsSince(@Param("sourceId") Long sourceId, @Param("since") Timestamp since);
+
+    /**
+     * Names of the most recent concept versions of the source which are not retired.
+     */
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "1000"))
+    @Query(value = "select t.id as conceptId, t.mnemonic as mnemonic, greatest(t.created_at, t.updated_at) as updatedAt, " +
+            "false as description, false as retired, lt.name as name, lt.locale as locale, lt.locale_preferred as localePreferred, " +
+            "lt.type as type from (" + LATEST_CONCEPTS_OF_SOURCE + ") t " +
+            "join concepts_names cn on cn.concept_id = t.id join localized_texts lt on lt.id = cn.localizedtext_id " +
+            "where not coalesce(t.retired, false)", nativeQuery = true)
+    Stream<ConceptText> streamNamesBySourceId(@Param("sourceId") Long sourceId);
+
+    /**
+     * Concepts of the source created, updated or retired after the given time. A concept is added if none of its
+     * versions in the source existed before that time.
+     */
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "500"))
+    @Query(value = "select t.mnemonic as mnemonic, t.id as conceptId, " +
+            "case when coalesce(t.retired, false) then 'removed' " +
+            "when not exists (select 1 from concepts c2 join concepts_sources cs2 on cs2.concept_id = c2.id " +
+            "where cs2.source_id = :sourceId and c2.mnemonic = t.mnemonic and c2.created_at <= :since) then 'added' " +
+            "else 'changed' end as changeType " +
+            "from (" + LATEST_CONCEPTS_OF_SOURCE + ") t where t.updated_at > :since or t.created_at > :since " +
+            "order by t.mnemonic", nativeQuery = true)
+    Stream<ConceptChange> streamChangesSince(@Param("sourceId") Long sourceId, @Param("since") Timestamp since);
+
+    /**
+     * Concepts whose most recent version differs between the two sources, as the full outer join of both sets of
+     * latest versions.
+     */
+    @QueryHints(@QueryHint(name = FETCH_SIZE, value = "500"))
+    @Query(value = "select coalesce(t.mnemonic, f.mnemonic) as mnemonic, coalesce(t.id, f.id) as conceptId, " +
+            "case when f.id is null then 'added' when t.id is null then 'removed' else 'changed' end as changeType " +
+            "from (" + LATEST_CONCEPTS_OF_SOURCE + ") t full outer join (" + LATEST_CONCEPTS_OF_FROM_SOURCE + ") f " +
+            "on t.mnemonic = f.mnemonic where t.id is distinct from f.id order by 1", nativeQuery = true)
+    Stream<ConceptChange> streamChangesBetween(@Param("sourceId") Long sourceId, @Param("fromSourceId") Long fromSourceId);
+
+    /**
+     * Page of the most recent concept versions of the source matching the filter, ordered by mnemonic.
+     */
+    default List<Concept> findLatestBySourceId(Long sourceId, ConceptFilter filter, int offset, int count) {
+        return findLatestBySourceId(sourceId, filter.isAnyConceptClass(), filter.getConceptClasses(),
+                filter.isExcludeConceptClass(), filter.getExcludedConceptClasses(), filter.isAnyDatatype(),
+                filter.getDatatypes(), filter.isExcludeDatatype(), filter.getExcludedDatatypes(), filter.isAnyInactive(),
+                filter.isInactive(), filter.isAnyConceptId(), toArray(filter.getConceptIds()),
+                filter.isExcludeConceptId(), toArray(filter.getExcludedConceptIds()), filter.getExcludedCollectionId(),
+                offset, count);
+    }
+
+    default long countLatestBySourceId(Long sourceId, ConceptFilter filter) {
+        return countLatestBySourceId(sourceId, filter.isAnyConceptClass(), filter.getConceptClasses(),
+                filter.isExcludeConceptClass(), filter.getExcludedConceptClasses(), filter.isAnyDatatype(),
+                filter.getDatatypes(), filter.isExcludeDatatype(), filter.getExcludedDatatypes(), filter.isAnyInactive(),
+                filter.isInactive(), filter.isAnyConceptId(), toArray(filter.getConceptIds()),
+                filter.isExcludeConceptId(), toArray(filter.getExcludedConceptIds()), filter.getExcludedCollectionId());
+    }
+
+    /**
+     * Formats the ids as a postgres array literal. The ids of a filter are bound as a single array parameter since a
+     * list is bound as one parameter per element, of which there can be at most 32767 in a statement.
+     */
+    static String toArray(Collection<Long> ids) {
+        StringJoiner array = new StringJoiner(",", "{", "}");
+        ids.forEach(id -> array.add(id.toString()));
+        return array.toString();
+    }
+
+    @Query(value = "select c.*" + FILTERED_LATEST_CONCEPTS + " order by c.mnemonic limit :count offset :offset",
+            nativeQuery = true)
+    List<Concept> findLatestBySourceId(@Param("sourceId") Long sourceId,
+                                       @Param("anyConceptClass") boolean anyConceptClass,
+                                       @Param("conceptClasses") List<String> conceptClasses,
+                                       @Param("excludeConceptClass") boolean excludeConceptClass,
+                                       @Param("excludedConceptClasses") List<String> excludedConceptClasses,
+                                       @Param("anyDatatype") boolean anyDatatype,
+                                       @Param("datatypes") List<String> datatypes,
+                                       @Param("excludeDatatype") boolean excludeDatatype,
+                                       @Param("excludedDatatypes") List<String> excludedDatatypes,
+                                       @Param("anyInactive") boolean anyInactive,
+                                       @Param("inactive") boolean inactive,
+                                       @Param("anyConceptId") boolean anyConceptId,
+                                       @Param("conceptIds") String conceptIds,
+                                       @Param("excludeConceptId") boolean excludeConceptId,
+                                       @Param("excludedConceptIds") String excludedConceptIds,
+                                       @Param("excludedCollectionId") Long excludedCollectionId,
+                                       @Param("offset") int offset, @Param("count") int count);
+
+    @Query(value = "select count(*)" + FILTERED_LATEST_CONCEPTS, nativeQuery = true)
+    long countLatestBySourceId(@Param("sourceId") Long sourceId,
+                               @Param("anyConceptClass") boolean anyConceptClass,
+                               @Param("conceptClasses") List<String> conceptClasses,
+                               @Param("excludeConceptClass") boolean excludeConceptClass,
+                               @Param("excludedConceptClasses") List<String> excludedConceptClasses,
+                               @Param("anyDatatype") boolean anyDatatype,
+                               @Param("datatypes") List<String> datatypes,
+                               @Param("excludeDatatype") boolean excludeDatatype,
+                               @Param("excludedDatatypes") List<String> excludedDatatypes,
+                               @Param("anyInactive") boolean anyInactive,
+                               @Param("inactive") boolean inactive,
+                               @Param("anyConceptId") boolean anyConceptId,
+                               @Param("conceptIds") String conceptIds,
+                               @Param("excludeConceptId") boolean excludeConceptId,
+                               @Param("excludedConceptIds") String excludedConceptIds,
+                               @Param("excludedCollectionId") Long excludedCollectionId);
+
+    @Query(value = "select c.*" + COLLECTION_CONCEPTS + " order by c.mnemonic, c.id limit :count offset :offset",
+            nativeQuery = true)
+    List<Concept> findByCollectionId(@Param("collectionId") Long collectionId, @Param("activeOnly") boolean activeOnly,
+                                     @Param("text") String text, @Param("offset") int offset, @Param("count") int count);
+
+    @Query(value = "select count(*)" + COLLECTION_CONCEPTS, nativeQuery = true)
+    long countByCollectionId(@Param("collectionId") Long collectionId, @Param("activeOnly") boolean activeOnly,
+                             @Param("text") String text);
 }
@@ -1,12 +1,34 @@
 package org.openconceptlab.fhir.repository;
 
 import org.openconceptlab.fhir.model.Mapping;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * The MappingRepository.
  * @author harpatel1
  */
 @Repository
 public interface MappingRepository extends BaseOclRepository<Mapping>{
+
+    /**
+     * A mapping between two concepts of the same source.
+     */
+    interface ConceptLink {
+        String getFromCode();
+        String getToCode();
+        String getMapType();
+    }
+
+    @Query(value = "select distinct fc.mnemonic as fromCode, tc.mnemonic as toCode, m.map_type as mapType " +
+            "from mappings m join mappings_sources ms on ms.mapping_id = m.id " +
+            "join concepts fc on fc.id = m.from_concept_id join concepts tc on tc.id = m.to_concept_id " +
+            "where ms.source_id = :sourceId and not coalesce(m.retired, false) and m.map_type in (:mapTypes) " +
+            "and tc.parent_id = fc.parent_id", nativeQuery = true)
+    List<ConceptLink> findLinksBySourceId(@Param("sourceId") Long sourceId,
+                                          @Param("mapTypes") Collection<String> mapTypes);
 }
@@ -0,0 +1,82 @@
+package org.openconceptlab.fhir.util;
+
+import org.openconceptlab.fhir.model.ConceptsName;
+import org.openconceptlab.fhir.model.LocalizedText;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+
+import java.util.*;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.EMPTY;
+
+/**
+ * The ConceptDisplay. The display names of a concept resolved once, the best name of every locale (the first
+ * preferred name, otherwise the first name), the first preferred name of any locale and the first name. Resolving the
+ * display for a locale is then a map lookup.
+ * @author agent
+ */
+public class ConceptDisplay {
+
+    private final Map<String, String> byLocale = new LinkedHashMap<>();
+    private final Set<String> preferredLocales = new HashSet<>();
+    private String anyPreferred;
+    private String first;
+
+    public static ConceptDisplay of(List<ConceptsName> names) {
+        ConceptDisplay display = new ConceptDisplay();
+        for (ConceptsName name : names) {
+            LocalizedText text = name.getLocalizedText();
+            if (text != null) display.add(text.getName(), text.getLocale(), text.getLocalePreferred());
+        }
+        return display;
+    }
+
+    /**
+     * Returns the display resolved from the given name rows, in the order the names were added to the concept.
+     */
+    public static ConceptDisplay ofNames(List<ConceptRepository.ConceptName> names) {
+        ConceptDisplay display = new ConceptDisplay();
+        names.forEach(name -> display.add(name.getName(), name.getLocale(), name.getLocalePreferred()));
+        return display;
+    }
+
+    private void add(String name, String locale, Boolean localePreferred) {
+        boolean preferred = Boolean.TRUE.equals(localePreferred);
+        if (first == null) first = name;
+        if (preferred && anyPreferred == null) anyPreferred = name;
+        if (locale == null) return;
+        if (!byLocale.containsKey(locale) || (preferred && !preferredLocales.contains(locale))) {
+            byLocale.put(locale, name);
+            if (preferred) preferredLocales.add(locale);
+        }
+    }
+
+    /**
+     * Returns the display of a source with the given default locale, preferring the default locale, then the locales
+     * the default locale contains, then any preferred name and finally the first name.
+     */
+    public String getDisplay(String defaultLocale) {
+        if (defaultLocale != null) {
+            String display = byLocale.get(defaultLocale);
+            if (display != null) return display;
+            String supported = null;
+            for (Map.Entry<String, String> entry : byLocale.entrySet()) {
+                if (!defaultLocale.contains(entry.getKey())) continue;
+                if (preferredLocales.contains(entry.getKey())) return entry.getValue();
+                if (supported == null) supported = entry.getValue();
+            }
+            if (supported != null) return supported;
+        }
+        if (anyPreferred != null) return anyPreferred;
+        return first == null ? EMPTY : first;
+    }
+
+    /**
+     * Returns the display in the requested language, otherwise the display of a source with the given default locale,
+     * empty if the concept has no name.
+     */
+    public Optional<String> getDisplay(String displayLanguage, String defaultLocale) {
+        if (displayLanguage != null && byLocale.containsKey(displayLanguage))
+            return Optional.of(byLocale.get(displayLanguage));
+        return first == null ? Optional.empty() : Optional.of(getDisplay(defaultLocale));
+    }
+}
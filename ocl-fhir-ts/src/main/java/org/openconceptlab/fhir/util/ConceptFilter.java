@@ -0,0 +1,186 @@
+package org.openconceptlab.fhir.util;
+
+import org.hl7.fhir.r4.model.ValueSet;
+
+import java.util.*;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.*;
+
+/**
+ * The ConceptFilter. Concept class, datatype, inactive and concept id restrictions of a concept query. Inclusive
+ * operators (is-a, in) of the same property are intersected, exclusive operators (is-not-a, not-in) are combined. A
+ * filter whose inclusive values do not intersect matches no concept.
+ * @author agent
+ */
+public class ConceptFilter {
+
+    // native queries can not bind an empty list, unused lists hold a value which is never compared
+    private static final List<String> UNUSED = Collections.singletonList(EMPTY);
+    private static final Long UNUSED_ID = -1L;
+    private static final List<Long> UNUSED_IDS = Collections.singletonList(UNUSED_ID);
+
+    private Set<String> conceptClasses;
+    private Set<String> datatypes;
+    private final Set<String> excludedConceptClasses = new HashSet<>();
+    private final Set<String> excludedDatatypes = new HashSet<>();
+    private Boolean inactive;
+    private Set<Long> conceptIds;
+    private final Set<Long> excludedConceptIds = new HashSet<>();
+    private Long excludedCollectionId;
+
+    /**
+     * Creates a filter from the compose.include.filter components, filters on other properties are ignored.
+     */
+    public static ConceptFilter of(List<ValueSet.ConceptSetFilterComponent> filters) {
+        ConceptFilter filter = new ConceptFilter();
+        for (ValueSet.ConceptSetFilterComponent component : filters) {
+            if (!component.hasProperty() || !component.hasOp() || !component.hasValue()) continue;
+            List<String> values = Arrays.asList(component.getValue().split("\\s*,\\s*"));
+            switch (component.getOp()) {
+                case ISA:
+                case IN:
+                    filter.include(component.getProperty(), values);
+                    break;
+                case ISNOTA:
+                case NOTIN:
+                    filter.exclude(component.getProperty(), values);
+                    break;
+                default:
+            }
+        }
+        return filter;
+    }
+
+    public ConceptFilter include(String property, Collection<String> values) {
+        if (CONCEPT_CLASS.equals(property)) {
+            conceptClasses = intersect(conceptClasses, values);
+        } else if (DATATYPE.equals(property)) {
+            datatypes = intersect(datatypes, values);
+        }
+        return this;
+    }
+
+    public ConceptFilter exclude(String property, Collection<String> values) {
+        if (CONCEPT_CLASS.equals(property)) {
+            excludedConceptClasses.addAll(values);
+        } else if (DATATYPE.equals(property)) {
+            excludedDatatypes.addAll(values);
+        }
+        return this;
+    }
+
+    public ConceptFilter inactive(Boolean inactive) {
+        this.inactive = inactive;
+        return this;
+    }
+
+    /**
+     * Restricts the query to the given concepts, e.g. the matches of a text search. Restricting it again keeps the
+     * concepts in both.
+     */
+    public ConceptFilter conceptIds(Collection<Long> ids) {
+        Set<Long> result = new HashSet<>(ids);
+        if (conceptIds != null) result.retainAll(conceptIds);
+        this.conceptIds = result;
+        return this;
+    }
+
+    public ConceptFilter excludeConceptIds(Collection<Long> ids) {
+        excludedConceptIds.addAll(ids);
+        return this;
+    }
+
+    /**
+     * Leaves out the concepts referenced by the collection, e.g. since they are already part of an expansion.
+     */
+    public ConceptFilter excludeCollection(Long collectionId) {
+        this.excludedCollectionId = collectionId;
+        return this;
+    }
+
+    /**
+     * Returns true if any restriction is set.
+     */
+    public boolean isRestricted() {
+        return !isAnyConceptClass() || isExcludeConceptClass() || !isAnyDatatype() || isExcludeDatatype()
+                || !isAnyInactive() || !isAnyConceptId() || isExcludeConceptId();
+    }
+
+    /**
+     * Returns true if the inclusive values leave nothing to match.
+     */
+    public boolean isEmpty() {
+        return (conceptClasses != null && conceptClasses.isEmpty()) || (datatypes != null && datatypes.isEmpty())
+                || (conceptIds != null && conceptIds.isEmpty());
+    }
+
+    public boolean isAnyConceptClass() {
+        return conceptClasses == null;
+    }
+
+    public List<String> getConceptClasses() {
+        return values(conceptClasses);
+    }
+
+    public boolean isExcludeConceptClass() {
+        return !excludedConceptClasses.isEmpty();
+    }
+
+    public List<String> getExcludedConceptClasses() {
+        return values(excludedConceptClasses);
+    }
+
+    public boolean isAnyDatatype() {
+        return datatypes == null;
+    }
+
+    public List<String> getDatatypes() {
+        return values(datatypes);
+    }
+
+    public boolean isExcludeDatatype() {
+        return !excludedDatatypes.isEmpty();
+    }
+
+    public List<String> getExcludedDatatypes() {
+        return values(excludedDatatypes);
+    }
+
+    public boolean isAnyInactive() {
+        return inactive == null;
+    }
+
+    public boolean isInactive() {
+        return Boolean.TRUE.equals(inactive);
+    }
+
+    public boolean isAnyConceptId() {
+        return conceptIds == null;
+    }
+
+    public List<Long> getConceptIds() {
+        return conceptIds == null || conceptIds.isEmpty() ? UNUSED_IDS : new ArrayList<>(conceptIds);
+    }
+
+    public boolean isExcludeConceptId() {
+        return !excludedConceptIds.isEmpty();
+    }
+
+    public List<Long> getExcludedConceptIds() {
+        return excludedConceptIds.isEmpty() ? UNUSED_IDS : new ArrayList<>(excludedConceptIds);
+    }
+
+    public Long getExcludedCollectionId() {
+        return excludedCollectionId == null ? UNUSED_ID : excludedCollectionId;
+    }
+
+    private static Set<String> intersect(Set<String> current, Collection<String> values) {
+        Set<String> result = new HashSet<>(values);
+        if (current != null) result.retainAll(current);
+        return result;
+    }
+
+    private static List<String> values(Set<String> values) {
+        return values == null || values.isEmpty() ? UNUSED : new ArrayList<>(values);
+    }
+}
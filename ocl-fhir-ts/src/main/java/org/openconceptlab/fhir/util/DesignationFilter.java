@@ -0,0 +1,75 @@
+package org.openconceptlab.fhir.util;
+
+import java.util.*;
+
+import static org.openconceptlab.fhir.util.OclFhirConstants.EMPTY;
+
+/**
+ * The DesignationFilter. Which concept names are rendered as designations and in which language the display is
+ * resolved. Designations can be left out altogether or restricted to a list of languages, which defaults to the display
+ * language when one is requested.
+ * @author agent
+ */
+public class DesignationFilter {
+
+    // native queries can not bind an empty list, unused lists hold a value which is never compared
+    private static final List<String> UNUSED = Collections.singletonList(EMPTY);
+
+    private final boolean included;
+    private final String displayLanguage;
+    private final Set<String> languages;
+
+    private DesignationFilter(boolean included, String displayLanguage, Set<String> languages) {
+        this.included = included;
+        this.displayLanguage = displayLanguage;
+        this.languages = languages;
+    }
+
+    /**
+     * All designations, the display in the default locale of the source.
+     */
+    public static DesignationFilter all() {
+        return new DesignationFilter(true, null, null);
+    }
+
+    public static DesignationFilter of(Boolean includeDesignations, String displayLanguage, Collection<String> languages) {
+        String language = displayLanguage == null || displayLanguage.isEmpty() ? null : displayLanguage;
+        Set<String> restriction = null;
+        if (languages != null && !languages.isEmpty()) {
+            restriction = new HashSet<>(languages);
+        } else if (language != null) {
+            restriction = Collections.singleton(language);
+        }
+        return new DesignationFilter(!Boolean.FALSE.equals(includeDesignations), language, restriction);
+    }
+
+    public boolean isIncluded() {
+        return included;
+    }
+
+    public String getDisplayLanguage() {
+        return displayLanguage;
+    }
+
+    public boolean isAnyLanguage() {
+        return languages == null;
+    }
+
+    public List<String> getLanguages() {
+        return languages == null || languages.isEmpty() ? UNUSED : new ArrayList<>(languages);
+    }
+
+    /**
+     * Returns the display of the concept in the display language if requested, otherwise in the default locale.
+     */
+    public String getDisplay(ConceptDisplay display, String defaultLocale) {
+        if (displayLanguage == null) return display.getDisplay(defaultLocale);
+        return display.getDisplay(displayLanguage, defaultLocale).orElse(null);
+    }
+
+    @Override
+    public String toString() {
+        return included + ":" + (displayLanguage == null ? EMPTY : displayLanguage) + ":"
+                + (languages == null ? "*" : new TreeSet<>(languages));
+    }
+}
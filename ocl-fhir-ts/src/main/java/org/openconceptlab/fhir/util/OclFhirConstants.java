@@ -33,9 +33,57 @@ public final class OclFhirConstants {
 	public static final String URL = "url";
 	public static final String VALIDATE_CODE = "$validate-code";
 	public static final String DESIGNATION = "designation";
+	public static final String INCLUDE_DESIGNATIONS = "includeDesignations";
 	public static final String RESULT = "result";
 	public static final String MESSAGE = "message";
 	public static final String CODING = "coding";
+	public static final String CODESYSTEM = "CodeSystem";
+	public static final String VALUESET = "ValueSet";
+	public static final String EXPORT = "$export";
+	public static final String EXPORT_STATUS = "$export-poll-status";
+	public static final String EXPORT_FILE = "$export-file";
+	public static final int EXPORT_RETRY_AFTER = 60;
+	public static final String TYPE = "_type";
+	public static final String NDJSON = ".ndjson";
+	public static final String FHIR_NDJSON = "application/fhir+ndjson";
+	public static final String PRETTY = "_pretty";
+	public static final String GZIP = "gzip";
+	public static final String COMPOSE = "compose";
+	public static final String CONCEPT = "concept";
+	public static final String DEFINITION = "definition";
+	public static final String CHANGES = "$changes";
+	public static final String SINCE = "since";
+	public static final String FROM_VERSION = "fromVersion";
+	public static final String CHANGE_TYPE = "changeType";
+	public static final String DESC_CHANGE_TYPE = "Type of change of the concept: added, changed or removed";
+	public static final String EXPAND = "$expand";
+	public static final String VALUESET_VERSION = "valueSetVersion";
+	public static final String OFFSET = "offset";
+	public static final String COUNT = "count";
+	public static final String ACTIVE_ONLY = "activeOnly";
+	public static final String FILTER = "filter";
+	public static final String SEARCH = "$search";
+	public static final String TEXT = "text";
+	public static final String TYPEAHEAD = "$typeahead";
+	public static final String SUGGEST = "suggest";
+	public static final String SUGGESTION = "suggestion";
+	public static final String SIMILARITY = "similarity";
+	public static final int SUGGESTION_COUNT = 5;
+	public static final String SUBSUMES = "$subsumes";
+	public static final String CODE_A = "codeA";
+	public static final String CODE_B = "codeB";
+	public static final String CODING_A = "codingA";
+	public static final String CODING_B = "codingB";
+	public static final String OUTCOME = "outcome";
+	public static final int SEARCH_DEFAULT_COUNT = 20;
+	public static final int TYPEAHEAD_DEFAULT_COUNT = 10;
+	public static final int TYPEAHEAD_MAX_COUNT = 100;
+	public static final int SEARCH_MAX_HITS = 10000;
+	public static final int EXPANSION_DEFAULT_COUNT = 100;
+	public static final int EXPANSION_MAX_COUNT = 1000;
+	public static final String SUBSETTED = "SUBSETTED";
+	public static final String SYSTEM_SUBSETTED = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+	public static final String DESC_SUBSETTED = "Resource encoded in summary mode";
 
 	public static final String PUBLISHER_REGEX = "^user:.*|^org:.*";
 	public static final String ORG_ = "org:";
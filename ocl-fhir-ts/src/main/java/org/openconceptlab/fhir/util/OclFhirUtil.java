@@ -1,9 +1,13 @@
 package org.openconceptlab.fhir.util;
 
 import ca.uhn.fhir.context.FhirContext;
-import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.rest.api.SummaryEnum;
+import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.NotModifiedException;
+import ca.uhn.fhir.rest.server.servlet.ServletRequestDetails;
+import com.google.common.hash.Hashing;
 import com.google.gson.*;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
@@ -11,20 +15,26 @@ import org.aspectj.apache.bcel.classfile.Code;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.r4.model.*;
 import org.openconceptlab.fhir.model.*;
+import org.openconceptlab.fhir.model.Collection;
+import org.openconceptlab.fhir.repository.ConceptRepository;
 import org.openconceptlab.fhir.repository.SourceRepository;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
+import javax.servlet.http.HttpServletResponse;
 
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Paths;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Optional;
-import java.util.stream.Stream;
+import java.sql.Timestamp;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.function.Function;
 
 import static org.openconceptlab.fhir.util.OclFhirConstants.*;
 
@@ -46,12 +56,13 @@ public class OclFhirUtil {
     }
 
     private String serverBase = "";
-    IParser parser = context.newJsonParser();
     public static JsonParser jsonParser = new JsonParser();
     public static Gson gson = new Gson();
     public static final List<String> allowedFilterOperators = Arrays.asList(CodeSystem.FilterOperator.ISA.toCode(),
             CodeSystem.FilterOperator.ISNOTA.toCode(), CodeSystem.FilterOperator.IN.toCode(),
-            CodeSystem.FilterOperator.NOTIN.toCode());
+            CodeSystem.FilterOperator.NOTIN.toCode(), CodeSystem.FilterOperator.DESCENDENTOF.toCode(),
+            CodeSystem.FilterOperator.GENERALIZES.toCode());
+    public static final List<String> allowedFilterProperties = Arrays.asList(CONCEPT_CLASS, DATATYPE, CONCEPT);
 
     @PostConstruct
     private void init() {
@@ -115,7 +126,12 @@ public class OclFhirUtil {
     }
 
     public String getResourceAsString(Resource resource) {
-        return parser.encodeResourceToString(resource);
+        return getResourceAsString(resource, false);
+    }
+
+    public String getResourceAsString(Resource resource, boolean pretty) {
+        // parsers are cheap to create and are not meant to be shared between threads
+        return context.newJsonParser().setPrettyPrint(pretty).encodeResourceToString(resource);
     }
 
     public static IBaseResource getResource(String resource) {
@@ -229,17 +245,15 @@ public class OclFhirUtil {
         return isValid(value) ? Optional.of(identifier) : Optional.empty();
     }
 
-    public static void addConceptDesignation(Concept concept, CodeSystem.ConceptDefinitionComponent definitionComponent) {
-        concept.getConceptsNames().parallelStream().forEach(name -> {
+    public static void addConceptDesignation(List<ConceptRepository.ConceptName> names,
+                                             CodeSystem.ConceptDefinitionComponent definitionComponent) {
+        names.forEach(name -> {
             CodeSystem.ConceptDefinitionDesignationComponent designation = new CodeSystem.ConceptDefinitionDesignationComponent();
-            LocalizedText lt = name.getLocalizedText();
-            if(lt != null) {
-                designation.setLanguage(lt.getLocale());
-                if (isValid(lt.getType()))
-                    designation.getUse().setCode(lt.getType());
-                designation.setValue(lt.getName());
-                definitionComponent.getDesignation().add(designation);
-            }
+            designation.setLanguage(name.getLocale());
+            if (isValid(name.getType()))
+                designation.getUse().setCode(name.getType());
+            designation.setValue(name.getName());
+            definitionComponent.getDesignation().add(designation);
         });
     }
 
@@ -254,36 +268,39 @@ public class OclFhirUtil {
     }
 
     public String getDefinition(List<LocalizedText> definitions, String defaultLocale) {
-        if (definitions == null || definitions.isEmpty()) return "";
-        if (definitions.size() > 1) {
-
-            // match with dict default locale
-            Stream<LocalizedText> dlMatch = definitions.stream().filter(d -> defaultLocale.equals(d.getLocale()));
-            Optional<LocalizedText> dlPreferred = getPreferred(dlMatch);
-            if (dlPreferred.isPresent()) return dlPreferred.get().getName();
-            Optional<LocalizedText> dlNonPreferred = getNonPreferred(dlMatch);
-            if (dlNonPreferred.isPresent()) return dlNonPreferred.get().getName();
-
-            // match with dict supported locales
-            Stream<LocalizedText> slMatch = definitions.stream().filter(d -> defaultLocale.contains(d.getLocale()));
-            Optional<LocalizedText> slPreferred = getPreferred(slMatch);
-            if (slPreferred.isPresent()) return slPreferred.get().getName();
-            Optional<LocalizedText> slNonPreferred = getNonPreferred(slMatch);
-            if (slNonPreferred.isPresent()) return slNonPreferred.get().getName();
-
-            // Any locale preferred
-            Optional<LocalizedText> anyPreferred = getPreferred(definitions.stream());
-            if (anyPreferred.isPresent()) return anyPreferred.get().getName();
+        return getDefinition(definitions, t -> t, defaultLocale);
+    }
+
+    /**
+     * Returns the name of the best text of the items in a single pass, items mapped to null are skipped. Preferred
+     * texts in the default locale come first, then other texts in the default locale, preferred texts in a supported
+     * locale, other texts in a supported locale, preferred texts in any locale and finally the first text.
+     */
+    public <T> String getDefinition(List<T> items, Function<T, LocalizedText> text, String defaultLocale) {
+        if (items == null) return "";
+        LocalizedText best = null;
+        int bestRank = Integer.MAX_VALUE;
+        for (T item : items) {
+            LocalizedText candidate = text.apply(item);
+            if (candidate == null) continue;
+            int rank = getRank(candidate, defaultLocale);
+            if (rank < bestRank) {
+                best = candidate;
+                bestRank = rank;
+                if (rank == 0) break;
+            }
         }
-        return definitions.get(0).getName();
+        return best == null ? "" : best.getName();
     }
 
-    private Optional<LocalizedText> getPreferred(Stream<LocalizedText> texts) {
-        return texts.filter(LocalizedText::getLocalePreferred).findFirst();
-    }
-
-    private Optional<LocalizedText> getNonPreferred(Stream<LocalizedText> texts) {
-        return texts.filter(f -> !f.getLocalePreferred()).findFirst();
+    private static int getRank(LocalizedText text, String defaultLocale) {
+        boolean preferred = Boolean.TRUE.equals(text.getLocalePreferred());
+        String locale = text.getLocale();
+        if (defaultLocale != null && locale != null) {
+            if (defaultLocale.equals(locale)) return preferred ? 0 : 1;
+            if (defaultLocale.contains(locale)) return preferred ? 2 : 3;
+        }
+        return preferred ? 4 : 5;
     }
 
     public static String notFound(Class<? extends MetadataResource> cls, StringType url, StringType version) {
@@ -345,4 +362,83 @@ public class OclFhirUtil {
         return isValid(type) ? type.getCode() : EMPTY;
     }
 
+    public static Date getLastUpdated(Source source) {
+        return latest(source.getUpdatedAt(), source.getLastChildUpdate(), source.getLastConceptUpdate(),
+                source.getLastMappingUpdate());
+    }
+
+    public static Date getLastUpdated(Collection collection) {
+        return latest(collection.getUpdatedAt(), collection.getLastChildUpdate(), collection.getLastConceptUpdate(),
+                collection.getLastMappingUpdate());
+    }
+
+    private static Date latest(Timestamp... timestamps) {
+        return Arrays.stream(timestamps).filter(Objects::nonNull).max(Comparator.naturalOrder())
+                .map(t -> new Date(t.getTime())).orElse(null);
+    }
+
+    /**
+     * Returns the version id of a repository version, it changes whenever the repository version or its content
+     * is updated.
+     */
+    public static String getVersionId(Long id, Date lastUpdated) {
+        return id + "." + (lastUpdated != null ? lastUpdated.getTime() : 0);
+    }
+
+    public static String getETag(List<String> versionIds) {
+        return "W/\"" + Hashing.sha256().hashString(String.join(",", versionIds), StandardCharsets.UTF_8) + "\"";
+    }
+
+    /**
+     * Adds the ETag and Last-Modified headers to the response and throws {@link NotModifiedException} if the
+     * client already holds the current representation, based on the If-None-Match and If-Modified-Since headers.
+     */
+    public static void checkNotModified(RequestDetails details, String eTag, Date lastModified) {
+        if (details instanceof ServletRequestDetails) {
+            HttpServletResponse response = ((ServletRequestDetails) details).getServletResponse();
+            response.setHeader(HttpHeaders.ETAG, eTag);
+            if (lastModified != null)
+                response.setDateHeader(HttpHeaders.LAST_MODIFIED, lastModified.getTime());
+        }
+        String ifNoneMatch = details.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (isValid(ifNoneMatch)) {
+            if (Arrays.stream(ifNoneMatch.split(",")).map(OclFhirUtil::weak).anyMatch(t -> ALL.equals(t) || weak(eTag).equals(t)))
+                throw new NotModifiedException("Not Modified");
+            return;
+        }
+        String ifModifiedSince = details.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        if (isValid(ifModifiedSince) && lastModified != null) {
+            try {
+                long since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                // http dates have a precision of seconds
+                if (lastModified.getTime() / 1000 <= since / 1000)
+                    throw new NotModifiedException("Not Modified");
+            } catch (DateTimeParseException e) {
+                // ignore invalid dates as per RFC 7232
+            }
+        }
+    }
+
+    private static String weak(String eTag) {
+        String tag = eTag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Returns whether the given element has to be included in the response according to the _summary and _elements
+     * parameters.
+     * @param summaryByDefault - true if the element is left out when neither parameter is given
+     */
+    public static boolean isElementRequested(SummaryEnum summary, Set<String> elements, String element,
+                                             boolean summaryByDefault) {
+        if (elements != null && !elements.isEmpty()) return elements.contains(element);
+        if (summary == null) return !summaryByDefault;
+        return summary == SummaryEnum.FALSE || summary == SummaryEnum.DATA;
+    }
+
+    public static void addSubsettedTag(Resource resource) {
+        if (resource.getMeta().getTag(SYSTEM_SUBSETTED, SUBSETTED) != null) return;
+        resource.getMeta().addTag(SYSTEM_SUBSETTED, SUBSETTED, DESC_SUBSETTED);
+    }
+
 }
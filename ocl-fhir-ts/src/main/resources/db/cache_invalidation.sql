@@ -0,0 +1,56 @@
+-- Notifies the oclfhir nodes of changed sources and collections on the channel configured as ocl.invalidation.channel,
+-- the payload is sources:<id> or collections:<id>. Changes to the concepts and mappings of a source or collection are
+-- reported as a change of the source or collection. Identical notifications of one transaction are delivered once.
+-- Run once against the OCL database with psql, the script can be run again to update the triggers. The channel is
+-- passed as the channel variable and defaults to ocl_changes, e.g.
+--     psql -v channel=ocl_changes -f cache_invalidation.sql <database>
+
+\if :{?channel}
+\else
+\set channel ocl_changes
+\endif
+
+create or replace function oclfhir_notify_change() returns trigger as $$
+declare
+    channel text := tg_argv[0];
+    changed record;
+begin
+    if tg_op = 'DELETE' then
+        changed := old;
+    else
+        changed := new;
+    end if;
+    if tg_table_name in ('sources', 'collections') then
+        perform pg_notify(channel, tg_table_name || ':' || changed.id);
+    elsif tg_table_name in ('concepts_sources', 'mappings_sources') then
+        perform pg_notify(channel, 'sources:' || changed.source_id);
+    else
+        perform pg_notify(channel, 'collections:' || changed.collection_id);
+    end if;
+    return null;
+end;
+$$ language plpgsql;
+
+drop trigger if exists oclfhir_notify_change on sources;
+create trigger oclfhir_notify_change after insert or update or delete on sources
+    for each row execute procedure oclfhir_notify_change(:'channel');
+
+drop trigger if exists oclfhir_notify_change on collections;
+create trigger oclfhir_notify_change after insert or update or delete on collections
+    for each row execute procedure oclfhir_notify_change(:'channel');
+
+drop trigger if exists oclfhir_notify_change on concepts_sources;
+create trigger oclfhir_notify_change after insert or delete on concepts_sources
+    for each row execute procedure oclfhir_notify_change(:'channel');
+
+drop trigger if exists oclfhir_notify_change on mappings_sources;
+create trigger oclfhir_notify_change after insert or delete on mappings_sources
+    for each row execute procedure oclfhir_notify_change(:'channel');
+
+drop trigger if exists oclfhir_notify_change on collections_concepts;
+create trigger oclfhir_notify_change after insert or delete on collections_concepts
+    for each row execute procedure oclfhir_notify_change(:'channel');
+
+drop trigger if exists oclfhir_notify_change on collections_mappings;
+create trigger oclfhir_notify_change after insert or delete on collections_mappings
+    for each row execute procedure oclfhir_notify_change(:'channel');
@@ -0,0 +1,173 @@
+package org.openconceptlab.fhir.converter;
+
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.openconceptlab.fhir.cache.ClosureCache;
+import org.openconceptlab.fhir.cache.ConceptDisplayCache;
+import org.openconceptlab.fhir.cache.ExpansionCache;
+import org.openconceptlab.fhir.index.ConceptSearchIndex;
+import org.openconceptlab.fhir.model.Collection;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.openconceptlab.fhir.repository.SourceRepository;
+import org.openconceptlab.fhir.util.ConceptFilter;
+import org.openconceptlab.fhir.util.OclFhirUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of the intensional compose.include of collections and of its hierarchy filters.
+ * @author agent
+ */
+public class ValueSetConverterTest {
+
+    private static final String SYSTEM = "http://ciel.org";
+
+    private ConceptRepository conceptRepository;
+    private SourceRepository sourceRepository;
+    private ClosureCache.Closure closure;
+    private ValueSetConverter converter;
+    private Source source;
+
+    @BeforeEach
+    public void setUp() {
+        conceptRepository = mock(ConceptRepository.class);
+        sourceRepository = mock(SourceRepository.class);
+        ClosureCache closureCache = mock(ClosureCache.class);
+        closure = mock(ClosureCache.Closure.class);
+        converter = new ValueSetConverter(mock(OclFhirUtil.class), conceptRepository, sourceRepository,
+                mock(ExpansionCache.class), mock(ConceptSearchIndex.class), closureCache,
+                mock(ConceptDisplayCache.class));
+        source = new Source();
+        source.setId(7L);
+        source.setVersion("v1");
+        when(sourceRepository.findFirstByCanonicalUrlAndReleasedAndPublicAccessInOrderByCreatedAtDesc(eq(SYSTEM),
+                eq(true), anyList())).thenReturn(source);
+        when(closureCache.get(source)).thenReturn(closure);
+        when(conceptRepository.findByCollectionId(anyLong(), anyBoolean(), anyString(), anyInt(), anyInt()))
+                .thenReturn(Collections.emptyList());
+    }
+
+    @Test
+    public void expandsSupportedFilterWithoutReferencedConcepts() {
+        Collection collection = collection("{\"property\": \"conceptclass\", \"op\": \"in\", \"value\": \"Diagnosis\"}");
+        when(conceptRepository.countByCollectionId(eq(3L), anyBoolean(), anyString())).thenReturn(2L);
+        when(conceptRepository.countLatestBySourceId(eq(7L), any(ConceptFilter.class))).thenReturn(5L);
+
+        ValueSet valueSet = converter.expand(collection, 0, 0, false, null);
+
+        ArgumentCaptor<ConceptFilter> filter = ArgumentCaptor.forClass(ConceptFilter.class);
+        verify(conceptRepository).countLatestBySourceId(eq(7L), filter.capture());
+        assertEquals(Collections.singletonList("Diagnosis"), filter.getValue().getConceptClasses());
+        assertEquals(3L, filter.getValue().getExcludedCollectionId());
+        assertEquals(7, valueSet.getExpansion().getTotal());
+    }
+
+    @Test
+    public void skipsIncludeWithUnsupportedProperty() {
+        Collection collection = collection("{\"property\": \"mapType\", \"op\": \"in\", \"value\": \"SAME-AS\"}");
+
+        ValueSet valueSet = converter.expand(collection, 0, 10, false, null);
+
+        verify(conceptRepository, never()).countLatestBySourceId(anyLong(), any(ConceptFilter.class));
+        assertEquals(0, valueSet.getExpansion().getTotal());
+    }
+
+    @Test
+    public void skipsIncludeWithUnsupportedOperator() {
+        Collection collection = collection("{\"property\": \"datatype\", \"op\": \"regex\", \"value\": \"N.*\"}");
+
+        ValueSet valueSet = converter.expand(collection, 0, 10, false, null);
+
+        verify(conceptRepository, never()).countLatestBySourceId(anyLong(), any(ConceptFilter.class));
+        assertEquals(0, valueSet.getExpansion().getTotal());
+    }
+
+    @Test
+    public void skipsIncludeWithoutFilterValue() {
+        Collection collection = collection("{\"property\": \"datatype\", \"op\": \"in\"}");
+
+        ValueSet valueSet = converter.expand(collection, 0, 10, false, null);
+
+        verify(conceptRepository, never()).countLatestBySourceId(anyLong(), any(ConceptFilter.class));
+        assertEquals(0, valueSet.getExpansion().getTotal());
+    }
+
+    @Test
+    public void expandsIsA() {
+        when(closure.getDescendants("A", true)).thenReturn(ids(1L, 2L));
+
+        ConceptFilter filter = expandFilter("{\"property\": \"concept\", \"op\": \"is-a\", \"value\": \"A\"}");
+
+        assertEquals(ids(1L, 2L), new HashSet<>(filter.getConceptIds()));
+    }
+
+    @Test
+    public void expandsDescendentOf() {
+        when(closure.getDescendants("A", false)).thenReturn(ids(2L));
+
+        ConceptFilter filter = expandFilter("{\"property\": \"concept\", \"op\": \"descendent-of\", \"value\": \"A\"}");
+
+        assertEquals(ids(2L), new HashSet<>(filter.getConceptIds()));
+    }
+
+    @Test
+    public void expandsGeneralizes() {
+        when(closure.getAncestors("B", true)).thenReturn(ids(1L, 2L));
+
+        ConceptFilter filter = expandFilter("{\"property\": \"concept\", \"op\": \"generalizes\", \"value\": \"B\"}");
+
+        assertEquals(ids(1L, 2L), new HashSet<>(filter.getConceptIds()));
+    }
+
+    @Test
+    public void expandsIsNotA() {
+        when(closure.getDescendants("A", true)).thenReturn(ids(1L, 2L));
+
+        ConceptFilter filter = expandFilter("{\"property\": \"concept\", \"op\": \"is-not-a\", \"value\": \"A\"}");
+
+        assertTrue(filter.isAnyConceptId());
+        assertEquals(ids(1L, 2L), new HashSet<>(filter.getExcludedConceptIds()));
+    }
+
+    @Test
+    public void skipsConceptFilterWithPropertyOperator() {
+        Collection collection = collection("{\"property\": \"concept\", \"op\": \"in\", \"value\": \"A\"}");
+
+        converter.expand(collection, 0, 10, false, null);
+
+        verifyZeroInteractions(closure);
+        verify(conceptRepository, never()).countLatestBySourceId(anyLong(), any(ConceptFilter.class));
+    }
+
+    private ConceptFilter expandFilter(String filter) {
+        converter.expand(collection(filter), 0, 0, false, null);
+        ArgumentCaptor<ConceptFilter> conceptFilter = ArgumentCaptor.forClass(ConceptFilter.class);
+        verify(conceptRepository).countLatestBySourceId(eq(7L), conceptFilter.capture());
+        return conceptFilter.getValue();
+    }
+
+    private static Set<Long> ids(Long... ids) {
+        return new HashSet<>(Arrays.asList(ids));
+    }
+
+    private static Collection collection(String filter) {
+        Collection collection = new Collection();
+        collection.setId(3L);
+        collection.setMnemonic("vs");
+        collection.setUri("/orgs/OCL/collections/vs/");
+        collection.setIsActive(true);
+        collection.setReleased(false);
+        collection.setExtras("{\"compose.include\": [{\"system\": \"" + SYSTEM + "\", \"filters\": [" + filter + "]}]}");
+        return collection;
+    }
+}
@@ -0,0 +1,81 @@
+package org.openconceptlab.fhir.index;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of the typeahead lookup of the concept prefix index.
+ * @author agent
+ */
+public class ConceptPrefixIndexTest {
+
+    private ConceptPrefixIndex index;
+    private Source source;
+
+    @BeforeEach
+    public void setUp() {
+        SourceSnapshotStore sourceSnapshotStore = mock(SourceSnapshotStore.class);
+        index = new ConceptPrefixIndex(sourceSnapshotStore);
+        ReflectionTestUtils.setField(index, "maxEntries", 1000L);
+        ReflectionTestUtils.invokeMethod(index, "init");
+        source = new Source();
+        source.setId(1L);
+        when(sourceSnapshotStore.streamNames(source)).thenAnswer(i -> Stream.of(
+                name(1L, "A", "Malaria"),
+                name(2L, "B", "Cerebral malaria"),
+                name(3L, "C", "Mal de mer"),
+                name(4L, "D", "Fever")));
+    }
+
+    @Test
+    public void matchesAnyWordOfName() {
+        assertEquals(List.of("A", "B"), codes(index.suggest(source, "malar", null, 10)));
+    }
+
+    @Test
+    public void ranksNamesStartingWithPrefixFirst() {
+        // both start with the prefix, the shorter name first, then the name matching on a later word
+        assertEquals(List.of("A", "C", "B"), codes(index.suggest(source, "Mal", null, 10)));
+    }
+
+    @Test
+    public void matchesPrefixAcrossWords() {
+        assertEquals(List.of("C"), codes(index.suggest(source, "mal de", null, 10)));
+        assertEquals(List.of("B"), codes(index.suggest(source, "cérébral m", null, 10)));
+    }
+
+    @Test
+    public void returnsNothingForUnknownPrefix() {
+        assertTrue(index.suggest(source, "malt", null, 10).isEmpty());
+        assertTrue(index.suggest(source, "zzz", null, 10).isEmpty());
+    }
+
+    private static List<String> codes(List<ConceptPrefixIndex.Suggestion> suggestions) {
+        return suggestions.stream().map(ConceptPrefixIndex.Suggestion::getCode).collect(Collectors.toList());
+    }
+
+    private static ConceptRepository.ConceptText name(Long conceptId, String mnemonic, String name) {
+        return new ConceptRepository.ConceptText() {
+            public Long getConceptId() { return conceptId; }
+            public String getMnemonic() { return mnemonic; }
+            public Timestamp getUpdatedAt() { return null; }
+            public Boolean getDescription() { return false; }
+            public Boolean getRetired() { return false; }
+            public String getName() { return name; }
+            public String getLocale() { return "en"; }
+            public Boolean getLocalePreferred() { return true; }
+            public String getType() { return null; }
+        };
+    }
+}
@@ -0,0 +1,101 @@
+package org.openconceptlab.fhir.index;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+/**
+ * Tests of the incremental updates of the concept search index.
+ * @author agent
+ */
+public class ConceptSearchIndexTest {
+
+    private static final long MARGIN = 1000;
+
+    @TempDir
+    Path dir;
+
+    private ConceptRepository conceptRepository;
+    private ConceptSearchIndex index;
+    private Source source;
+
+    @BeforeEach
+    public void setUp() {
+        conceptRepository = mock(ConceptRepository.class);
+        index = new ConceptSearchIndex(conceptRepository);
+        ReflectionTestUtils.setField(index, "indexDir", dir.toString());
+        ReflectionTestUtils.setField(index, "maxOpen", 4L);
+        ReflectionTestUtils.setField(index, "stampMargin", MARGIN);
+        ReflectionTestUtils.invokeMethod(index, "init");
+        source = new Source();
+        source.setId(1L);
+        source.setUpdatedAt(new Timestamp(10_000));
+        source.setLastChildUpdate(null);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(index, "destroy");
+    }
+
+    @Test
+    public void removesRetiredConcepts() {
+        when(conceptRepository.streamTextsSince(eq(1L), any(Timestamp.class)))
+                .thenReturn(Stream.of(text(1L, "A", 5_000, false, "Malaria"), text(2L, "B", 5_000, false, "Fever")));
+        assertEquals(List.of("A"), codes(index.search(source, "malaria", 10)));
+
+        source.setUpdatedAt(new Timestamp(20_000));
+        when(conceptRepository.streamTextsSince(eq(1L), any(Timestamp.class)))
+                .thenReturn(Stream.of(text(3L, "A", 15_000, true, "Malaria")));
+
+        assertTrue(index.search(source, "malaria", 10).isEmpty());
+        assertEquals(List.of("B"), codes(index.search(source, "fever", 10)));
+    }
+
+    @Test
+    public void readsChangesAgainFromMarginBeforeLastIndexedChange() {
+        when(conceptRepository.streamTextsSince(eq(1L), any(Timestamp.class)))
+                .thenReturn(Stream.of(text(1L, "A", 5_000, false, "Malaria")));
+        index.search(source, "malaria", 10);
+
+        source.setUpdatedAt(new Timestamp(20_000));
+        when(conceptRepository.streamTextsSince(eq(1L), any(Timestamp.class))).thenReturn(Stream.empty());
+        index.search(source, "malaria", 10);
+
+        verify(conceptRepository).streamTextsSince(1L, new Timestamp(0));
+        verify(conceptRepository).streamTextsSince(1L, new Timestamp(5_000 - MARGIN));
+    }
+
+    private static List<String> codes(List<ConceptSearchIndex.Match> matches) {
+        return matches.stream().map(ConceptSearchIndex.Match::getCode).collect(Collectors.toList());
+    }
+
+    private static ConceptRepository.ConceptText text(Long conceptId, String mnemonic, long updatedAt, boolean retired,
+                                                      String name) {
+        return new ConceptRepository.ConceptText() {
+            public Long getConceptId() { return conceptId; }
+            public String getMnemonic() { return mnemonic; }
+            public Timestamp getUpdatedAt() { return new Timestamp(updatedAt); }
+            public Boolean getDescription() { return false; }
+            public Boolean getRetired() { return retired; }
+            public String getName() { return name; }
+            public String getLocale() { return "en"; }
+            public Boolean getLocalePreferred() { return true; }
+            public String getType() { return null; }
+        };
+    }
+}
@@ -0,0 +1,125 @@
+package org.openconceptlab.fhir.index;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the binary format and the code lookup of source snapshots.
+ * @author agent
+ */
+public class SourceSnapshotTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void readsBackWrittenConcepts() throws IOException {
+        SourceSnapshot snapshot = writeAndOpen(42L, Stream.of(
+                record(3L, "B", false, "Fever", "en", true, "FULLY_SPECIFIED"),
+                record(3L, "B", false, "Fièvre", "fr", false, null),
+                record(1L, "A", false, null, null, null, null),
+                record(2L, "C", true, "Malaria", "en", true, null)));
+
+        assertEquals(42L, snapshot.getStamp());
+        assertEquals(3, snapshot.size());
+        // concepts are ordered by code
+        assertEquals("A", snapshot.getCode(0));
+        assertEquals(1L, snapshot.getConceptId(0));
+        assertEquals(snapshot.getFirstName(0), snapshot.getFirstName(1));
+        assertEquals("B", snapshot.getCode(1));
+        assertEquals(3L, snapshot.getConceptId(1));
+        assertFalse(snapshot.isRetired(1));
+        int name = snapshot.getFirstName(1);
+        assertEquals(2, snapshot.getFirstName(2) - name);
+        assertEquals("Fever", snapshot.getName(name));
+        assertEquals("en", snapshot.getLocale(name));
+        assertEquals("FULLY_SPECIFIED", snapshot.getType(name));
+        assertTrue(snapshot.isPreferred(name));
+        assertEquals("Fièvre", snapshot.getName(name + 1));
+        assertEquals("fr", snapshot.getLocale(name + 1));
+        assertNull(snapshot.getType(name + 1));
+        assertFalse(snapshot.isPreferred(name + 1));
+        assertEquals("C", snapshot.getCode(2));
+        assertTrue(snapshot.isRetired(2));
+    }
+
+    @Test
+    public void leavesRetiredConceptsOutOfTexts() throws IOException {
+        SourceSnapshot snapshot = writeAndOpen(1L, Stream.of(
+                record(1L, "A", false, "Fever", "en", true, null),
+                record(2L, "C", true, "Malaria", "en", true, null)));
+
+        List<String> names = snapshot.texts().map(ConceptRepository.ConceptText::getName).collect(Collectors.toList());
+
+        assertEquals(List.of("Fever"), names);
+    }
+
+    @Test
+    public void looksUpEveryCode() throws IOException {
+        List<ConceptRepository.ConceptRecord> records = new ArrayList<>();
+        for (long i = 0; i < 1000; i++) records.add(record(i, "code-" + i, false, null, null, null, null));
+        records.add(record(1000L, "Δ-ü", false, null, null, null, null));
+        SourceSnapshot snapshot = writeAndOpen(1L, records.stream());
+
+        for (ConceptRepository.ConceptRecord record : records) {
+            int index = snapshot.indexOf(record.getMnemonic());
+            assertTrue(index >= 0, record.getMnemonic());
+            assertEquals(record.getConceptId().longValue(), snapshot.getConceptId(index));
+        }
+        assertEquals(-1, snapshot.indexOf("code-1000"));
+        assertEquals(-1, snapshot.indexOf("CODE-1"));
+        assertEquals(-1, snapshot.indexOf(null));
+    }
+
+    @Test
+    public void looksUpNothingInEmptySnapshot() throws IOException {
+        SourceSnapshot snapshot = writeAndOpen(1L, Stream.empty());
+
+        assertEquals(0, snapshot.size());
+        assertEquals(-1, snapshot.indexOf("A"));
+        assertEquals(0, snapshot.texts().count());
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        Path file = dir.resolve("1-1.snap");
+        SourceSnapshot.write(file, 1L, Stream.of(record(1L, "A", false, "Fever", "en", true, null)));
+        byte[] bytes = Files.readAllBytes(file);
+        Files.write(file, Arrays.copyOf(bytes, bytes.length - 1));
+
+        assertThrows(IOException.class, () -> SourceSnapshot.open(file));
+    }
+
+    private SourceSnapshot writeAndOpen(long stamp, Stream<ConceptRepository.ConceptRecord> records)
+            throws IOException {
+        Path file = dir.resolve("1-" + stamp + ".snap");
+        SourceSnapshot.write(file, stamp, records);
+        return SourceSnapshot.open(file);
+    }
+
+    private static ConceptRepository.ConceptRecord record(Long conceptId, String mnemonic, boolean retired,
+                                                          String name, String locale, Boolean preferred,
+                                                          String type) {
+        return new ConceptRepository.ConceptRecord() {
+            public Long getConceptId() { return conceptId; }
+            public String getMnemonic() { return mnemonic; }
+            public Boolean getRetired() { return retired; }
+            public String getName() { return name; }
+            public String getLocale() { return locale; }
+            public Boolean getLocalePreferred() { return preferred; }
+            public String getType() { return type; }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package org.openconceptlab.fhir.provider;
+
+import ca.uhn.fhir.rest.api.server.RequestDetails;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.StringType;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.openconceptlab.fhir.converter.CodeSystemConverter;
+import org.openconceptlab.fhir.converter.ValueSetConverter;
+import org.openconceptlab.fhir.index.ConceptPrefixIndex;
+import org.openconceptlab.fhir.index.ConceptSearchIndex;
+import org.openconceptlab.fhir.model.Source;
+import org.openconceptlab.fhir.repository.ConceptRepository;
+import org.openconceptlab.fhir.repository.SourceRepository;
+import org.openconceptlab.fhir.util.ConceptFilter;
+import org.openconceptlab.fhir.util.DesignationFilter;
+import org.openconceptlab.fhir.util.OclFhirUtil;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+import static org.openconceptlab.fhir.util.OclFhirConstants.HEAD;
+
+/**
+ * Tests of the single-concept CodeSystem read and of the concept filters of CodeSystem searches.
+ * @author agent
+ */
+public class CodeSystemResourceProviderTest {
+
+    private CodeSystemConverter codeSystemConverter;
+    private OclFhirUtil oclFhirUtil;
+    private RequestDetails details;
+    private CodeSystemResourceProvider provider;
+
+    @BeforeEach
+    public void setUp() {
+        codeSystemConverter = mock(CodeSystemConverter.class);
+        oclFhirUtil = mock(OclFhirUtil.class);
+        details = mock(RequestDetails.class);
+        provider = new CodeSystemResourceProvider(mock(SourceRepository.class), mock(ConceptRepository.class),
+                codeSystemConverter, mock(ValueSetConverter.class), mock(ConceptSearchIndex.class),
+                mock(ConceptPrefixIndex.class), oclFhirUtil);
+    }
+
+    @Test
+    public void readsConceptOfReleasedVersion() {
+        Source source = source("v1");
+        givenSourceVersion(source);
+        CodeSystem codeSystem = new CodeSystem();
+        codeSystem.addConcept().setCode("A");
+        when(codeSystemConverter.convertToCodeSystem(eq(source), eq("A"), any(DesignationFilter.class)))
+                .thenReturn(codeSystem);
+
+        Bundle bundle = search("v1", "A");
+
+        assertEquals(1, bundle.getTotal());
+        assertSame(codeSystem, bundle.getEntryFirstRep().getResource());
+    }
+
+    @Test
+    public void rejectsConceptReadFromHeadVersion() {
+        givenSourceVersion(source(HEAD));
+
+        assertThrows(InvalidRequestException.class, () -> search(HEAD, "A"));
+        verifyZeroInteractions(codeSystemConverter);
+    }
+
+    @Test
+    public void reportsUnknownVersionAsNotFound() {
+        givenSourceVersion(null);
+
+        assertThrows(ResourceNotFoundException.class, () -> search("v2", "A"));
+        verifyZeroInteractions(codeSystemConverter);
+    }
+
+    @Test
+    public void passesConceptFiltersToConverter() {
+        givenSourceVersion(source("v1"));
+        StringOrListParam conceptClass = new StringOrListParam().addOr(new StringParam("Diagnosis"))
+                .addOr(new StringParam("Finding"));
+        StringOrListParam datatype = new StringOrListParam().addOr(new StringParam("Numeric"));
+
+        ConceptFilter filter = searchFilter(conceptClass, datatype, new StringType("false"));
+
+        assertTrue(filter.isRestricted());
+        assertEquals(new HashSet<>(Arrays.asList("Diagnosis", "Finding")), new HashSet<>(filter.getConceptClasses()));
+        assertEquals(Collections.singletonList("Numeric"), filter.getDatatypes());
+        assertFalse(filter.isAnyInactive());
+        assertFalse(filter.isInactive());
+    }
+
+    @Test
+    public void filtersInactiveConcepts() {
+        givenSourceVersion(source("v1"));
+
+        ConceptFilter filter = searchFilter(null, null, new StringType("true"));
+
+        assertTrue(filter.isAnyConceptClass());
+        assertTrue(filter.isAnyDatatype());
+        assertTrue(filter.isInactive());
+    }
+
+    @Test
+    public void leavesUnfilteredSearchUnrestricted() {
+        givenSourceVersion(source("v1"));
+
+        assertFalse(searchFilter(null, null, null).isRestricted());
+    }
+
+    private ConceptFilter searchFilter(StringOrListParam conceptClass, StringOrListParam datatype, StringType inactive) {
+        when(codeSystemConverter.convertToCodeSystem(anyList(), anyBoolean(), any(ConceptFilter.class),
+                any(DesignationFilter.class))).thenReturn(Collections.emptyList());
+        provider.searchCodeSystemByOwnerAndId(new StringType("org:OCL"), new StringType("CIEL"), new StringType("v1"),
+                null, conceptClass, datatype, inactive, null, null, null, null, null, details);
+        ArgumentCaptor<ConceptFilter> filter = ArgumentCaptor.forClass(ConceptFilter.class);
+        verify(codeSystemConverter).convertToCodeSystem(anyList(), eq(true), filter.capture(),
+                any(DesignationFilter.class));
+        return filter.getValue();
+    }
+
+    private void givenSourceVersion(Source source) {
+        when(oclFhirUtil.getSourceVersion(any(StringType.class), any(StringType.class), anyList(), anyString(),
+                anyString())).thenReturn(source);
+    }
+
+    private Bundle search(String version, String code) {
+        return provider.searchCodeSystemByOwnerAndId(new StringType("org:OCL"), new StringType("CIEL"),
+                new StringType(version), new StringType(code), null, null, null, null, null, null, null, null,
+                details);
+    }
+
+    private static Source source(String version) {
+        Source source = new Source();
+        source.setId(1L);
+        source.setMnemonic("CIEL");
+        source.setVersion(version);
+        source.setReleased(!HEAD.equals(version));
+        return source;
+    }
+}